@@ -9,6 +9,7 @@ drop table clientes cascade constraints;
 drop table facturas cascade constraints;
 drop table lineas_factura cascade constraints;
 drop table reservas cascade constraints;
+drop table importacion_puntos cascade constraints;
 
 create table clientes(
 	NIF	varchar(9) primary key,
@@ -39,7 +40,9 @@ create table vehiculos(
 	color		varchar(10)
 );
 
-create sequence seq_reservas;
+-- seq_reservas y seq_num_fact reparten bloques de 50 identificadores: cada nextval reserva [v-49, v]
+-- y GeneradorIdentificadores los entrega desde memoria. Quien use nextval directamente se queda con v.
+create sequence seq_reservas start with 50 increment by 50 cache 20;
 create table reservas(
 	idReserva	integer primary key,
 	cliente  	varchar(9) references clientes,
@@ -49,26 +52,139 @@ create table reservas(
 	check (fecha_fin >= fecha_ini)
 );
 
-create sequence seq_num_fact;
+-- Indice para comprobar solapes de reservas por vehiculo (ServicioImpl.CONSULTA_SOLAPE).
+-- Al indexar la fecha de fin efectiva (4 dias si es nula) solo se recorren las reservas
+-- que terminan despues del inicio pedido, sin importar cuanto historico tenga el coche.
+create index reservas_ocupacion_idx on reservas(matricula, NVL(fecha_fin, fecha_ini + 4), fecha_ini);
+
+create sequence seq_num_fact start with 50 increment by 50 cache 20;
 create table facturas(
 	nroFactura	integer primary key,
 	importe		numeric( 8, 2),
 	cliente		varchar(9) not null references clientes
 );
 
+-- Facturas de un cliente en orden de numero, para la paginacion por clave de ServicioInformes
+create index facturas_cliente_idx on facturas(cliente, nroFactura);
+
 create table lineas_factura(
 	nroFactura	integer references facturas,
 	concepto	char(40),
 	importe		numeric( 7, 2),
 	primary key ( nroFactura, concepto)
 );
-	
+
+-- Ultima linea confirmada de cada fichero de ImportadorHistorico, para reanudar una importacion cortada.
+-- La clave es el identificador de la importacion seguido del nombre del fichero
+create table importacion_puntos(
+	fichero		varchar(400) primary key,
+	lineas		integer not null
+);
+
+
+-- Alquiler completo en el servidor: una sola llamada desde ServicioImpl en modo PROCEDIMIENTO.
+-- Los errores -2000X corresponden a los codigos X de AlquilerCochesException.
+create or replace procedure alquilar(
+    arg_NIF_cliente     varchar,
+    arg_matricula       varchar,
+    arg_fecha_ini       date,
+    arg_fecha_fin       date,
+    arg_nro_factura OUT integer,
+    -- Identificadores ya reservados por GeneradorIdentificadores; si no se pasan se usa nextval
+    arg_id_reserva      integer default null,
+    arg_id_factura      integer default null
+) is
+    v_dias              integer;
+    v_fecha_fin         date;
+    v_ocupado           integer;
+    v_existe_cliente    integer;
+    v_id_modelo         modelos.id_modelo%type;
+    v_precio_cada_dia   modelos.precio_cada_dia%type;
+    v_capacidad         modelos.capacidad_deposito%type;
+    v_tipo_combustible  modelos.tipo_combustible%type;
+    v_precio_por_litro  precio_combustible.precio_por_litro%type;
+    v_importe_vehiculo  facturas.importe%type;
+    v_importe_fuel      facturas.importe%type;
+    v_id_reserva        reservas.idReserva%type := arg_id_reserva;
+begin
+    --Sin fecha de fin el alquiler es de 4 dias
+    IF arg_fecha_fin IS NOT NULL THEN
+        v_dias := TRUNC(arg_fecha_fin - arg_fecha_ini);
+        IF v_dias < 1 THEN
+            raise_application_error(-20003, 'El numero de dias sera mayor que cero');
+        END IF;
+        v_fecha_fin := arg_fecha_fin;
+    ELSE
+        v_dias := 4;
+        v_fecha_fin := arg_fecha_ini + 4;
+    END IF;
+
+    --Mismo predicado que CatalogoSentencias.CONSULTA_SOLAPE, resuelto con reservas_ocupacion_idx
+    SELECT COUNT(*) INTO v_ocupado FROM reservas
+    WHERE matricula = arg_matricula
+      AND NVL(fecha_fin, fecha_ini + 4) >= arg_fecha_ini
+      AND fecha_ini <= v_fecha_fin
+      AND ROWNUM = 1;
+    IF v_ocupado > 0 THEN
+        raise_application_error(-20004, 'El vehiculo no esta disponible');
+    END IF;
+
+    SELECT COUNT(*) INTO v_existe_cliente FROM clientes WHERE NIF = arg_NIF_cliente;
+    IF v_existe_cliente = 0 THEN
+        raise_application_error(-20001, 'Cliente inexistente');
+    END IF;
+
+    BEGIN
+        SELECT id_modelo, precio_cada_dia, capacidad_deposito, tipo_combustible, precio_por_litro
+        INTO v_id_modelo, v_precio_cada_dia, v_capacidad, v_tipo_combustible, v_precio_por_litro
+        FROM vehiculos JOIN modelos USING (id_modelo) JOIN precio_combustible USING (tipo_combustible)
+        WHERE matricula = arg_matricula;
+    EXCEPTION
+        WHEN NO_DATA_FOUND THEN
+            raise_application_error(-20002, 'Vehiculo inexistente');
+    END;
+
+    IF v_id_reserva IS NULL THEN
+        v_id_reserva := seq_reservas.nextval;
+    END IF;
+    arg_nro_factura := arg_id_factura;
+    IF arg_nro_factura IS NULL THEN
+        arg_nro_factura := seq_num_fact.nextval;
+    END IF;
+
+    INSERT INTO reservas (idReserva, cliente, matricula, fecha_ini, fecha_fin)
+    VALUES (v_id_reserva, arg_NIF_cliente, arg_matricula, arg_fecha_ini, arg_fecha_fin);
+
+    v_importe_vehiculo := v_dias * v_precio_cada_dia;
+    v_importe_fuel := v_capacidad * v_precio_por_litro;
+
+    INSERT INTO facturas (nroFactura, importe, cliente)
+    VALUES (arg_nro_factura, v_importe_vehiculo + v_importe_fuel, arg_NIF_cliente);
+
+    INSERT INTO lineas_factura (nroFactura, concepto, importe)
+    VALUES (arg_nro_factura, v_dias || ' dias de alquiler, vehiculo modelo ' || v_id_modelo, v_importe_vehiculo);
+
+    INSERT INTO lineas_factura (nroFactura, concepto, importe)
+    VALUES (arg_nro_factura, 'Deposito lleno de ' || v_capacidad || ' litros de ' || v_tipo_combustible,
+            v_importe_fuel);
+
+    commit;
+exception
+    when others then
+        rollback;
+        raise;
+end;
+/
 
 create or replace procedure reset_seq( p_seq_name varchar )
 --From https://stackoverflow.com/questions/51470/how-do-i-reset-a-sequence-in-oracle
 is
     l_val number;
+    l_incremento number;
 begin
+    --Guardo el incremento original (50 en las secuencias por bloques) para restaurarlo al final
+    select increment_by into l_incremento from user_sequences where sequence_name = upper(p_seq_name);
+
     --Averiguo cual es el siguiente valor y lo guardo en l_val
     execute immediate
     'select ' || p_seq_name || '.nextval from dual' INTO l_val;
@@ -81,9 +197,9 @@ begin
     execute immediate
     'select ' || p_seq_name || '.nextval from dual' INTO l_val;
 
-    --restauro el incremento de la secuencia a 1
+    --restauro el incremento original de la secuencia
     execute immediate
-    'alter sequence ' || p_seq_name || ' increment by 1 minvalue 0';
+    'alter sequence ' || p_seq_name || ' increment by ' || l_incremento || ' minvalue 0';
 end;
 /
 
@@ -94,6 +210,7 @@ begin
   	reset_seq( 'seq_reservas' );
         
   
+    delete from importacion_puntos;
     delete from lineas_factura;
     delete from facturas;
     delete from reservas;
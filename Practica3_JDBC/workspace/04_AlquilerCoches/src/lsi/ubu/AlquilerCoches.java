@@ -1,12 +1,18 @@
 ﻿package lsi.ubu;
 
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import lsi.ubu.servicios.CatalogoSentencias;
+import lsi.ubu.servicios.FiltrosExistencia;
+import lsi.ubu.servicios.IndiceDisponibilidad;
 import lsi.ubu.tests.Tests;
+import lsi.ubu.util.ControladorPool;
 import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
 
 /**
  * AlquierCoches: Implementa la facturacion de un coche de alquiler segun el PDF de la carpeta enunciado
@@ -22,6 +28,12 @@ public class AlquilerCoches {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(AlquilerCoches.class);
 
+	// Cada cuanto se recarga el indice de disponibilidad con las reservas hechas por otros procesos
+	private static final long MINUTOS_RESINCRONIZACION = 5;
+
+	// Cada cuanto revisa el controlador del pool la espera y la utilizacion, como en GeneradorCarga
+	private static final long SEGUNDOS_CONTROL_POOL = 1;
+
 	public static void main(String[] args) throws SQLException {
 
 		LOGGER.info("Comienzo de los tests");
@@ -29,6 +41,24 @@ public class AlquilerCoches {
 		// Crear las tablas y filas en base de datos para la prueba
 		ExecuteScript.run("sql/alquiler_coches.sql");
 
+		// Abrir las conexiones del pool, con las sentencias de los servicios ya preparadas, antes de empezar
+		CatalogoSentencias.precalentarEn(PoolDeConexiones.getInstance());
+		PoolDeConexiones.getInstance().warmUp();
+
+		// Ajustar el maximo del pool a la carga si se han dado limites en alquiler.pool.adaptativo
+		ControladorPool controlador = ControladorPool.configurado(PoolDeConexiones.getInstance());
+		if (controlador != null) {
+			controlador.iniciar(SEGUNDOS_CONTROL_POOL, TimeUnit.SECONDS);
+		}
+
+		// Cargar los filtros de existencia de clientes y vehiculos y publicar sus metricas por JMX
+		FiltrosExistencia.getInstance().resincronizar();
+		FiltrosExistencia.getInstance().registrarMBean();
+
+		// Cargar el indice de disponibilidad y mantenerlo al dia en segundo plano
+		IndiceDisponibilidad.getInstance().resincronizar();
+		IndiceDisponibilidad.getInstance().programarResincronizacion(MINUTOS_RESINCRONIZACION, TimeUnit.MINUTES);
+
 		// Ejecutar los tests
 		Tests tests = new Tests();
 		tests.ejecutarTests();
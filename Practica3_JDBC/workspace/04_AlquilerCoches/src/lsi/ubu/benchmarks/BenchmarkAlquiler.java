@@ -0,0 +1,250 @@
+package lsi.ubu.benchmarks;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.servicios.CatalogoSentencias;
+import lsi.ubu.servicios.EstrategiaBloqueo;
+import lsi.ubu.servicios.ModoAlquiler;
+import lsi.ubu.servicios.Servicio;
+import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.Histograma;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Benchmark de ServicioImpl.alquilar. Para cada combinacion de reservas por vehiculo, tamaño de flota y numero de
+ * hilos mide rendimiento (operaciones/s) y latencia de los tres caminos del alquiler:
+ * <ul>
+ * <li>EXITO: alquiler correcto en un intervalo libre</li>
+ * <li>VEHICULO_OCUPADO: el intervalo se solapa con la reserva futura de la flota</li>
+ * <li>CLIENTE_INEXISTENTE: cliente que no existe, que rechaza la consulta de lectura antes de insertar nada. El
+ * tratamiento de la violacion de clave ajena (ORA-02291) solo se alcanza si el cliente se borra entre la lectura y
+ * la insercion, y este benchmark no lo reproduce</li>
+ * <li>CONTENCION: todos los hilos alquilan el mismo coche y cada intervalo lo piden dos operaciones seguidas; solo
+ * una puede ganar, si ganan las dos se cuenta como error (reserva duplicada)</li>
+ * </ul>
+ *
+ * Con el argumento bloqueos=NINGUNO,SEGMENTADO,FOR_UPDATE se repite todo para cada {@link EstrategiaBloqueo}.
+ *
+ * Cada medida tiene una fase de calentamiento que no se contabiliza. Los parametros se pasan como argumentos
+ * clave=v1,v2,... por ejemplo:
+ *
+ * <pre>
+ * java lsi.ubu.benchmarks.BenchmarkAlquiler reservas=0,1000 flota=100 hilos=1,4,8 segundos=10
+ * </pre>
+ *
+ * Se ejecuta contra la base de datos configurada en el pool, igual que {@link lsi.ubu.tests.Tests}: necesita un
+ * Oracle XE en marcha, con sqlplus si se quiere cargar el script a mano. No hay una base de datos embebida que lo
+ * sustituya, porque sql/alquiler_coches.sql usa secuencias, PL/SQL y sintaxis propias de Oracle. Cada linea de
+ * resultados se escribe en formato CSV para poder comparar ejecuciones.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class BenchmarkAlquiler {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkAlquiler.class);
+
+	/** Camino del alquiler que se mide. */
+	public enum Escenario {
+		EXITO, VEHICULO_OCUPADO, CLIENTE_INEXISTENTE, CONTENCION
+	}
+
+	/** Dias desde hoy donde empiezan los intervalos de CONTENCION, lejos de los del escenario EXITO. */
+	private static final int INICIO_CONTENCION = 50000;
+
+	private final Servicio servicio;
+	private final FlotaSintetica flota;
+
+	/** Contador global de operaciones, para repartir vehiculos e intervalos sin repetir. */
+	private final AtomicLong secuencia = new AtomicLong();
+
+	/** Operaciones de CONTENCION y alquileres aceptados por intervalo. */
+	private final AtomicLong contencion = new AtomicLong();
+	private final ConcurrentMap<Long, AtomicInteger> aceptadosPorIntervalo = new ConcurrentHashMap<Long, AtomicInteger>();
+
+	public BenchmarkAlquiler(Servicio servicio, FlotaSintetica flota) {
+		this.servicio = servicio;
+		this.flota = flota;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Parametros p = new Parametros(args);
+
+		ExecuteScript.run(p.texto("script", "sql/alquiler_coches.sql"));
+		CatalogoSentencias.precalentarEn(PoolDeConexiones.getInstance());
+		PoolDeConexiones.getInstance().warmUp();
+		PoolDeConexiones.getInstance().registrarMetricas();
+
+		LOGGER.info("bloqueo;escenario;reservas;flota;hilos;ops/s;media_us;p50_us;p99_us;max_us;errores");
+		for (String bloqueo : p.textos("bloqueos", EstrategiaBloqueo.configurada().name())) {
+			Servicio servicio = new ServicioImpl(ModoAlquiler.configurado(), EstrategiaBloqueo.valueOf(bloqueo));
+			for (int reservas : p.enteros("reservas", 0, 100, 1000)) {
+				for (int vehiculos : p.enteros("flota", 10, 1000)) {
+					FlotaSintetica flota = new FlotaSintetica(vehiculos, reservas);
+					flota.preparar();
+					BenchmarkAlquiler benchmark = new BenchmarkAlquiler(servicio, flota);
+
+					for (String nombre : p.textos("escenarios", "EXITO,VEHICULO_OCUPADO,CLIENTE_INEXISTENTE")) {
+						Escenario escenario = Escenario.valueOf(nombre);
+						for (int hilos : p.enteros("hilos", 1, 4, 8)) {
+							benchmark.medir(escenario, hilos, p.enteros("calentamiento", 3)[0]);
+							Resultado r = benchmark.medir(escenario, hilos, p.enteros("segundos", 10)[0]);
+							LOGGER.info(String.format("%s;%s;%d;%d;%d;%.1f;%.1f;%d;%d;%d;%d", bloqueo, escenario,
+									reservas, vehiculos, hilos, r.getOperacionesPorSegundo(),
+									r.latencias.getMedia() / 1000.0, micros(r.latencias.percentil(50)),
+									micros(r.latencias.percentil(99)), micros(r.latencias.getMaximo()),
+									r.errores.get()));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lanza el escenario desde varios hilos durante el tiempo indicado.
+	 *
+	 * @param escenario camino a medir
+	 * @param hilos     numero de hilos concurrentes
+	 * @param segundos  duracion de la medida
+	 * @return operaciones, latencias y errores inesperados
+	 * @throws InterruptedException si se interrumpe la espera a los hilos
+	 */
+	public Resultado medir(final Escenario escenario, int hilos, int segundos) throws InterruptedException {
+		final Resultado resultado = new Resultado();
+		final long fin = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+
+		List<Thread> trabajadores = new ArrayList<Thread>();
+		for (int h = 0; h < hilos; h++) {
+			Thread hilo = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < fin) {
+						long inicio = System.nanoTime();
+						boolean esperado = ejecutar(escenario);
+						resultado.latencias.registrarDesde(inicio);
+						if (!esperado) {
+							resultado.errores.incrementAndGet();
+						}
+					}
+				}
+			}, "benchmark-" + h);
+			trabajadores.add(hilo);
+		}
+
+		long inicio = System.nanoTime();
+		for (Thread hilo : trabajadores) {
+			hilo.start();
+		}
+		for (Thread hilo : trabajadores) {
+			hilo.join();
+		}
+		resultado.nanos = System.nanoTime() - inicio;
+		return resultado;
+	}
+
+	/**
+	 * Ejecuta un alquiler del escenario indicado.
+	 *
+	 * @return true si el resultado es el esperado para el escenario
+	 */
+	private boolean ejecutar(Escenario escenario) {
+		if (escenario == Escenario.CONTENCION) {
+			return ejecutarContencion();
+		}
+
+		long n = secuencia.getAndIncrement();
+		String matricula = FlotaSintetica.matricula((int) (n % flota.getVehiculos()));
+
+		try {
+			switch (escenario) {
+			case EXITO: {
+				// Cada vuelta a la flota usa un intervalo de 3 dias posterior, asi nunca se solapan
+				int desde = FlotaSintetica.INICIO_LIBRE + 3 * (int) (n / flota.getVehiculos());
+				servicio.alquilar(FlotaSintetica.CLIENTE, matricula, flota.dia(desde), flota.dia(desde + 2));
+				return true;
+			}
+			case VEHICULO_OCUPADO: {
+				Date ini = flota.dia(FlotaSintetica.INICIO_BLOQUEO + 1);
+				servicio.alquilar(FlotaSintetica.CLIENTE, matricula, ini, flota.dia(FlotaSintetica.INICIO_BLOQUEO + 3));
+				return false;
+			}
+			case CLIENTE_INEXISTENTE: {
+				int desde = FlotaSintetica.INICIO_LIBRE;
+				servicio.alquilar(FlotaSintetica.CLIENTE_INEXISTENTE, matricula, flota.dia(desde),
+						flota.dia(desde + 2));
+				return false;
+			}
+			default:
+				return false;
+			}
+		} catch (SQLException e) {
+			return (escenario == Escenario.VEHICULO_OCUPADO
+					&& e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO)
+					|| (escenario == Escenario.CLIENTE_INEXISTENTE
+							&& e.getErrorCode() == AlquilerCochesException.CLIENTE_NO_EXIST);
+		}
+	}
+
+	/**
+	 * Dos operaciones seguidas piden el mismo intervalo del primer coche de la flota. Una debe acabar en
+	 * VEHICULO_OCUPADO; si las dos se aceptan el bloqueo no ha serializado el alquiler.
+	 *
+	 * @return true si el resultado es compatible con una ejecucion serializada
+	 */
+	private boolean ejecutarContencion() {
+		long intervalo = contencion.getAndIncrement() / 2;
+		int desde = INICIO_CONTENCION + 3 * (int) intervalo;
+		try {
+			servicio.alquilar(FlotaSintetica.CLIENTE, FlotaSintetica.matricula(0), flota.dia(desde),
+					flota.dia(desde + 2));
+		} catch (SQLException e) {
+			return e.getErrorCode() == AlquilerCochesException.VEHICULO_OCUPADO;
+		}
+		AtomicInteger nuevo = new AtomicInteger();
+		AtomicInteger aceptados = aceptadosPorIntervalo.putIfAbsent(intervalo, nuevo);
+		return (aceptados == null ? nuevo : aceptados).incrementAndGet() == 1;
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	/**
+	 * Resultado de una medida.
+	 */
+	public static class Resultado {
+		final Histograma latencias = new Histograma();
+		final AtomicLong errores = new AtomicLong();
+		long nanos;
+
+		public Histograma getLatencias() {
+			return latencias;
+		}
+
+		public long getErrores() {
+			return errores.get();
+		}
+
+		public double getOperacionesPorSegundo() {
+			return latencias.getCuenta() * 1e9 / nanos;
+		}
+	}
+}
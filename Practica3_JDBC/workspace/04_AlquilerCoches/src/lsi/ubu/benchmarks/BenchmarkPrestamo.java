@@ -0,0 +1,120 @@
+package lsi.ubu.benchmarks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.Histograma;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Latencia de pedir y devolver una conexion al pool, con la sesion configurada en cada prestamo (CADA_PRESTAMO,
+ * como se hacia antes) o una sola vez por conexion fisica con etiquetas de UCP (ETIQUETAS).
+ *
+ * Solo mide el prestamo: cada vuelta pide la conexion, la devuelve y no ejecuta nada. No hace falta el script de
+ * la base de datos, solo que el pool este publicado en JNDI.
+ *
+ * <pre>
+ * java lsi.ubu.benchmarks.BenchmarkPrestamo modos=CADA_PRESTAMO,ETIQUETAS hilos=1,4,8 segundos=10 rondas=3
+ * </pre>
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class BenchmarkPrestamo {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkPrestamo.class);
+
+	/** Forma de configurar la sesion que se mide. */
+	public enum Modo {
+		CADA_PRESTAMO, ETIQUETAS
+	}
+
+	private final PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+	public static void main(String[] args) throws Exception {
+		Parametros p = new Parametros(args);
+		BenchmarkPrestamo benchmark = new BenchmarkPrestamo();
+		benchmark.pool.warmUp();
+
+		LOGGER.info("ronda;modo;hilos;prestamos/s;media_us;p50_us;p99_us;max_us;errores");
+		for (int ronda = 0; ronda < p.enteros("rondas", 3)[0]; ronda++) {
+			for (String nombre : p.textos("modos", "CADA_PRESTAMO,ETIQUETAS")) {
+				Modo modo = Modo.valueOf(nombre);
+				for (int hilos : p.enteros("hilos", 1, 4, 8)) {
+					benchmark.medir(modo, hilos, p.enteros("calentamiento", 2)[0]);
+					Resultado r = benchmark.medir(modo, hilos, p.enteros("segundos", 10)[0]);
+					LOGGER.info(String.format("%d;%s;%d;%.1f;%.2f;%.2f;%.2f;%.2f;%d", ronda, modo, hilos,
+							r.latencias.getCuenta() * 1e9 / r.nanos, r.latencias.getMedia() / 1000.0,
+							r.latencias.percentil(50) / 1000.0, r.latencias.percentil(99) / 1000.0,
+							r.latencias.getMaximo() / 1000.0, r.errores.get()));
+				}
+			}
+		}
+		benchmark.pool.setEtiquetado(true);
+	}
+
+	/**
+	 * Pide y devuelve conexiones desde varios hilos durante el tiempo indicado.
+	 *
+	 * @param modo     configuracion de la sesion
+	 * @param hilos    numero de hilos concurrentes
+	 * @param segundos duracion de la medida
+	 * @return latencias de pedir y devolver cada conexion
+	 * @throws InterruptedException si se interrumpe la espera a los hilos
+	 */
+	public Resultado medir(Modo modo, int hilos, int segundos) throws InterruptedException {
+		pool.setEtiquetado(modo == Modo.ETIQUETAS);
+		final Resultado resultado = new Resultado();
+		final long fin = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+
+		List<Thread> trabajadores = new ArrayList<Thread>();
+		for (int h = 0; h < hilos; h++) {
+			Thread hilo = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < fin) {
+						long inicio = System.nanoTime();
+						try {
+							Connection con = pool.getConnection();
+							con.close();
+							resultado.latencias.registrarDesde(inicio);
+						} catch (SQLException e) {
+							resultado.errores.incrementAndGet();
+						}
+					}
+				}
+			}, "benchmark-prestamo-" + h);
+			trabajadores.add(hilo);
+		}
+
+		long inicio = System.nanoTime();
+		for (Thread hilo : trabajadores) {
+			hilo.start();
+		}
+		for (Thread hilo : trabajadores) {
+			hilo.join();
+		}
+		resultado.nanos = System.nanoTime() - inicio;
+		return resultado;
+	}
+
+	/**
+	 * Resultado de una medida.
+	 */
+	public static class Resultado {
+		final Histograma latencias = new Histograma();
+		final AtomicLong errores = new AtomicLong();
+		long nanos;
+	}
+}
@@ -0,0 +1,125 @@
+package lsi.ubu.benchmarks;
+
+import java.sql.SQLException;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.Misc;
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.servicios.ResultadoAlquiler;
+import lsi.ubu.servicios.Servicio;
+import lsi.ubu.servicios.ServicioImpl;
+
+/**
+ * Coste de un alquiler rechazado (SIN_DIAS, que se decide sin ir a la base de datos) segun como se comunique el
+ * rechazo:
+ * <ul>
+ * <li>TRAZA: excepcion como era antes, con traza de pila y un LOGGER.debug por cada marco</li>
+ * <li>EXCEPCION: {@link Servicio#alquilar} con la AlquilerCochesException actual, sin traza</li>
+ * <li>RESULTADO: {@link Servicio#intentarAlquilar}, sin excepcion</li>
+ * </ul>
+ * No necesita base de datos. El coste de TRAZA depende mucho de log4j.properties: con el nivel ALL y el fichero
+ * de log cada rechazo escribe decenas de lineas.
+ *
+ * <pre>
+ * java lsi.ubu.benchmarks.BenchmarkRechazos iteraciones=200000 rondas=5
+ * </pre>
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class BenchmarkRechazos {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkRechazos.class);
+
+	/** Forma de comunicar el rechazo que se mide. */
+	public enum Variante {
+		TRAZA, EXCEPCION, RESULTADO
+	}
+
+	private final Servicio servicio = new ServicioImpl();
+	private final Date hoy = Misc.getCurrentDate();
+
+	// Evita que el JIT elimine el trabajo medido
+	private long sumidero;
+
+	public static void main(String[] args) throws SQLException {
+		Parametros p = new Parametros(args);
+		int iteraciones = p.enteros("iteraciones", 200000)[0];
+		BenchmarkRechazos benchmark = new BenchmarkRechazos();
+
+		LOGGER.info("ronda;variante;ns/op");
+		for (int ronda = 0; ronda < p.enteros("rondas", 5)[0]; ronda++) {
+			for (String nombre : p.textos("variantes", "TRAZA,EXCEPCION,RESULTADO")) {
+				Variante variante = Variante.valueOf(nombre);
+				// La variante TRAZA es mucho mas lenta, con menos iteraciones basta
+				int n = variante == Variante.TRAZA ? Math.max(1, iteraciones / 100) : iteraciones;
+				LOGGER.info(String.format("%d;%s;%.1f", ronda, variante, benchmark.medir(variante, n)));
+			}
+		}
+		LOGGER.debug("sumidero={}", benchmark.sumidero);
+	}
+
+	/**
+	 * @return nanosegundos por rechazo
+	 */
+	public double medir(Variante variante, int iteraciones) throws SQLException {
+		long inicio = System.nanoTime();
+		for (int i = 0; i < iteraciones; i++) {
+			sumidero += rechazar(variante);
+		}
+		return (double) (System.nanoTime() - inicio) / iteraciones;
+	}
+
+	private int rechazar(Variante variante) throws SQLException {
+		switch (variante) {
+		case TRAZA:
+			try {
+				throw new ExcepcionConTraza(AlquilerCochesException.SIN_DIAS);
+			} catch (ExcepcionConTraza e) {
+				return e.getErrorCode();
+			}
+		case EXCEPCION:
+			try {
+				servicio.alquilar(FlotaSintetica.CLIENTE, "1234-ABC", hoy, hoy);
+				return 0;
+			} catch (AlquilerCochesException e) {
+				return e.getErrorCode();
+			}
+		default:
+			ResultadoAlquiler resultado = servicio.intentarAlquilar(FlotaSintetica.CLIENTE, "1234-ABC", hoy, hoy);
+			return resultado.getCodigo();
+		}
+	}
+
+	/**
+	 * Reproduce el constructor anterior de AlquilerCochesException para comparar.
+	 */
+	private static class ExcepcionConTraza extends SQLException {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final Logger LOGGER_EXCEPCION = LoggerFactory.getLogger(AlquilerCochesException.class);
+
+		private final int codigo;
+
+		ExcepcionConTraza(int codigo) {
+			this.codigo = codigo;
+			LOGGER_EXCEPCION.debug(AlquilerCochesException.mensajeDe(codigo));
+			for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
+				LOGGER_EXCEPCION.debug(ste.toString());
+			}
+		}
+
+		@Override
+		public int getErrorCode() {
+			return codigo;
+		}
+	}
+}
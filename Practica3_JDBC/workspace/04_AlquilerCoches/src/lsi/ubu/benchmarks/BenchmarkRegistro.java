@@ -0,0 +1,195 @@
+package lsi.ubu.benchmarks;
+
+import java.math.BigDecimal;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.servicios.ServicioImpl;
+
+/**
+ * Coste del registro de un alquiler correcto con cada configuracion de log4j: desde varios hilos se emiten las
+ * mismas lineas de LOGGER.debug que ServicioImpl en un alquiler, con el logger del servicio, y se mide cuantos
+ * alquileres por segundo salen solo con el registro.
+ * <ul>
+ * <li>log4j.properties: desarrollo, fichero sincrono con %l</li>
+ * <li>log4j-produccion.xml: AsyncAppender sin informacion de ubicacion, que descarta lo que no cabe en la cola</li>
+ * <li>log4j-produccion.xml:bloqueante: la misma, pero esperando a que haya sitio en la cola</li>
+ * <li>log4j-produccion.xml:sincrono: la misma, con los appenders del AsyncAppender colgados directamente del
+ * raiz</li>
+ * </ul>
+ * Cada configuracion se mide con el nivel del raiz forzado a cada uno de {@code niveles}, para que el cambio de
+ * nivel (con INFO las lineas de debug no se construyen) no se confunda con el del appender: solo las filas del
+ * mismo nivel son comparables. No necesita base de datos. Con nivel DEBUG escribe en res/log4.log.
+ *
+ * <pre>
+ * java lsi.ubu.benchmarks.BenchmarkRegistro hilos=1,8 segundos=10 niveles=DEBUG,INFO
+ *      configuraciones=log4j.properties,log4j-produccion.xml,log4j-produccion.xml:sincrono
+ * </pre>
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class BenchmarkRegistro {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkRegistro.class);
+
+	// El del servicio, para que se le apliquen los mismos niveles que en un alquiler de verdad
+	private static final Logger LOGGER_SERVICIO = LoggerFactory.getLogger(ServicioImpl.class);
+
+	private static final String CONFIGURACION_DESARROLLO = "log4j.properties";
+
+	private static final String SINCRONO = "sincrono";
+
+	private static final String BLOQUEANTE = "bloqueante";
+
+	public static void main(String[] args) throws InterruptedException {
+		Parametros p = new Parametros(args);
+		int segundos = p.enteros("segundos", 10)[0];
+		int calentamiento = p.enteros("calentamiento", 2)[0];
+
+		List<String> resultados = new ArrayList<String>();
+		for (String nivel : p.textos("niveles", "DEBUG,INFO")) {
+			for (String configuracion : p.textos("configuraciones", CONFIGURACION_DESARROLLO
+					+ ",log4j-produccion.xml,log4j-produccion.xml:" + SINCRONO)) {
+				configurar(configuracion);
+				LogManager.getRootLogger().setLevel(Level.toLevel(nivel));
+				for (int hilos : p.enteros("hilos", 1, 8)) {
+					medir(hilos, calentamiento);
+					double rendimiento = medir(hilos, segundos);
+					resultados.add(String.format("%s;%s;%d;%.0f;%.0f", nivel, configuracion, hilos, rendimiento,
+							hilos * 1e9 / rendimiento));
+				}
+			}
+		}
+
+		// Los resultados se escriben cuando ya se ha vaciado la cola del AsyncAppender
+		configurar(CONFIGURACION_DESARROLLO);
+		LOGGER.info("nivel;configuracion;hilos;alquileres/s;ns/alquiler");
+		for (String resultado : resultados) {
+			LOGGER.info(resultado);
+		}
+	}
+
+	/**
+	 * Sustituye la configuracion de log4j por la de un recurso del classpath. Antes se cierran los AsyncAppender,
+	 * que escriben lo que tengan en cola: si los cerrase resetConfiguration, lo haria con el cerrojo de la jerarquia
+	 * cogido y su hilo se quedaria esperandolo al crear el resumen de descartados. Con el sufijo :sincrono los AsyncAppender
+	 * del raiz se sustituyen por sus appenders, y con :bloqueante se dejan esperando a que haya sitio en la cola.
+	 */
+	private static void configurar(String configuracion) {
+		String[] partes = configuracion.split(":", 2);
+		String recurso = partes[0];
+		String variante = partes.length > 1 ? partes[1] : "";
+		if (!variante.isEmpty() && !SINCRONO.equals(variante) && !BLOQUEANTE.equals(variante)) {
+			throw new IllegalArgumentException("Variante desconocida: " + variante);
+		}
+
+		URL url = BenchmarkRegistro.class.getClassLoader().getResource(recurso);
+		if (url == null) {
+			throw new IllegalArgumentException("No se encuentra la configuracion en el classpath: " + recurso);
+		}
+		org.apache.log4j.Logger raiz = LogManager.getRootLogger();
+		for (AsyncAppender asincrono : asincronos(raiz)) {
+			raiz.removeAppender(asincrono);
+			asincrono.close();
+		}
+		LogManager.resetConfiguration();
+		if (recurso.endsWith(".xml")) {
+			DOMConfigurator.configure(url);
+		} else {
+			PropertyConfigurator.configure(url);
+		}
+
+		for (AsyncAppender asincrono : asincronos(raiz)) {
+			if (BLOQUEANTE.equals(variante)) {
+				asincrono.setBlocking(true);
+			} else if (SINCRONO.equals(variante)) {
+				// Se quitan uno a uno del AsyncAppender antes de cerrarlo: removeAllAppenders y close los cerrarian
+				List<Appender> destinos = new ArrayList<Appender>();
+				for (Enumeration<?> e = asincrono.getAllAppenders(); e.hasMoreElements();) {
+					destinos.add((Appender) e.nextElement());
+				}
+				raiz.removeAppender(asincrono);
+				for (Appender destino : destinos) {
+					asincrono.removeAppender(destino);
+					raiz.addAppender(destino);
+				}
+				asincrono.close();
+			}
+		}
+	}
+
+	private static List<AsyncAppender> asincronos(org.apache.log4j.Logger logger) {
+		List<AsyncAppender> asincronos = new ArrayList<AsyncAppender>();
+		for (Enumeration<?> e = logger.getAllAppenders(); e.hasMoreElements();) {
+			Object appender = e.nextElement();
+			if (appender instanceof AsyncAppender) {
+				asincronos.add((AsyncAppender) appender);
+			}
+		}
+		return asincronos;
+	}
+
+	/**
+	 * @return alquileres registrados por segundo entre todos los hilos
+	 */
+	private static double medir(int hilos, int segundos) throws InterruptedException {
+		final AtomicLong alquileres = new AtomicLong();
+		final long fin = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+
+		List<Thread> trabajadores = new ArrayList<Thread>();
+		for (int h = 0; h < hilos; h++) {
+			final String nif = String.format("%08dA", h);
+			trabajadores.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long n = 0;
+					while (System.nanoTime() < fin) {
+						registrarAlquiler(nif, "1234-ABC", (int) n);
+						n++;
+					}
+					alquileres.addAndGet(n);
+				}
+			}, "registro-" + h));
+		}
+
+		long inicio = System.nanoTime();
+		for (Thread hilo : trabajadores) {
+			hilo.start();
+		}
+		for (Thread hilo : trabajadores) {
+			hilo.join();
+		}
+		return alquileres.get() * 1e9 / (System.nanoTime() - inicio);
+	}
+
+	// Las mismas lineas, con los mismos argumentos, que ServicioImpl en un alquiler correcto
+	private static void registrarAlquiler(String nif, String matricula, int nroFactura) {
+		BigDecimal importe = BigDecimal.valueOf(nroFactura % 1000, 2);
+		LOGGER_SERVICIO.debug("Conexión obtenida para alquiler: nifCliente={}, matricula={}", nif, matricula);
+		LOGGER_SERVICIO.debug("Lectura comprobada para vehículo con matricula={}: {}", matricula, importe);
+		LOGGER_SERVICIO.debug("Reserva insertada para nifCliente={}, matricula={}", nif, matricula);
+		LOGGER_SERVICIO.debug("Factura generada: nroFactura={}, importeTotal={}", nroFactura, importe);
+		if (LOGGER_SERVICIO.isDebugEnabled()) {
+			LOGGER_SERVICIO.debug("Transacción completada para reserva: nifCliente={}, matricula={}, {}", nif,
+					matricula, nroFactura);
+		}
+	}
+}
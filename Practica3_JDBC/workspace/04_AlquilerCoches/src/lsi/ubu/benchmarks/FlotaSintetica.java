@@ -0,0 +1,141 @@
+package lsi.ubu.benchmarks;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.Misc;
+import lsi.ubu.servicios.FiltrosExistencia;
+import lsi.ubu.util.GeneradorIdentificadores;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Genera una flota de vehiculos y un historico de reservas sinteticos sobre los datos de inicializa_test, para
+ * medir el servicio de alquiler con volumenes realistas.
+ *
+ * Cada vehiculo tiene:
+ * <ul>
+ * <li>un historico de reservas pasadas de 2 dias, una cada 5 dias hacia atras desde hace 10 dias</li>
+ * <li>una reserva futura fija entre {@link #INICIO_BLOQUEO} y {@link #INICIO_BLOQUEO} + 2 dias, para provocar
+ * VEHICULO_OCUPADO</li>
+ * </ul>
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class FlotaSintetica {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(FlotaSintetica.class);
+
+	/** Cliente existente de inicializa_test. */
+	public static final String CLIENTE = "12345678A";
+
+	/** NIF que no existe en clientes. */
+	public static final String CLIENTE_INEXISTENTE = "00000000Z";
+
+	/** Dias desde hoy en los que empieza la reserva futura de cada vehiculo. */
+	public static final int INICIO_BLOQUEO = 100;
+
+	/** Dias desde hoy a partir de los cuales no hay ninguna reserva. */
+	public static final int INICIO_LIBRE = 200;
+
+	private static final int FILAS_POR_LOTE = 1000;
+
+	private final int vehiculos;
+	private final int reservasPorVehiculo;
+	private final Date hoy = Misc.getCurrentDate();
+
+	public FlotaSintetica(int vehiculos, int reservasPorVehiculo) {
+		this.vehiculos = vehiculos;
+		this.reservasPorVehiculo = reservasPorVehiculo;
+	}
+
+	public int getVehiculos() {
+		return vehiculos;
+	}
+
+	/**
+	 * Matricula del vehiculo i-esimo de la flota (8 caracteres como maximo).
+	 */
+	public static String matricula(int i) {
+		return String.format("B%07d", i);
+	}
+
+	/**
+	 * Fecha a tantos dias de hoy.
+	 */
+	public Date dia(int dias) {
+		return Misc.addDays(hoy, dias);
+	}
+
+	/**
+	 * Reinicia las tablas con inicializa_test y carga la flota y su historico.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void preparar() throws SQLException {
+		long inicio = System.currentTimeMillis();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			try (CallableStatement cst = con.prepareCall("{call inicializa_test}")) {
+				cst.execute();
+			}
+			GeneradorIdentificadores.getInstance().descartarBloques();
+
+			// inicializa_test crea los modelos 1 (Gasolina) y 2 (Gasoil)
+			try (PreparedStatement st = con.prepareStatement("INSERT INTO vehiculos VALUES (?, ?, 'BLANCO')")) {
+				for (int i = 0; i < vehiculos; i++) {
+					st.setString(1, matricula(i));
+					st.setInt(2, 1 + i % 2);
+					st.addBatch();
+					if ((i + 1) % FILAS_POR_LOTE == 0) {
+						st.executeBatch();
+					}
+				}
+				st.executeBatch();
+			}
+			for (int i = 0; i < vehiculos; i++) {
+				FiltrosExistencia.getInstance().registrarVehiculo(matricula(i));
+			}
+
+			try (PreparedStatement st = con.prepareStatement(
+					"INSERT INTO reservas VALUES (seq_reservas.nextval, ?, ?, ?, ?)")) {
+				int pendientes = 0;
+				for (int i = 0; i < vehiculos; i++) {
+					for (int r = 0; r <= reservasPorVehiculo; r++) {
+						// r == reservasPorVehiculo es la reserva futura que bloquea el vehiculo
+						int desplazamiento = r < reservasPorVehiculo ? -10 - 5 * r : INICIO_BLOQUEO;
+						st.setString(1, CLIENTE);
+						st.setString(2, matricula(i));
+						st.setDate(3, new java.sql.Date(dia(desplazamiento).getTime()));
+						st.setDate(4, new java.sql.Date(dia(desplazamiento + 2).getTime()));
+						st.addBatch();
+						if (++pendientes % FILAS_POR_LOTE == 0) {
+							st.executeBatch();
+						}
+					}
+				}
+				st.executeBatch();
+			}
+			con.commit();
+
+			try (CallableStatement cst = con.prepareCall(
+					"BEGIN DBMS_STATS.GATHER_TABLE_STATS(USER, 'RESERVAS'); END;")) {
+				cst.execute();
+			}
+		} finally {
+			con.close();
+		}
+		LOGGER.info("Flota sintetica preparada: vehiculos={}, reservas/vehiculo={}, {} ms", vehiculos,
+				reservasPorVehiculo, System.currentTimeMillis() - inicio);
+	}
+}
@@ -0,0 +1,50 @@
+package lsi.ubu.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Argumentos de linea de comandos de la forma clave=valor o clave=v1,v2,v3 para los benchmarks.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class Parametros {
+
+	private final Map<String, String> valores = new HashMap<String, String>();
+
+	public Parametros(String[] args) {
+		for (String arg : args) {
+			int igual = arg.indexOf('=');
+			if (igual <= 0) {
+				throw new IllegalArgumentException("Argumento no valido, se espera clave=valor: " + arg);
+			}
+			valores.put(arg.substring(0, igual).trim(), arg.substring(igual + 1).trim());
+		}
+	}
+
+	public String texto(String clave, String porDefecto) {
+		String valor = valores.get(clave);
+		return valor == null ? porDefecto : valor;
+	}
+
+	public String[] textos(String clave, String porDefecto) {
+		return texto(clave, porDefecto).split(",");
+	}
+
+	public int[] enteros(String clave, int... porDefecto) {
+		String valor = valores.get(clave);
+		if (valor == null) {
+			return porDefecto;
+		}
+		String[] partes = valor.split(",");
+		int[] enteros = new int[partes.length];
+		for (int i = 0; i < partes.length; i++) {
+			enteros[i] = Integer.parseInt(partes[i].trim());
+		}
+		return enteros;
+	}
+}
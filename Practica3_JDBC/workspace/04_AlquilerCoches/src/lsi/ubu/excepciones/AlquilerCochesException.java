@@ -2,9 +2,6 @@ package lsi.ubu.excepciones;
 
 import java.sql.SQLException;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
  * AlquierCochesException: Implementa las excepciones contextualizadas de la
  * transaccion de alquiler de coches
@@ -19,8 +16,6 @@ public class AlquilerCochesException extends SQLException {
 
 	private static final long serialVersionUID = 1L;
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(AlquilerCochesException.class);
-
 	public static final int CLIENTE_NO_EXIST = 1;
 	public static final int VEHICULO_NO_EXIST = 2;
 	public static final int SIN_DIAS = 3;
@@ -32,30 +27,36 @@ public class AlquilerCochesException extends SQLException {
 	public AlquilerCochesException(int code) {
 
 		codigo = code;
-		switch(codigo) {
+		mensaje = mensajeDe(codigo);
+	}
+
+	/**
+	 * Las excepciones de negocio son resultados esperados (vehiculo ocupado, dias incorrectos...), no fallos del
+	 * programa, asi que no se captura la traza de pila: es lo mas caro de crear una excepcion y nunca se consulta.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
+	/**
+	 * Texto asociado a un codigo de error, sin necesidad de crear la excepcion.
+	 *
+	 * @param code codigo de error
+	 * @return mensaje correspondiente
+	 */
+	public static String mensajeDe(int code) {
+		switch(code) {
 			case CLIENTE_NO_EXIST:
-				mensaje = "Cliente inexistente";
-				break;
+				return "Cliente inexistente";
 			case VEHICULO_NO_EXIST:
-				mensaje = "Vehículo inexistente";
-				break;
+				return "Vehículo inexistente";
 			case SIN_DIAS:
-				mensaje = "El número de días será mayor que cero";
-				break;
+				return "El número de días será mayor que cero";
 			case VEHICULO_OCUPADO:
-				mensaje = "El vehículo no está disponible";
-				break;	
+				return "El vehículo no está disponible";
 			default:
-				mensaje = "Excepción no definida";
-				break;
-		}
-		
-
-		LOGGER.debug(mensaje);
-
-		// Traza_de_pila
-		for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-			LOGGER.debug(ste.toString());
+				return "Excepción no definida";
 		}
 	}
 
@@ -0,0 +1,258 @@
+package lsi.ubu.servicios;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CachePrecios: Cache de tarifas por matricula. Evita repetir en cada alquiler la consulta
+ * vehiculos JOIN modelos JOIN precio_combustible, cuyas tablas apenas cambian.
+ *
+ * Es una cache LRU de tamaño maximo fijo y con caducidad (TTL) por entrada. Para que los alquileres concurrentes
+ * no se esperen todos en un mismo cerrojo, las matriculas se reparten en {@link #SEGMENTOS} segmentos, cada uno con
+ * su propio mapa en orden de acceso y su parte del tamaño maximo: el LRU es exacto dentro de cada segmento y
+ * aproximado en el conjunto. Cuando se modifiquen precios o
+ * modelos hay que llamar a {@link #invalidar(String)} o {@link #invalidarTodo()}; si no, los cambios se veran al
+ * caducar las entradas. Los vehiculos inexistentes no se guardan.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class CachePrecios {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(CachePrecios.class);
+
+	private static final int TAMANO_MAXIMO_DEFECTO = 1000;
+	private static final long TTL_DEFECTO = TimeUnit.MINUTES.toMillis(10);
+
+	/** Numero de segmentos, potencia de 2. */
+	static final int SEGMENTOS = 16;
+
+	private static final CachePrecios INSTANCIA = new CachePrecios();
+
+	private final AtomicLong aciertos = new AtomicLong();
+	private final AtomicLong fallos = new AtomicLong();
+	private final AtomicLong caducadas = new AtomicLong();
+
+	private volatile long ttl = TTL_DEFECTO;
+
+	private final Segmento[] segmentos = new Segmento[SEGMENTOS];
+
+	private CachePrecios() {
+		for (int i = 0; i < SEGMENTOS; i++) {
+			segmentos[i] = new Segmento(porSegmento(TAMANO_MAXIMO_DEFECTO));
+		}
+	}
+
+	/**
+	 * Obtiene la instancia compartida de la cache.
+	 */
+	public static CachePrecios getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Cambia el tamaño maximo y la caducidad. Un TTL de 0 desactiva la cache.
+	 *
+	 * @param tamanoMaximo numero maximo de matriculas guardadas, que se reparte entre los segmentos
+	 * @param ttl          tiempo de vida de cada entrada
+	 * @param unidad       unidad del TTL
+	 */
+	public synchronized void configurar(int tamanoMaximo, long ttl, TimeUnit unidad) {
+		this.ttl = unidad.toMillis(ttl);
+		for (Segmento segmento : segmentos) {
+			synchronized (segmento) {
+				segmento.maximo = porSegmento(tamanoMaximo);
+				segmento.clear();
+			}
+		}
+	}
+
+	/**
+	 * Obtiene la tarifa del vehiculo, de la cache o de la base de datos si no esta o ha caducado.
+	 *
+	 * @param con       conexion a utilizar si hay que consultar
+	 * @param matricula matricula del vehiculo
+	 * @return tarifa o null si el vehiculo no existe
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public PrecioModelo obtener(Connection con, String matricula) throws SQLException {
+		PrecioModelo precio = buscar(matricula);
+		if (precio != null) {
+			return precio;
+		}
+
+		try (PreparedStatement st = con.prepareStatement(CatalogoSentencias.CONSULTA_PRECIO)) {
+			st.setString(1, matricula);
+			try (ResultSet rs = st.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				precio = leerPrecio(rs);
+			}
+		}
+		guardar(matricula, precio);
+		return precio;
+	}
+
+	/**
+	 * Construye la tarifa a partir de la fila actual de una consulta con las columnas id_modelo, precio_cada_dia,
+	 * capacidad_deposito, tipo_combustible y precio_por_litro.
+	 *
+	 * @param rs cursor posicionado en la fila
+	 * @return tarifa leida
+	 * @throws SQLException si falta alguna columna
+	 */
+	static PrecioModelo leerPrecio(ResultSet rs) throws SQLException {
+		return new PrecioModelo(rs.getInt("id_modelo"), rs.getBigDecimal("precio_cada_dia"),
+				new BigDecimal(rs.getInt("capacidad_deposito")), rs.getString("tipo_combustible"),
+				rs.getBigDecimal("precio_por_litro"));
+	}
+
+	/**
+	 * Busca la tarifa solo en memoria, contabilizando acierto o fallo.
+	 *
+	 * @param matricula matricula del vehiculo
+	 * @return tarifa o null si no esta o ha caducado
+	 */
+	public PrecioModelo buscar(String matricula) {
+		Segmento segmento = segmento(matricula);
+		Entrada entrada;
+		synchronized (segmento) {
+			entrada = segmento.get(matricula);
+			if (entrada != null && System.currentTimeMillis() - entrada.creada >= ttl) {
+				segmento.remove(matricula);
+				entrada = null;
+				caducadas.incrementAndGet();
+			}
+		}
+		if (entrada == null) {
+			fallos.incrementAndGet();
+			return null;
+		}
+		aciertos.incrementAndGet();
+		return entrada.precio;
+	}
+
+	/**
+	 * Guarda una tarifa leida de la base de datos.
+	 */
+	public void guardar(String matricula, PrecioModelo precio) {
+		if (ttl > 0) {
+			Entrada entrada = new Entrada(precio);
+			Segmento segmento = segmento(matricula);
+			synchronized (segmento) {
+				segmento.put(matricula, entrada);
+			}
+		}
+	}
+
+	/**
+	 * Elimina la tarifa de un vehiculo, p.e. al cambiarlo de modelo.
+	 */
+	public void invalidar(String matricula) {
+		Segmento segmento = segmento(matricula);
+		synchronized (segmento) {
+			segmento.remove(matricula);
+		}
+	}
+
+	/**
+	 * Vacia la cache, p.e. al cambiar el precio de un combustible o de un modelo.
+	 */
+	public void invalidarTodo() {
+		for (Segmento segmento : segmentos) {
+			synchronized (segmento) {
+				segmento.clear();
+			}
+		}
+		LOGGER.debug("Cache de precios invalidada");
+	}
+
+	public long getAciertos() {
+		return aciertos.get();
+	}
+
+	public long getFallos() {
+		return fallos.get();
+	}
+
+	public long getCaducadas() {
+		return caducadas.get();
+	}
+
+	public int getTamano() {
+		int tamano = 0;
+		for (Segmento segmento : segmentos) {
+			synchronized (segmento) {
+				tamano += segmento.size();
+			}
+		}
+		return tamano;
+	}
+
+	/**
+	 * @return proporcion de aciertos sobre el total de busquedas, 0 si no ha habido ninguna
+	 */
+	public double getTasaAciertos() {
+		long a = aciertos.get();
+		long total = a + fallos.get();
+		return total == 0 ? 0 : (double) a / total;
+	}
+
+	private Segmento segmento(String matricula) {
+		int h = matricula.hashCode();
+		// Mezcla los bits altos con los bajos, como BloqueoSegmentado, antes de quedarnos con los de la mascara
+		return segmentos[(h ^ (h >>> 16)) & (SEGMENTOS - 1)];
+	}
+
+	/**
+	 * Parte del tamaño maximo que corresponde a cada segmento, redondeando hacia arriba.
+	 */
+	private static int porSegmento(int tamanoMaximo) {
+		return Math.max(1, (tamanoMaximo + SEGMENTOS - 1) / SEGMENTOS);
+	}
+
+	/**
+	 * Mapa en orden de acceso de un segmento: el primero es el menos usado y el que se expulsa. Se accede siempre
+	 * con su propio cerrojo.
+	 */
+	private static class Segmento extends LinkedHashMap<String, Entrada> {
+		private static final long serialVersionUID = 1L;
+
+		int maximo;
+
+		Segmento(int maximo) {
+			super(16, 0.75f, true);
+			this.maximo = maximo;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entrada> mayor) {
+			return size() > maximo;
+		}
+	}
+
+	private static class Entrada {
+		final PrecioModelo precio;
+		final long creada;
+
+		Entrada(PrecioModelo precio) {
+			this.precio = precio;
+			this.creada = System.currentTimeMillis();
+		}
+	}
+}
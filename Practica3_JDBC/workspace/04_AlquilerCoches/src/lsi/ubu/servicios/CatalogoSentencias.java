@@ -0,0 +1,140 @@
+package lsi.ubu.servicios;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import lsi.ubu.util.GeneradorIdentificadores;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * CatalogoSentencias: Todas las sentencias SQL que ejecutan los servicios en cada alquiler.
+ *
+ * Las sentencias se escriben una sola vez aqui para que el texto sea identico en todos los sitios que las usan: la
+ * cache implicita de sentencias de Oracle busca por el texto exacto. Con {@link #precalentarEn(PoolDeConexiones)}
+ * el pool prepara todas las del catalogo en cada conexion fisica nueva y ajusta el tamaño de la cache para que
+ * quepan, de modo que ni el primer alquiler sobre una conexion recien creada paga el analisis de las sentencias.
+ *
+ * Las cargas completas de los indices y filtros (IndiceDisponibilidad, FiltrosExistencia) no estan: se ejecutan
+ * de tarde en tarde y no merecen ocupar sitio en la cache.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public final class CatalogoSentencias {
+
+	/** Dias de alquiler cuando no se indica fecha de fin. */
+	static final int DIAS_DE_ALQUILER = 4;
+
+	/*
+	 * Fin efectivo de una reserva: su fecha_fin o, si no tiene, DIAS_DE_ALQUILER dias despues del inicio. Es la
+	 * expresion del indice reservas_ocupacion_idx, asi que las consultas que filtran por ella pueden usarlo.
+	 */
+	static final String FIN_RESERVA = "NVL(fecha_fin, fecha_ini + " + DIAS_DE_ALQUILER + ")";
+
+	/*
+	 * Busca una reserva del vehiculo que se solape con [fechaIni, fechaFin]. La expresion NVL(fecha_fin, ...) tiene
+	 * que coincidir con la del indice reservas_ocupacion_idx de alquiler_coches.sql para que Oracle lo utilice: asi
+	 * solo se recorren las reservas que terminan despues del inicio pedido, no todo el historico del coche.
+	 * Las fechas se pasan como TIMESTAMP y se convierten a DATE para no perder la hora al comparar sin que la
+	 * columna sufra una conversion implicita que anule el indice. Es publica para que MedicionDisponibilidad mida
+	 * la misma consulta que usa el servicio.
+	 */
+	public static final String CONSULTA_SOLAPE =
+		"SELECT 1 FROM reservas " +
+		"WHERE matricula = ? " +
+		"AND " + FIN_RESERVA + " >= CAST(? AS DATE) " +
+		"AND fecha_ini <= CAST(? AS DATE) " +
+		"AND ROWNUM = 1";
+
+	/*
+	 * Fase de lectura de alquilar() en una sola consulta: existencia del cliente, reserva que se solape y, con el
+	 * LEFT JOIN desde dual, la tarifa del vehiculo o nulos si no existe. Los parametros van en orden de aparicion:
+	 * nif, matricula, fecha inicio y fecha fin (de la subconsulta de solape) y matricula del vehiculo.
+	 */
+	static final String CONSULTA_LECTURA =
+		"SELECT (SELECT COUNT(*) FROM clientes WHERE NIF = ?) existe_cliente, " +
+		"(SELECT COUNT(*) FROM (" + CONSULTA_SOLAPE + ")) ocupado, " +
+		"v.matricula, m.id_modelo, m.precio_cada_dia, m.capacidad_deposito, m.tipo_combustible, " +
+		"p.precio_por_litro " +
+		"FROM dual " +
+		"LEFT JOIN vehiculos v ON v.matricula = ? " +
+		"LEFT JOIN modelos m ON m.id_modelo = v.id_modelo " +
+		"LEFT JOIN precio_combustible p ON p.tipo_combustible = m.tipo_combustible";
+
+	// Variante para cuando la tarifa ya esta en la cache de precios, que solo guarda vehiculos existentes
+	static final String CONSULTA_LECTURA_SIN_PRECIO =
+		"SELECT (SELECT COUNT(*) FROM clientes WHERE NIF = ?) existe_cliente, " +
+		"(SELECT COUNT(*) FROM (" + CONSULTA_SOLAPE + ")) ocupado " +
+		"FROM dual";
+
+	// Tarifa de un vehiculo, para la cache de precios
+	static final String CONSULTA_PRECIO =
+		"SELECT id_modelo, m.precio_cada_dia, m.capacidad_deposito, tipo_combustible, p.precio_por_litro " +
+		"FROM vehiculos v JOIN modelos m USING (id_modelo) " +
+		"JOIN precio_combustible p USING (tipo_combustible) " +
+		"WHERE v.matricula = ?";
+
+	static final String CONSULTA_CLIENTE = "SELECT NIF FROM clientes WHERE NIF = ?";
+
+	// Bloquea la fila del vehiculo hasta el commit o rollback, para la estrategia FOR_UPDATE
+	static final String BLOQUEO_VEHICULO = "SELECT matricula FROM vehiculos WHERE matricula = ? FOR UPDATE";
+
+	static final String INSERCION_RESERVA =
+		"INSERT INTO reservas (idReserva, cliente, matricula, fecha_ini, fecha_fin) " +
+		"VALUES (?, ?, ?, ?, ?)";
+
+	static final String INSERCION_FACTURA =
+		"INSERT INTO facturas (nroFactura, importe, cliente) " +
+		"VALUES (?, ?, ?)";
+
+	static final String INSERCION_LINEA_FACTURA =
+		"INSERT INTO lineas_factura (nroFactura, concepto, importe) " +
+		"VALUES (?, ?, ?)";
+
+	// Alquiler completo con el procedimiento almacenado (ModoAlquiler.PROCEDIMIENTO)
+	static final String LLAMADA_ALQUILAR = "{call alquilar(?, ?, ?, ?, ?, ?, ?)}";
+
+	static final String SECUENCIA_RESERVAS = "seq_reservas";
+	static final String SECUENCIA_FACTURAS = "seq_num_fact";
+
+	private static final List<String> TODAS = Collections.unmodifiableList(Arrays.asList(
+		CONSULTA_LECTURA,
+		CONSULTA_LECTURA_SIN_PRECIO,
+		CONSULTA_SOLAPE,
+		CONSULTA_PRECIO,
+		CONSULTA_CLIENTE,
+		BLOQUEO_VEHICULO,
+		INSERCION_RESERVA,
+		INSERCION_FACTURA,
+		INSERCION_LINEA_FACTURA,
+		LLAMADA_ALQUILAR,
+		// El generador de identificadores pide un bloque de cada secuencia cada pocos alquileres
+		GeneradorIdentificadores.CONSULTA_INCREMENTO,
+		GeneradorIdentificadores.consultaBloques(SECUENCIA_RESERVAS),
+		GeneradorIdentificadores.consultaBloques(SECUENCIA_FACTURAS)));
+
+	private CatalogoSentencias() {
+	}
+
+	/**
+	 * @return todas las sentencias del catalogo, sin repetir
+	 */
+	public static List<String> todas() {
+		return TODAS;
+	}
+
+	/**
+	 * Hace que el pool prepare el catalogo en cada conexion fisica y dimensione la cache de sentencias con el.
+	 * Conviene llamarlo antes de {@link PoolDeConexiones#warmUp()}, para que las conexiones iniciales ya queden
+	 * preparadas.
+	 *
+	 * @param pool pool de conexiones de los servicios
+	 */
+	public static void precalentarEn(PoolDeConexiones pool) {
+		pool.setSentenciasPrecalentadas(TODAS);
+	}
+}
@@ -0,0 +1,31 @@
+package lsi.ubu.servicios;
+
+/**
+ * EstrategiaBloqueo: Como serializa {@link ServicioImpl} dos alquileres simultaneos del mismo vehiculo, para que
+ * no pasen los dos la comprobacion de disponibilidad antes de que el otro inserte su reserva.
+ *
+ * Se elige con la propiedad de sistema {@value #PROPIEDAD} o pasandola al constructor de ServicioImpl.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public enum EstrategiaBloqueo {
+	NINGUNO, // Sin serializar: con READ_COMMITTED dos alquileres del mismo coche pueden solaparse
+	SEGMENTADO, // Cerrojo en memoria por matricula antes de pedir conexion; solo protege dentro de esta JVM
+	FOR_UPDATE; // SELECT ... FOR UPDATE sobre vehiculos; protege entre procesos pero retiene la conexion esperando
+
+	/** Propiedad de sistema con la estrategia por defecto. */
+	public static final String PROPIEDAD = "alquiler.bloqueo";
+
+	/**
+	 * Estrategia configurada en la propiedad de sistema, SEGMENTADO si no se indica.
+	 *
+	 * @return estrategia configurada
+	 */
+	public static EstrategiaBloqueo configurada() {
+		return valueOf(System.getProperty(PROPIEDAD, SEGMENTADO.name()).trim().toUpperCase());
+	}
+}
@@ -0,0 +1,351 @@
+package lsi.ubu.servicios;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.FiltroBloom;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * FiltrosExistencia: Filtros de Bloom con los NIF de clientes y las matriculas de vehiculos, para rechazar sin
+ * pedir conexion al pool los alquileres de un cliente o vehiculo que seguro que no existen.
+ *
+ * Igual que {@link IndiceDisponibilidad}, solo sirven para rechazar: si el filtro dice que el elemento puede
+ * existir, ServicioImpl lo sigue comprobando en la base de datos. Por eso un borrado en clientes o vehiculos no
+ * rompe nada (el filtro sigue diciendo "puede que exista") y basta con recargar de vez en cuando. Las altas, en
+ * cambio, son obligatorias: el servicio no da de alta clientes ni vehiculos, asi que quien los inserte tiene que
+ * anotarlos con {@link #registrarCliente(String)} o {@link #registrarVehiculo(String)} (como FlotaSintetica), o
+ * llamar a {@link #resincronizar()} despues de su commit si los inserta un script u otro proceso. Hasta entonces
+ * un cliente o vehiculo nuevo se rechazaria como inexistente. Mientras no se llame a {@link #cargar(Connection)} o
+ * {@link #resincronizar()} los filtros estan desactivados.
+ *
+ * En el alquiler individual cada filtro rechaza por su cuenta, sin ningun viaje a la base de datos, despues de
+ * {@link IndiceDisponibilidad}: primero vehiculo ocupado segun el indice, despues cliente y despues vehiculo
+ * inexistentes. El orden coincide con el de la base de datos salvo en dos casos raros: un cliente inexistente
+ * sobre un coche con una reserva que el indice aun no conoce se rechaza como cliente inexistente y no como
+ * ocupado, y un cliente inexistente que es falso positivo de su filtro con un vehiculo inexistente se rechaza como
+ * vehiculo inexistente. En ambos casos el alquiler se rechaza igualmente. En el alquiler por lotes los filtros se
+ * consultan despues de la comprobacion de solape y ahorran la consulta del cliente y de la tarifa.
+ *
+ * AlquilerCoches los carga al arrancar y los publica por JMX con el nombre {@link #NOMBRE}.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class FiltrosExistencia implements FiltrosExistenciaMBean {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(FiltrosExistencia.class);
+
+	/** Nombre JMX con el que se publica. */
+	public static final String NOMBRE = "lsi.ubu:type=FiltrosExistencia";
+
+	/** Tasa de falsos positivos con la que se dimensionan los filtros. */
+	private static final double TASA_OBJETIVO = 0.01;
+
+	// Se deja sitio para que las inserciones posteriores no degraden la tasa antes de la siguiente recarga
+	private static final int HOLGURA = 2;
+	private static final int MINIMO_ELEMENTOS = 1024;
+
+	private static final int FILAS_POR_VIAJE = 1000;
+
+	private static final FiltrosExistencia INSTANCIA = new FiltrosExistencia();
+
+	private volatile FiltroBloom clientes;
+	private volatile FiltroBloom vehiculos;
+	private volatile boolean cargado = false;
+
+	// Filtros que se estan construyendo: las inserciones que llegan durante la carga se anotan tambien en ellos
+	private volatile FiltroBloom clientesEnCarga;
+	private volatile FiltroBloom vehiculosEnCarga;
+
+	// Inexistentes que el filtro rechazo y que dejo pasar hasta la base de datos (falsos positivos observados)
+	private final AtomicLong rechazadosClientes = new AtomicLong();
+	private final AtomicLong falsosPositivosClientes = new AtomicLong();
+	private final AtomicLong rechazadosVehiculos = new AtomicLong();
+	private final AtomicLong falsosPositivosVehiculos = new AtomicLong();
+
+	private FiltrosExistencia() {
+	}
+
+	/**
+	 * Obtiene la instancia compartida de los filtros.
+	 */
+	public static FiltrosExistencia getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * @return true si los filtros se han cargado y se estan consultando
+	 */
+	@Override
+	public boolean isCargado() {
+		return cargado;
+	}
+
+	/**
+	 * Construye los filtros con todos los clientes y vehiculos. Los filtros anteriores se siguen usando hasta que
+	 * la carga termina.
+	 *
+	 * @param con conexion a la base de datos
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public synchronized void cargar(Connection con) throws SQLException {
+		try {
+			clientesEnCarga = dimensionar(con, "clientes");
+			vehiculosEnCarga = dimensionar(con, "vehiculos");
+			rellenar(con, "clientes", "NIF", clientesEnCarga);
+			rellenar(con, "vehiculos", "matricula", vehiculosEnCarga);
+
+			clientes = clientesEnCarga;
+			vehiculos = vehiculosEnCarga;
+			cargado = true;
+		} finally {
+			clientesEnCarga = null;
+			vehiculosEnCarga = null;
+		}
+		LOGGER.debug("Filtros de existencia cargados: {}", this);
+	}
+
+	/**
+	 * Vuelve a construir los filtros con una conexion del pool.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	@Override
+	public void resincronizar() throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			cargar(con);
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+	}
+
+	/**
+	 * Publica los filtros por JMX con el nombre {@link #NOMBRE}. Si ya habia otros publicados, los sustituye.
+	 */
+	public void registrarMBean() {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombre = new ObjectName(NOMBRE);
+			if (servidor.isRegistered(nombre)) {
+				servidor.unregisterMBean(nombre);
+			}
+			servidor.registerMBean(this, nombre);
+			LOGGER.info("Filtros de existencia publicados por JMX como {}", NOMBRE);
+		} catch (JMException e) {
+			LOGGER.warn("No se pudieron publicar los filtros de existencia por JMX: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Desactiva los filtros: a partir de ahora todo se comprueba en la base de datos.
+	 */
+	public void desactivar() {
+		cargado = false;
+		clientes = null;
+		vehiculos = null;
+	}
+
+	/**
+	 * @return true solo si los filtros estan cargados y el cliente seguro que no existe
+	 */
+	public boolean clienteInexistente(String nif) {
+		if (!descarta(clientes, nif)) {
+			return false;
+		}
+		rechazadosClientes.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return true solo si los filtros estan cargados y el vehiculo seguro que no existe
+	 */
+	public boolean vehiculoInexistente(String matricula) {
+		if (!descarta(vehiculos, matricula)) {
+			return false;
+		}
+		rechazadosVehiculos.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Anota un cliente recien insertado.
+	 */
+	public void registrarCliente(String nif) {
+		anadir(clientesEnCarga, nif);
+		anadir(clientes, nif);
+	}
+
+	/**
+	 * Anota un vehiculo recien insertado.
+	 */
+	public void registrarVehiculo(String matricula) {
+		anadir(vehiculosEnCarga, matricula);
+		anadir(vehiculos, matricula);
+	}
+
+	/**
+	 * Anota un cliente que la base de datos no tiene. Solo cuenta como falso positivo si el filtro lo dejaba pasar,
+	 * no cuando los filtros estaban desactivados al comprobarlo.
+	 */
+	public void falsoPositivoCliente(String nif) {
+		if (cargado && !descarta(clientes, nif)) {
+			falsosPositivosClientes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Anota un vehiculo que la base de datos no tiene. Solo cuenta como falso positivo si el filtro lo dejaba pasar.
+	 */
+	public void falsoPositivoVehiculo(String matricula) {
+		if (cargado && !descarta(vehiculos, matricula)) {
+			falsosPositivosVehiculos.incrementAndGet();
+		}
+	}
+
+	@Override
+	public long getElementosClientes() {
+		FiltroBloom filtro = clientes;
+		return filtro == null ? 0 : filtro.getElementos();
+	}
+
+	@Override
+	public long getElementosVehiculos() {
+		FiltroBloom filtro = vehiculos;
+		return filtro == null ? 0 : filtro.getElementos();
+	}
+
+	@Override
+	public long getRechazadosClientes() {
+		return rechazadosClientes.get();
+	}
+
+	@Override
+	public long getRechazadosVehiculos() {
+		return rechazadosVehiculos.get();
+	}
+
+	@Override
+	public long getFalsosPositivosClientes() {
+		return falsosPositivosClientes.get();
+	}
+
+	@Override
+	public long getFalsosPositivosVehiculos() {
+		return falsosPositivosVehiculos.get();
+	}
+
+	@Override
+	public void reiniciar() {
+		rechazadosClientes.set(0);
+		falsosPositivosClientes.set(0);
+		rechazadosVehiculos.set(0);
+		falsosPositivosVehiculos.set(0);
+	}
+
+	/**
+	 * @return proporcion de clientes inexistentes que el filtro no ha sabido rechazar
+	 */
+	@Override
+	public double getTasaObservadaClientes() {
+		return tasa(falsosPositivosClientes.get(), rechazadosClientes.get());
+	}
+
+	/**
+	 * @return proporcion de vehiculos inexistentes que el filtro no ha sabido rechazar
+	 */
+	@Override
+	public double getTasaObservadaVehiculos() {
+		return tasa(falsosPositivosVehiculos.get(), rechazadosVehiculos.get());
+	}
+
+	/**
+	 * @return tasa de falsos positivos esperada del filtro de clientes con su ocupacion actual
+	 */
+	@Override
+	public double getTasaEstimadaClientes() {
+		FiltroBloom filtro = clientes;
+		return filtro == null ? 0 : filtro.getTasaFalsosPositivos();
+	}
+
+	/**
+	 * @return tasa de falsos positivos esperada del filtro de vehiculos con su ocupacion actual
+	 */
+	@Override
+	public double getTasaEstimadaVehiculos() {
+		FiltroBloom filtro = vehiculos;
+		return filtro == null ? 0 : filtro.getTasaFalsosPositivos();
+	}
+
+	/**
+	 * @return memoria ocupada por los dos filtros, en bytes
+	 */
+	@Override
+	public long getBytes() {
+		FiltroBloom c = clientes;
+		FiltroBloom v = vehiculos;
+		return (c == null ? 0 : c.getBytes()) + (v == null ? 0 : v.getBytes());
+	}
+
+	@Override
+	public String toString() {
+		FiltroBloom c = clientes;
+		FiltroBloom v = vehiculos;
+		return String.format(
+				"clientes=%d (%d bytes, fp estimada=%.4f, observada=%.4f), vehiculos=%d (%d bytes, fp estimada=%.4f, observada=%.4f)",
+				c == null ? 0 : c.getElementos(), c == null ? 0 : c.getBytes(), getTasaEstimadaClientes(),
+				getTasaObservadaClientes(), v == null ? 0 : v.getElementos(), v == null ? 0 : v.getBytes(),
+				getTasaEstimadaVehiculos(), getTasaObservadaVehiculos());
+	}
+
+	private boolean descarta(FiltroBloom filtro, String elemento) {
+		return cargado && filtro != null && !filtro.puedeContener(elemento);
+	}
+
+	private static void anadir(FiltroBloom filtro, String elemento) {
+		if (filtro != null) {
+			filtro.anadir(elemento);
+		}
+	}
+
+	private static FiltroBloom dimensionar(Connection con, String tabla) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement("SELECT COUNT(*) FROM " + tabla);
+				ResultSet rs = st.executeQuery()) {
+			rs.next();
+			return new FiltroBloom(Math.max(MINIMO_ELEMENTOS, HOLGURA * rs.getLong(1)), TASA_OBJETIVO);
+		}
+	}
+
+	private static void rellenar(Connection con, String tabla, String columna, FiltroBloom filtro)
+			throws SQLException {
+		try (PreparedStatement st = con.prepareStatement("SELECT " + columna + " FROM " + tabla)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					filtro.anadir(rs.getString(1));
+				}
+			}
+		}
+	}
+
+	private static double tasa(long falsosPositivos, long rechazados) {
+		long inexistentes = falsosPositivos + rechazados;
+		return inexistentes == 0 ? 0 : (double) falsosPositivos / inexistentes;
+	}
+}
@@ -0,0 +1,58 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLException;
+
+/**
+ * Interfaz JMX de {@link FiltrosExistencia}.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public interface FiltrosExistenciaMBean {
+
+	boolean isCargado();
+
+	long getElementosClientes();
+
+	long getElementosVehiculos();
+
+	/**
+	 * Memoria de los dos filtros en bytes.
+	 */
+	long getBytes();
+
+	/**
+	 * Alquileres rechazados por el filtro de clientes sin ir a la base de datos.
+	 */
+	long getRechazadosClientes();
+
+	long getRechazadosVehiculos();
+
+	/**
+	 * Clientes inexistentes que el filtro dejo pasar hasta la base de datos.
+	 */
+	long getFalsosPositivosClientes();
+
+	long getFalsosPositivosVehiculos();
+
+	double getTasaEstimadaClientes();
+
+	double getTasaEstimadaVehiculos();
+
+	double getTasaObservadaClientes();
+
+	double getTasaObservadaVehiculos();
+
+	/**
+	 * Reconstruye los filtros desde la base de datos.
+	 */
+	void resincronizar() throws SQLException;
+
+	/**
+	 * Pone a cero los contadores de rechazos y falsos positivos.
+	 */
+	void reiniciar();
+}
@@ -0,0 +1,554 @@
+package lsi.ubu.servicios;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.GeneradorIdentificadores;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * ImportadorHistorico: Carga masiva de reservas, facturas y lineas de factura historicas desde ficheros CSV
+ * exportados por otra instalacion.
+ *
+ * Se esperan en un directorio reservas.csv (idReserva;cliente;matricula;fecha_ini;fecha_fin), facturas.csv
+ * (nroFactura;importe;cliente) y lineas_factura.csv (nroFactura;concepto;importe), con cabecera, separados por ';'
+ * y con las fechas en dd-MM-yyyy. Un campo puede ir entre comillas dobles si contiene ';'.
+ *
+ * <ul>
+ * <li>Los ficheros se leen linea a linea; solo se guardan en memoria las claves de clientes y vehiculos y las claves
+ * primarias de reservas, facturas y lineas, y con ellas se descartan antes de insertar las filas que violarian una
+ * clave ajena o repetirian una clave primaria (ya existente o repetida en el propio fichero).</li>
+ * <li>Las filas se insertan en lotes JDBC grandes. Si la tabla no tiene claves ajenas ni triggers activos se usa
+ * el hint APPEND_VALUES (carga directa); si los tiene Oracle lo ignoraria, asi que se inserta de forma
+ * convencional.</li>
+ * <li>Se hace commit cada cierto numero de filas insertadas, justo despues de enviar un lote, y, en la misma
+ * transaccion, se guarda en importacion_puntos la ultima linea confirmada de cada fichero, con clave identificador
+ * de importacion + nombre del fichero. Si la
+ * importacion se corta, al relanzarla con el mismo identificador se continua desde ahi; un fichero ya importado
+ * entero no se vuelve a cargar. Por defecto el identificador es la ruta absoluta del directorio, de modo que el
+ * facturas.csv de otra franquicia (otro directorio u otro identificador) se importa desde el principio.</li>
+ * <li>Los identificadores de reservas y facturas se conservan. Al terminar se avanzan seq_reservas y seq_num_fact
+ * por encima del mayor identificador para que los bloques de {@link GeneradorIdentificadores} no choquen con
+ * ellos. Los bloques que otros procesos ya tengan en memoria no se pueden recuperar, asi que la importacion se
+ * debe lanzar sin alquileres en marcha.</li>
+ * </ul>
+ *
+ * <pre>
+ * java lsi.ubu.servicios.ImportadorHistorico directorio [lote] [commit] [importacion]
+ * </pre>
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class ImportadorHistorico {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ImportadorHistorico.class);
+
+	/** Tablas que se importan, en orden: las lineas necesitan sus facturas. */
+	public enum Tabla {
+		RESERVAS("reservas", 5,
+				"INSERT %s INTO reservas (idReserva, cliente, matricula, fecha_ini, fecha_fin) VALUES (?, ?, ?, ?, ?)"),
+		FACTURAS("facturas", 3, "INSERT %s INTO facturas (nroFactura, importe, cliente) VALUES (?, ?, ?)"),
+		LINEAS_FACTURA("lineas_factura", 3,
+				"INSERT %s INTO lineas_factura (nroFactura, concepto, importe) VALUES (?, ?, ?)");
+
+		private final String nombre;
+		private final int campos;
+		private final String insercion;
+
+		Tabla(String nombre, int campos, String insercion) {
+			this.nombre = nombre;
+			this.campos = campos;
+			this.insercion = insercion;
+		}
+
+		public String getFichero() {
+			return nombre + ".csv";
+		}
+	}
+
+	private static final String CONSULTA_RESTRICCIONES =
+		"SELECT (SELECT COUNT(*) FROM user_constraints " +
+		"WHERE table_name = ? AND constraint_type = 'R' AND status = 'ENABLED') + " +
+		"(SELECT COUNT(*) FROM user_triggers WHERE table_name = ? AND status = 'ENABLED') FROM dual";
+
+	private static final String CONSULTA_PUNTO = "SELECT lineas FROM importacion_puntos WHERE fichero = ?";
+
+	private static final String GUARDAR_PUNTO =
+		"MERGE INTO importacion_puntos p USING dual ON (p.fichero = ?) " +
+		"WHEN MATCHED THEN UPDATE SET lineas = ? " +
+		"WHEN NOT MATCHED THEN INSERT (fichero, lineas) VALUES (?, ?)";
+
+	private static final int FILAS_POR_VIAJE = 1000;
+
+	// Rechazos que se detallan en el log por fichero; del resto solo se da el total
+	private static final int RECHAZOS_DETALLADOS = 10;
+
+	private static final int LONGITUD_CONCEPTO = 40;
+
+	// Longitud de importacion_puntos.fichero
+	private static final int LONGITUD_PUNTO = 400;
+
+	private final int filasPorLote;
+	private final int filasPorCommit;
+
+	private final SimpleDateFormat formatoFechas = new SimpleDateFormat("dd-MM-yyyy");
+
+	// Claves para validar las claves ajenas y primarias sin ir a la base de datos
+	private final Set<String> clientes = new HashSet<String>();
+	private final Set<String> vehiculos = new HashSet<String>();
+	private final BitSet reservas = new BitSet();
+	private final BitSet facturas = new BitSet();
+	private final Set<String> lineas = new HashSet<String>();
+
+	/**
+	 * @param filasPorLote   filas de cada executeBatch
+	 * @param filasPorCommit filas insertadas entre commits; se redondea a un multiplo del lote para que cada commit
+	 *                       caiga al final de un lote. Las lineas rechazadas o en blanco no cuentan
+	 */
+	public ImportadorHistorico(int filasPorLote, int filasPorCommit) {
+		if (filasPorLote < 1 || filasPorCommit < 1) {
+			throw new IllegalArgumentException("Tamaños de lote y commit incorrectos: " + filasPorLote + ", "
+					+ filasPorCommit);
+		}
+		this.filasPorLote = filasPorLote;
+		this.filasPorCommit = Math.max(1, filasPorCommit / filasPorLote) * filasPorLote;
+		formatoFechas.setLenient(false);
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args directorio con los CSV y, opcionalmente, filas por lote (5000), filas por commit (50000) e
+	 *             identificador de la importacion (la ruta absoluta del directorio)
+	 */
+	public static void main(String[] args) throws Exception {
+		Path directorio = Paths.get(args.length > 0 ? args[0] : ".");
+		ImportadorHistorico importador = new ImportadorHistorico(args.length > 1 ? Integer.parseInt(args[1]) : 5000,
+				args.length > 2 ? Integer.parseInt(args[2]) : 50000);
+		List<Resultado> resultados = args.length > 3 ? importador.importar(directorio, args[3])
+				: importador.importar(directorio);
+		for (Resultado resultado : resultados) {
+			LOGGER.info(resultado.toString());
+		}
+	}
+
+	/**
+	 * Importa los ficheros del directorio con su ruta absoluta como identificador de importacion.
+	 *
+	 * @see #importar(Path, String)
+	 */
+	public List<Resultado> importar(Path directorio) throws SQLException, IOException {
+		return importar(directorio, directorio.toAbsolutePath().normalize().toString());
+	}
+
+	/**
+	 * Importa los ficheros del directorio que existan, en el orden de {@link Tabla}, y avanza las secuencias.
+	 *
+	 * @param directorio  directorio con los CSV
+	 * @param importacion identificador de la importacion, para reanudarla; distinto para cada origen
+	 * @return resultado de cada fichero importado
+	 * @throws SQLException si falla la base de datos; lo confirmado hasta el ultimo commit se conserva
+	 * @throws IOException  si no se puede leer un fichero
+	 */
+	public List<Resultado> importar(Path directorio, String importacion) throws SQLException, IOException {
+		List<Resultado> resultados = new ArrayList<Resultado>();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			cargarClaves(con);
+			for (Tabla tabla : Tabla.values()) {
+				Path fichero = directorio.resolve(tabla.getFichero());
+				if (Files.exists(fichero)) {
+					resultados.add(importar(con, tabla, fichero, clavePunto(importacion, tabla)));
+				}
+			}
+			// ALTER SEQUENCE confirma la transaccion, pero aqui ya esta todo confirmado
+			boolean avanzadas = avanzarSecuencia(con, "reservas", "idReserva", CatalogoSentencias.SECUENCIA_RESERVAS);
+			avanzadas |= avanzarSecuencia(con, "facturas", "nroFactura", CatalogoSentencias.SECUENCIA_FACTURAS);
+			if (avanzadas) {
+				GeneradorIdentificadores.getInstance().descartarBloques();
+			}
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+		return resultados;
+	}
+
+	private static String clavePunto(String importacion, Tabla tabla) {
+		String clave = importacion + "/" + tabla.getFichero();
+		if (clave.length() > LONGITUD_PUNTO) {
+			throw new IllegalArgumentException("Identificador de importacion demasiado largo: " + importacion);
+		}
+		return clave;
+	}
+
+	private void cargarClaves(Connection con) throws SQLException {
+		cargar(con, "SELECT NIF FROM clientes", clientes);
+		cargar(con, "SELECT matricula FROM vehiculos", vehiculos);
+		cargar(con, "SELECT idReserva FROM reservas", reservas);
+		cargar(con, "SELECT nroFactura FROM facturas", facturas);
+		// concepto es char(40): Oracle compara sin los espacios de relleno
+		cargar(con, "SELECT nroFactura || ';' || RTRIM(concepto) FROM lineas_factura", lineas);
+		LOGGER.debug("Claves cargadas: clientes={}, vehiculos={}, reservas={}, facturas={}, lineas={}",
+				clientes.size(), vehiculos.size(), reservas.cardinality(), facturas.cardinality(), lineas.size());
+	}
+
+	private static void cargar(Connection con, String consulta, BitSet claves) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(consulta)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					// Los identificadores negativos no los genera nadie y el importador los rechaza
+					if (rs.getInt(1) >= 0) {
+						claves.set(rs.getInt(1));
+					}
+				}
+			}
+		}
+	}
+
+	private static void cargar(Connection con, String consulta, Set<String> claves) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(consulta)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					claves.add(rs.getString(1));
+				}
+			}
+		}
+	}
+
+	private Resultado importar(Connection con, Tabla tabla, Path fichero, String clave)
+			throws SQLException, IOException {
+		long confirmadas = leerPunto(con, clave);
+		boolean directa = admiteCargaDirecta(con, tabla);
+		Resultado resultado = new Resultado(clave, confirmadas, directa);
+		LOGGER.info("Importando {} en {} desde la linea {} ({})", clave, tabla.nombre, confirmadas + 1,
+				directa ? "carga directa" : "insercion convencional");
+
+		long inicio = System.nanoTime();
+		try (BufferedReader lector = Files.newBufferedReader(fichero, StandardCharsets.UTF_8);
+				PreparedStatement insercion = con
+						.prepareStatement(String.format(tabla.insercion, directa ? "/*+ APPEND_VALUES */" : ""));
+				PreparedStatement punto = con.prepareStatement(GUARDAR_PUNTO)) {
+
+			lector.readLine(); // cabecera
+			long linea = 0;
+			int enLote = 0;
+			int sinConfirmar = 0;
+			String texto;
+			while ((texto = lector.readLine()) != null) {
+				linea++;
+				if (linea <= confirmadas || texto.trim().isEmpty()) {
+					continue;
+				}
+				String error = enlazar(tabla, partir(texto), insercion);
+				if (error == null) {
+					insercion.addBatch();
+					enLote++;
+					sinConfirmar++;
+					resultado.insertadas++;
+				} else {
+					resultado.rechazar(linea, error);
+				}
+				if (enLote == filasPorLote) {
+					insercion.executeBatch();
+					enLote = 0;
+					if (sinConfirmar == filasPorCommit) {
+						confirmar(con, insercion, punto, clave, linea, resultado, inicio);
+						sinConfirmar = 0;
+					}
+				}
+			}
+			confirmar(con, insercion, punto, clave, linea, resultado, inicio);
+		}
+		return resultado;
+	}
+
+	/**
+	 * Envia lo que quede del lote y confirma junto con el punto de reanudacion.
+	 */
+	private static void confirmar(Connection con, PreparedStatement insercion, PreparedStatement punto, String clave,
+			long linea, Resultado resultado, long inicio) throws SQLException {
+		insercion.executeBatch();
+		punto.setString(1, clave);
+		punto.setLong(2, linea);
+		punto.setString(3, clave);
+		punto.setLong(4, linea);
+		punto.executeUpdate();
+		con.commit();
+
+		resultado.lineas = linea;
+		resultado.nanos = System.nanoTime() - inicio;
+		LOGGER.info("  {}: linea {}, {} filas insertadas ({} filas/s), {} rechazadas", clave, linea,
+				resultado.insertadas, Math.round(resultado.getFilasPorSegundo()), resultado.rechazadas);
+	}
+
+	/**
+	 * Avanza la secuencia para que el primer bloque que reparta despues quede por encima del mayor identificador de
+	 * la tabla. Se pide un nextval, que es mayor que cualquier valor que la secuencia tenga en cache; si su bloque
+	 * [v - incremento + 1, v] aun no pasa del maximo, se sube el incremento lo justo (en multiplos del incremento,
+	 * para no desalinear los bloques), se pide otro nextval y se restaura el incremento, como hace reset_seq.
+	 *
+	 * @return true si se ha tenido que avanzar
+	 */
+	private static boolean avanzarSecuencia(Connection con, String tabla, String columna, String secuencia)
+			throws SQLException {
+		long maximo = consultar(con, "SELECT NVL(MAX(" + columna + "), 0) FROM " + tabla, null);
+		long incremento = consultar(con, GeneradorIdentificadores.CONSULTA_INCREMENTO, secuencia);
+		long valor = consultar(con, "SELECT " + secuencia + ".nextval FROM dual", null);
+		if (valor - incremento + 1 > maximo) {
+			return false;
+		}
+
+		long salto = ((maximo - valor + incremento - 1) / incremento + 1) * incremento;
+		try (Statement st = con.createStatement()) {
+			st.execute("ALTER SEQUENCE " + secuencia + " INCREMENT BY " + salto);
+			try {
+				valor = consultar(con, "SELECT " + secuencia + ".nextval FROM dual", null);
+			} finally {
+				st.execute("ALTER SEQUENCE " + secuencia + " INCREMENT BY " + incremento);
+			}
+		}
+		LOGGER.info("{} avanzada hasta {}: {}.{} llega a {}", secuencia, valor, tabla, columna, maximo);
+		return true;
+	}
+
+	private static long consultar(Connection con, String consulta, String parametro) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(consulta)) {
+			if (parametro != null) {
+				st.setString(1, parametro);
+			}
+			try (ResultSet rs = st.executeQuery()) {
+				rs.next();
+				return rs.getLong(1);
+			}
+		}
+	}
+
+	private static long leerPunto(Connection con, String clave) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(CONSULTA_PUNTO)) {
+			st.setString(1, clave);
+			try (ResultSet rs = st.executeQuery()) {
+				return rs.next() ? rs.getLong(1) : 0;
+			}
+		}
+	}
+
+	private static boolean admiteCargaDirecta(Connection con, Tabla tabla) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(CONSULTA_RESTRICCIONES)) {
+			st.setString(1, tabla.nombre.toUpperCase());
+			st.setString(2, tabla.nombre.toUpperCase());
+			try (ResultSet rs = st.executeQuery()) {
+				rs.next();
+				return rs.getInt(1) == 0;
+			}
+		}
+	}
+
+	/**
+	 * Valida una fila y pone sus parametros en la sentencia.
+	 *
+	 * @return null si la fila es correcta, o el motivo del rechazo
+	 */
+	private String enlazar(Tabla tabla, String[] campos, PreparedStatement st) throws SQLException {
+		if (campos.length != tabla.campos) {
+			return "se esperaban " + tabla.campos + " campos y hay " + campos.length;
+		}
+		try {
+			switch (tabla) {
+			case RESERVAS:
+				if (!clientes.contains(campos[1])) {
+					return "cliente inexistente " + campos[1];
+				}
+				if (!vehiculos.contains(campos[2])) {
+					return "vehiculo inexistente " + campos[2];
+				}
+				int idReserva = Integer.parseInt(campos[0]);
+				if (idReserva < 0) {
+					return "identificador de reserva negativo";
+				}
+				if (reservas.get(idReserva)) {
+					return "reserva repetida " + idReserva;
+				}
+				Date fechaIni = formatoFechas.parse(campos[3]);
+				Date fechaFin = campos[4].isEmpty() ? null : formatoFechas.parse(campos[4]);
+				if (fechaFin != null && fechaFin.before(fechaIni)) {
+					return "fecha_fin anterior a fecha_ini";
+				}
+				st.setInt(1, idReserva);
+				st.setString(2, campos[1]);
+				st.setString(3, campos[2]);
+				st.setDate(4, new java.sql.Date(fechaIni.getTime()));
+				if (fechaFin == null) {
+					st.setNull(5, Types.DATE);
+				} else {
+					st.setDate(5, new java.sql.Date(fechaFin.getTime()));
+				}
+				reservas.set(idReserva);
+				return null;
+
+			case FACTURAS:
+				if (!clientes.contains(campos[2])) {
+					return "cliente inexistente " + campos[2];
+				}
+				int nroFactura = Integer.parseInt(campos[0]);
+				if (nroFactura < 0) {
+					return "numero de factura negativo";
+				}
+				if (facturas.get(nroFactura)) {
+					return "factura repetida " + nroFactura;
+				}
+				st.setInt(1, nroFactura);
+				st.setBigDecimal(2, new BigDecimal(campos[1]));
+				st.setString(3, campos[2]);
+				facturas.set(nroFactura);
+				return null;
+
+			default:
+				int factura = Integer.parseInt(campos[0]);
+				if (factura < 0 || !facturas.get(factura)) {
+					return "factura inexistente " + campos[0];
+				}
+				if (campos[1].length() > LONGITUD_CONCEPTO) {
+					return "concepto de mas de " + LONGITUD_CONCEPTO + " caracteres";
+				}
+				BigDecimal importe = new BigDecimal(campos[2]);
+				if (!lineas.add(factura + ";" + campos[1])) {
+					return "linea repetida de la factura " + factura + ": " + campos[1];
+				}
+				st.setInt(1, factura);
+				st.setString(2, campos[1]);
+				st.setBigDecimal(3, importe);
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			return "numero incorrecto: " + e.getMessage();
+		} catch (ParseException e) {
+			return "fecha incorrecta: " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Separa una linea por ';'. Un campo entre comillas dobles puede contener ';', y "" dentro de el es una comilla.
+	 */
+	static String[] partir(String linea) {
+		List<String> campos = new ArrayList<String>();
+		StringBuilder campo = new StringBuilder();
+		boolean entreComillas = false;
+		for (int i = 0; i < linea.length(); i++) {
+			char c = linea.charAt(i);
+			if (entreComillas) {
+				if (c == '"' && i + 1 < linea.length() && linea.charAt(i + 1) == '"') {
+					campo.append('"');
+					i++;
+				} else if (c == '"') {
+					entreComillas = false;
+				} else {
+					campo.append(c);
+				}
+			} else if (c == '"') {
+				entreComillas = true;
+			} else if (c == ';') {
+				campos.add(campo.toString().trim());
+				campo.setLength(0);
+			} else {
+				campo.append(c);
+			}
+		}
+		campos.add(campo.toString().trim());
+		return campos.toArray(new String[campos.size()]);
+	}
+
+	/**
+	 * Resultado de la importacion de un fichero.
+	 */
+	public static class Resultado {
+
+		private final String fichero;
+		private final long lineaInicial;
+		private final boolean cargaDirecta;
+		private long lineas;
+		private long insertadas;
+		private long rechazadas;
+		private long nanos;
+
+		Resultado(String fichero, long lineaInicial, boolean cargaDirecta) {
+			this.fichero = fichero;
+			this.lineaInicial = lineaInicial;
+			this.cargaDirecta = cargaDirecta;
+			this.lineas = lineaInicial;
+		}
+
+		void rechazar(long linea, String motivo) {
+			rechazadas++;
+			if (rechazadas <= RECHAZOS_DETALLADOS) {
+				LOGGER.warn("{} linea {} rechazada: {}", fichero, linea, motivo);
+			}
+		}
+
+		public String getFichero() {
+			return fichero;
+		}
+
+		/**
+		 * @return lineas del fichero ya confirmadas en una importacion anterior, que no se han vuelto a cargar
+		 */
+		public long getLineaInicial() {
+			return lineaInicial;
+		}
+
+		public boolean isCargaDirecta() {
+			return cargaDirecta;
+		}
+
+		public long getLineas() {
+			return lineas;
+		}
+
+		public long getInsertadas() {
+			return insertadas;
+		}
+
+		public long getRechazadas() {
+			return rechazadas;
+		}
+
+		public double getFilasPorSegundo() {
+			return nanos == 0 ? 0 : insertadas * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d lineas (desde la %d), %d insertadas, %d rechazadas, %.0f filas/s%s",
+					fichero, lineas, lineaInicial + 1, insertadas, rechazadas, getFilasPorSegundo(),
+					cargaDirecta ? ", carga directa" : "");
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * IndiceDisponibilidad: Copia en memoria de los intervalos reservados de cada vehiculo, para rechazar un alquiler
+ * de un vehiculo ocupado sin pedir una conexion al pool.
+ *
+ * Por cada matricula se guarda un TreeMap inicio -> fin con los intervalos ya fusionados, de forma que nunca se
+ * solapan entre si. Para saber si [ini, fin] choca con alguna reserva basta con mirar el intervalo que empieza
+ * justo antes de fin (floorEntry) y comprobar si termina despues de ini: O(log n).
+ *
+ * Si dice que el vehiculo esta ocupado, ServicioImpl rechaza sin ir a la base de datos. Si dice que esta libre no
+ * basta para aceptar: sigue comprobandolo en la base de datos, porque pueden existir reservas hechas por otros
+ * procesos que todavia no se han cargado.
+ *
+ * Para que un rechazo del indice sea fiable, solo contiene reservas vigentes (las que no han terminado al cargar)
+ * y quien borre una reserva tiene que llamar a {@link #anular(String, Date, Date)} despues del commit. Una reserva
+ * borrada por otro proceso sin avisar sigue bloqueando su coche hasta la siguiente resincronizacion. Mientras no se
+ * llame a {@link #cargar(Connection)} o {@link #resincronizar()} el indice esta desactivado; AlquilerCoches lo
+ * carga al arrancar y lo resincroniza periodicamente.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class IndiceDisponibilidad {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(IndiceDisponibilidad.class);
+
+	// Solo las reservas vigentes, con el predicado de reservas_ocupacion_idx
+	private static final String CONSULTA_CARGA = "SELECT matricula, fecha_ini, " + CatalogoSentencias.FIN_RESERVA
+			+ " FROM reservas WHERE " + CatalogoSentencias.FIN_RESERVA + " >= TRUNC(SYSDATE)";
+
+	private static final int FILAS_POR_VIAJE = 1000;
+
+	private static final IndiceDisponibilidad INSTANCIA = new IndiceDisponibilidad();
+
+	/** Intervalos por matricula. Se sustituye completo al recargar. */
+	private volatile ConcurrentMap<String, TreeMap<Long, Long>> intervalos =
+			new ConcurrentHashMap<String, TreeMap<Long, Long>>();
+
+	/** Mapa que se esta cargando, para que las reservas registradas durante la carga no se pierdan. */
+	private volatile ConcurrentMap<String, TreeMap<Long, Long>> enCarga;
+
+	/** Reservas anuladas durante la carga, que la consulta puede haber leido antes del borrado. */
+	private final List<Anulacion> anuladasEnCarga = new ArrayList<Anulacion>();
+
+	private volatile boolean cargado = false;
+
+	private ScheduledExecutorService resincronizador;
+
+	private IndiceDisponibilidad() {
+	}
+
+	/**
+	 * Obtiene la instancia compartida del indice.
+	 */
+	public static IndiceDisponibilidad getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * @return true si el indice se ha cargado y se esta consultando
+	 */
+	public boolean isCargado() {
+		return cargado;
+	}
+
+	/**
+	 * Carga en frio las reservas vigentes de la tabla reservas. El indice anterior se sigue usando hasta que la
+	 * carga termina, y las reservas que se registran mientras tanto se anotan tambien en el mapa nuevo: las que se
+	 * confirmaron antes de empezar la consulta ya las devuelve la propia consulta. Las anuladas mientras tanto se
+	 * quitan del mapa nuevo antes de sustituir al anterior.
+	 *
+	 * @param con conexion a la base de datos
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public synchronized void cargar(Connection con) throws SQLException {
+		ConcurrentMap<String, TreeMap<Long, Long>> nuevos = new ConcurrentHashMap<String, TreeMap<Long, Long>>();
+		int filas = 0;
+
+		synchronized (anuladasEnCarga) {
+			enCarga = nuevos;
+		}
+		try {
+			try (PreparedStatement st = con.prepareStatement(CONSULTA_CARGA)) {
+				st.setFetchSize(FILAS_POR_VIAJE);
+				try (ResultSet rs = st.executeQuery()) {
+					while (rs.next()) {
+						fusionar(nuevos, rs.getString(1), rs.getTimestamp(2).getTime(),
+								rs.getTimestamp(3).getTime());
+						filas++;
+					}
+				}
+			}
+
+			synchronized (anuladasEnCarga) {
+				for (Anulacion anulada : anuladasEnCarga) {
+					olvidar(nuevos, anulada.matricula, anulada.ini, anulada.fin);
+				}
+				intervalos = nuevos;
+				cargado = true;
+			}
+		} finally {
+			synchronized (anuladasEnCarga) {
+				anuladasEnCarga.clear();
+				enCarga = null;
+			}
+		}
+		LOGGER.debug("Indice de disponibilidad cargado: reservas={}, vehiculos={}", filas, nuevos.size());
+	}
+
+	/**
+	 * Vuelve a cargar el indice desde la base de datos con una conexion del pool.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void resincronizar() throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			cargar(con);
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+	}
+
+	/**
+	 * Resincroniza el indice periodicamente en un hilo de fondo.
+	 *
+	 * @param periodo tiempo entre recargas
+	 * @param unidad  unidad del periodo
+	 */
+	public synchronized void programarResincronizacion(long periodo, TimeUnit unidad) {
+		if (resincronizador != null) {
+			resincronizador.shutdownNow();
+		}
+		resincronizador = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread hilo = new Thread(r, "resincronizacion-disponibilidad");
+				hilo.setDaemon(true);
+				return hilo;
+			}
+		});
+		resincronizador.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					resincronizar();
+				} catch (SQLException e) {
+					LOGGER.error("Error resincronizando el indice de disponibilidad: " + e.getMessage());
+				}
+			}
+		}, periodo, periodo, unidad);
+	}
+
+	/**
+	 * Desactiva el indice y libera su contenido. ServicioImpl vuelve a consultar solo la base de datos.
+	 */
+	public synchronized void desactivar() {
+		if (resincronizador != null) {
+			resincronizador.shutdownNow();
+			resincronizador = null;
+		}
+		cargado = false;
+		intervalos = new ConcurrentHashMap<String, TreeMap<Long, Long>>();
+	}
+
+	/**
+	 * Comprueba si el vehiculo tiene alguna reserva conocida que se solape con [fechaIni, fechaFin].
+	 *
+	 * @return true si seguro que esta ocupado; false si no esta cargado o no se conoce ningun solape
+	 */
+	public boolean estaOcupado(String matricula, Date fechaIni, Date fechaFin) {
+		if (!cargado) {
+			return false;
+		}
+		TreeMap<Long, Long> reservas = intervalos.get(matricula);
+		if (reservas == null) {
+			return false;
+		}
+		synchronized (reservas) {
+			Map.Entry<Long, Long> anterior = reservas.floorEntry(fechaFin.getTime());
+			return anterior != null && anterior.getValue() >= fechaIni.getTime();
+		}
+	}
+
+	/**
+	 * Anota una reserva ya confirmada. Se debe llamar despues del commit.
+	 */
+	public void registrar(String matricula, Date fechaIni, Date fechaFin) {
+		ConcurrentMap<String, TreeMap<Long, Long>> nuevos = enCarga;
+		if (nuevos != null) {
+			fusionar(nuevos, matricula, fechaIni.getTime(), fechaFin.getTime());
+		}
+		if (cargado) {
+			fusionar(intervalos, matricula, fechaIni.getTime(), fechaFin.getTime());
+		}
+	}
+
+	/**
+	 * Quita una reserva borrada. Se debe llamar despues del commit del borrado. Como los intervalos estan
+	 * fusionados, se quitan todos los que se solapan con [fechaIni, fechaFin]; pueden llevarse por delante reservas
+	 * vigentes contiguas, que hasta la siguiente carga solo se detectaran en la base de datos.
+	 */
+	public void anular(String matricula, Date fechaIni, Date fechaFin) {
+		long ini = fechaIni.getTime();
+		long fin = fechaFin.getTime();
+		synchronized (anuladasEnCarga) {
+			if (enCarga != null) {
+				anuladasEnCarga.add(new Anulacion(matricula, ini, fin));
+			}
+		}
+		olvidar(intervalos, matricula, ini, fin);
+	}
+
+	private static void olvidar(ConcurrentMap<String, TreeMap<Long, Long>> origen, String matricula, long ini,
+			long fin) {
+		TreeMap<Long, Long> reservas = origen.get(matricula);
+		if (reservas == null) {
+			return;
+		}
+		synchronized (reservas) {
+			Map.Entry<Long, Long> anterior = reservas.floorEntry(ini);
+			if (anterior != null && anterior.getValue() >= ini) {
+				reservas.remove(anterior.getKey());
+			}
+			reservas.subMap(ini, true, fin, true).clear();
+		}
+	}
+
+	/**
+	 * Inserta el intervalo fusionandolo con los que se solapen, para que el mapa nunca tenga solapes.
+	 */
+	private static void fusionar(ConcurrentMap<String, TreeMap<Long, Long>> destino, String matricula, long ini,
+			long fin) {
+		TreeMap<Long, Long> reservas = destino.get(matricula);
+		if (reservas == null) {
+			TreeMap<Long, Long> nuevo = new TreeMap<Long, Long>();
+			reservas = destino.putIfAbsent(matricula, nuevo);
+			if (reservas == null) {
+				reservas = nuevo;
+			}
+		}
+
+		synchronized (reservas) {
+			Map.Entry<Long, Long> anterior = reservas.floorEntry(ini);
+			if (anterior != null && anterior.getValue() >= ini) {
+				ini = anterior.getKey();
+				fin = Math.max(fin, anterior.getValue());
+				reservas.remove(anterior.getKey());
+			}
+
+			Map.Entry<Long, Long> siguiente;
+			while ((siguiente = reservas.ceilingEntry(ini)) != null && siguiente.getKey() <= fin) {
+				fin = Math.max(fin, siguiente.getValue());
+				reservas.remove(siguiente.getKey());
+			}
+			reservas.put(ini, fin);
+		}
+	}
+
+	private static class Anulacion {
+		final String matricula;
+		final long ini;
+		final long fin;
+
+		Anulacion(String matricula, long ini, long fin) {
+			this.matricula = matricula;
+			this.ini = ini;
+			this.fin = fin;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * IndiceOcupacion: Ocupacion por dias de toda la flota en memoria, para buscar que vehiculos de un modelo o tipo
+ * de combustible estan libres entre dos fechas sin una consulta de solape por vehiculo.
+ *
+ * El indice cubre un horizonte de dias a partir de una fecha. Cada vehiculo tiene un mapa de bits con un bit por
+ * dia del horizonte, marcado si alguna reserva lo ocupa (igual que CONSULTA_SOLAPE, con los dos extremos
+ * incluidos y 4 dias si no hay fecha de fin). Ademas, por cada modelo y cada tipo de combustible hay un BitSet con
+ * los vehiculos que lo tienen. Una busqueda hace el AND de los grupos pedidos y, de cada candidato, mira con
+ * mascaras sobre palabras de 64 dias si hay algun bit marcado en el intervalo.
+ *
+ * Es una vista aproximada para el buscador: los vehiculos dados de alta y las reservas hechas por otros procesos
+ * despues de la carga no aparecen hasta {@link #resincronizar()}. El alquiler sigue comprobandose en
+ * {@link ServicioImpl}.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class IndiceOcupacion {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(IndiceOcupacion.class);
+
+	/** Dias que cubre el indice al resincronizar, contando desde hoy. */
+	public static final int DIAS_HORIZONTE = 365;
+
+	private static final int DIAS_DE_ALQUILER = CatalogoSentencias.DIAS_DE_ALQUILER;
+
+	private static final String CONSULTA_VEHICULOS =
+		"SELECT v.matricula, v.id_modelo, m.tipo_combustible " +
+		"FROM vehiculos v JOIN modelos m ON m.id_modelo = v.id_modelo " +
+		"ORDER BY v.matricula";
+
+	// Solo las reservas que tocan el horizonte, con el predicado de reservas_ocupacion_idx
+	private static final String CONSULTA_RESERVAS =
+		"SELECT matricula, fecha_ini, " + CatalogoSentencias.FIN_RESERVA + " FROM reservas " +
+		"WHERE " + CatalogoSentencias.FIN_RESERVA + " >= CAST(? AS DATE) " +
+		"AND fecha_ini < CAST(? AS DATE)";
+
+	private static final int FILAS_POR_VIAJE = 1000;
+
+	private static final IndiceOcupacion INSTANCIA = new IndiceOcupacion();
+
+	/** Indice en uso; null mientras no se cargue. Se sustituye completo al recargar. */
+	private volatile Estado estado;
+
+	private IndiceOcupacion() {
+	}
+
+	/**
+	 * Obtiene la instancia compartida del indice.
+	 */
+	public static IndiceOcupacion getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * @return true si el indice se ha cargado
+	 */
+	public boolean isCargado() {
+		return estado != null;
+	}
+
+	/**
+	 * Carga los vehiculos y las reservas que tocan [desde, desde + dias). El indice anterior se sigue usando hasta
+	 * que la carga termina.
+	 *
+	 * @param con   conexion a la base de datos
+	 * @param desde primer dia del horizonte
+	 * @param dias  numero de dias del horizonte
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void cargar(Connection con, Date desde, int dias) throws SQLException {
+		Estado nuevo = new Estado(dia(desde), dias);
+
+		try (PreparedStatement st = con.prepareStatement(CONSULTA_VEHICULOS)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					nuevo.agregarVehiculo(rs.getString(1), rs.getInt(2), rs.getString(3));
+				}
+			}
+		}
+
+		int reservas = 0;
+		try (PreparedStatement st = con.prepareStatement(CONSULTA_RESERVAS)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			st.setTimestamp(1, new Timestamp(fecha(nuevo.primerDia).getTime()));
+			st.setTimestamp(2, new Timestamp(fecha(nuevo.primerDia + dias).getTime()));
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					nuevo.marcar(rs.getString(1), dia(rs.getTimestamp(2)), dia(rs.getTimestamp(3)));
+					reservas++;
+				}
+			}
+		}
+
+		estado = nuevo;
+		LOGGER.debug("Indice de ocupacion cargado: vehiculos={}, reservas={}, dias={}", nuevo.vehiculos.size(),
+				reservas, dias);
+	}
+
+	/**
+	 * Vuelve a cargar el indice con una conexion del pool, con el horizonte desplazado a hoy.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void resincronizar() throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			cargar(con, new Date(), DIAS_HORIZONTE);
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+	}
+
+	/**
+	 * Anota una reserva ya confirmada. Se debe llamar despues del commit.
+	 */
+	public void registrar(String matricula, Date fechaIni, Date fechaFin) {
+		Estado actual = estado;
+		if (actual != null) {
+			actual.marcar(matricula, dia(fechaIni), dia(fechaFin));
+		}
+	}
+
+	/**
+	 * Vehiculos libres todos los dias de [fechaIni, fechaFin].
+	 *
+	 * @param idModelo        modelo pedido, o null para cualquiera
+	 * @param tipoCombustible tipo de combustible pedido, o null para cualquiera
+	 * @param fechaIni        primer dia
+	 * @param fechaFin        ultimo dia, o null para los 4 dias de un alquiler sin fecha de fin
+	 * @return matriculas libres en orden alfabetico
+	 * @throws IllegalStateException    si el indice no esta cargado
+	 * @throws IllegalArgumentException si el intervalo se sale del horizonte del indice
+	 */
+	public List<String> buscarLibres(Integer idModelo, String tipoCombustible, Date fechaIni, Date fechaFin) {
+		Estado actual = estado;
+		if (actual == null) {
+			throw new IllegalStateException("El indice de ocupacion no esta cargado");
+		}
+		long ini = dia(fechaIni);
+		long fin = fechaFin == null ? ini + DIAS_DE_ALQUILER : dia(fechaFin);
+		if (ini < actual.primerDia || fin >= actual.primerDia + actual.dias || fin < ini) {
+			throw new IllegalArgumentException("Intervalo fuera del horizonte del indice de ocupacion: " + fecha(ini)
+					+ " - " + fecha(fin));
+		}
+
+		BitSet candidatos = new BitSet(actual.vehiculos.size());
+		candidatos.set(0, actual.vehiculos.size());
+		if (idModelo != null) {
+			candidatos.and(actual.grupo(actual.porModelo, idModelo));
+		}
+		if (tipoCombustible != null) {
+			candidatos.and(actual.grupo(actual.porCombustible, tipoCombustible));
+		}
+
+		int desde = (int) (ini - actual.primerDia);
+		int hasta = (int) (fin - actual.primerDia);
+		List<String> libres = new ArrayList<String>();
+		for (int i = candidatos.nextSetBit(0); i >= 0; i = candidatos.nextSetBit(i + 1)) {
+			Vehiculo vehiculo = actual.vehiculos.get(i);
+			if (vehiculo.libre(desde, hasta)) {
+				libres.add(vehiculo.matricula);
+			}
+		}
+		return libres;
+	}
+
+	/**
+	 * Dia local de una fecha, contado desde 1970-01-01. Las horas no cuentan.
+	 */
+	private static long dia(Date fecha) {
+		// getTime() y no toInstant(), que java.sql.Date no implementa
+		return Instant.ofEpochMilli(fecha.getTime()).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+
+	private static Date fecha(long dia) {
+		return Date.from(LocalDate.ofEpochDay(dia).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+	/**
+	 * Contenido del indice para un horizonte. Los grupos y la lista de vehiculos no cambian tras la carga; los dias
+	 * de cada vehiculo si, protegidos por el propio vehiculo.
+	 */
+	private static class Estado {
+
+		private final long primerDia;
+		private final int dias;
+		private final List<Vehiculo> vehiculos = new ArrayList<Vehiculo>();
+		private final Map<String, Vehiculo> porMatricula = new HashMap<String, Vehiculo>();
+		private final Map<Integer, BitSet> porModelo = new HashMap<Integer, BitSet>();
+		private final Map<String, BitSet> porCombustible = new HashMap<String, BitSet>();
+
+		Estado(long primerDia, int dias) {
+			this.primerDia = primerDia;
+			this.dias = dias;
+		}
+
+		void agregarVehiculo(String matricula, int idModelo, String tipoCombustible) {
+			int posicion = vehiculos.size();
+			Vehiculo vehiculo = new Vehiculo(matricula, dias);
+			vehiculos.add(vehiculo);
+			porMatricula.put(matricula, vehiculo);
+			miembros(porModelo, idModelo).set(posicion);
+			miembros(porCombustible, tipoCombustible).set(posicion);
+		}
+
+		void marcar(String matricula, long ini, long fin) {
+			Vehiculo vehiculo = porMatricula.get(matricula);
+			long desde = Math.max(ini, primerDia) - primerDia;
+			long hasta = Math.min(fin, primerDia + dias - 1) - primerDia;
+			if (vehiculo != null && desde <= hasta) {
+				vehiculo.marcar((int) desde, (int) hasta);
+			}
+		}
+
+		<K> BitSet grupo(Map<K, BitSet> grupos, K clave) {
+			BitSet miembros = grupos.get(clave);
+			return miembros == null ? new BitSet() : miembros;
+		}
+
+		private static <K> BitSet miembros(Map<K, BitSet> grupos, K clave) {
+			BitSet miembros = grupos.get(clave);
+			if (miembros == null) {
+				miembros = new BitSet();
+				grupos.put(clave, miembros);
+			}
+			return miembros;
+		}
+	}
+
+	/**
+	 * Dias ocupados de un vehiculo, un bit por dia del horizonte en palabras de 64 bits.
+	 */
+	private static class Vehiculo {
+
+		private final String matricula;
+		private final long[] ocupado;
+
+		Vehiculo(String matricula, int dias) {
+			this.matricula = matricula;
+			this.ocupado = new long[(dias + 63) >>> 6];
+		}
+
+		synchronized void marcar(int desde, int hasta) {
+			for (int palabra = desde >>> 6; palabra <= hasta >>> 6; palabra++) {
+				ocupado[palabra] |= mascara(palabra, desde, hasta);
+			}
+		}
+
+		synchronized boolean libre(int desde, int hasta) {
+			for (int palabra = desde >>> 6; palabra <= hasta >>> 6; palabra++) {
+				if ((ocupado[palabra] & mascara(palabra, desde, hasta)) != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Bits de la palabra que caen dentro de [desde, hasta].
+		 */
+		private static long mascara(int palabra, int desde, int hasta) {
+			int base = palabra << 6;
+			long mascara = -1L;
+			if (desde > base) {
+				mascara &= -1L << (desde - base);
+			}
+			if (hasta < base + 63) {
+				mascara &= -1L >>> (63 - (hasta - base));
+			}
+			return mascara;
+		}
+	}
+}
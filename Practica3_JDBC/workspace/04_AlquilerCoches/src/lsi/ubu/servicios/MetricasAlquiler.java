@@ -0,0 +1,153 @@
+package lsi.ubu.servicios;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.EjecutorTransaccional;
+import lsi.ubu.util.Histograma;
+
+/**
+ * MetricasAlquiler: Tiempo de cada fase de {@link ServicioImpl#alquilar}, en un histograma por fase.
+ *
+ * Registrar una fase cuesta dos lecturas de System.nanoTime() y unos incrementos atomicos, asi que se puede dejar
+ * activo en produccion, a diferencia de los LOGGER.debug. Con los percentiles de cada fase se ve si un alquiler
+ * lento ha esperado al pool, al cerrojo, a la consulta de lectura o al commit. Las fases de prestamo, commit y
+ * rollback las mide el ejecutor transaccional del servicio; el resto, ServicioImpl.
+ *
+ * Solo se mide el alquiler individual; alquilar(List) tiene sus propias fases por lote.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class MetricasAlquiler implements MetricasAlquilerMBean {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricasAlquiler.class);
+
+	/** Nombre JMX con el que se publica. */
+	public static final String NOMBRE = "lsi.ubu:type=ServicioAlquiler";
+
+	/** Fases medidas. */
+	public enum Fase {
+		TOTAL, // alquilar() completo, rechazos incluidos
+		BLOQUEO, // espera al cerrojo del vehiculo (SEGMENTADO) o al SELECT ... FOR UPDATE
+		PRESTAMO, // obtener la conexion del pool
+		LECTURA, // consulta de disponibilidad, cliente y, si no esta en cache, precio
+		PROCEDIMIENTO, // llamada completa al procedimiento alquilar (ModoAlquiler.PROCEDIMIENTO)
+		IDENTIFICADORES, // identificadores de reserva y factura (casi siempre sin ir a la base de datos)
+		INSERCION_RESERVA,
+		INSERCION_FACTURA,
+		INSERCION_LINEAS,
+		COMMIT,
+		ROLLBACK
+	}
+
+	private final Histograma[] histogramas = new Histograma[Fase.values().length];
+
+	/**
+	 * @param ejecutor ejecutor del servicio, que mide el prestamo, el commit y el rollback
+	 */
+	MetricasAlquiler(EjecutorTransaccional ejecutor) {
+		for (Fase fase : Fase.values()) {
+			histogramas[fase.ordinal()] = new Histograma();
+		}
+		histogramas[Fase.PRESTAMO.ordinal()] = ejecutor.getTiempoPrestamo();
+		histogramas[Fase.COMMIT.ordinal()] = ejecutor.getTiempoCommit();
+		histogramas[Fase.ROLLBACK.ordinal()] = ejecutor.getTiempoRollback();
+	}
+
+	/**
+	 * Anota la duracion de una fase.
+	 *
+	 * @param fase        fase terminada
+	 * @param inicioNanos instante de inicio tomado con System.nanoTime()
+	 */
+	void registrar(Fase fase, long inicioNanos) {
+		histogramas[fase.ordinal()].registrarDesde(inicioNanos);
+	}
+
+	/**
+	 * @return histograma de la fase, en nanosegundos
+	 */
+	public Histograma getHistograma(Fase fase) {
+		return histogramas[fase.ordinal()];
+	}
+
+	/**
+	 * Publica las metricas por JMX con el nombre {@link #NOMBRE}. Si ya habia otras publicadas, las sustituye.
+	 */
+	public void registrarMBean() {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombre = new ObjectName(NOMBRE);
+			if (servidor.isRegistered(nombre)) {
+				servidor.unregisterMBean(nombre);
+			}
+			servidor.registerMBean(this, nombre);
+			LOGGER.info("Metricas del alquiler publicadas por JMX como {}", NOMBRE);
+		} catch (JMException e) {
+			LOGGER.warn("No se pudieron publicar las metricas del alquiler por JMX: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public String getCsv() {
+		StringBuilder csv = new StringBuilder("fase;n;media_us;p50_us;p95_us;p99_us;max_us\n");
+		for (Fase fase : Fase.values()) {
+			Histograma h = getHistograma(fase);
+			csv.append(fase).append(';').append(h.getCuenta()).append(';')
+					.append(String.format("%.1f", h.getMedia() / 1000.0)).append(';').append(micros(h.percentil(50)))
+					.append(';').append(micros(h.percentil(95))).append(';').append(micros(h.percentil(99)))
+					.append(';').append(micros(h.getMaximo())).append('\n');
+		}
+		return csv.toString();
+	}
+
+	@Override
+	public String getResumen() {
+		StringBuilder resumen = new StringBuilder();
+		for (Fase fase : Fase.values()) {
+			Histograma h = getHistograma(fase);
+			if (h.getCuenta() > 0) {
+				resumen.append(String.format("  %-17s %s%n", fase, h));
+			}
+		}
+		return resumen.toString();
+	}
+
+	@Override
+	public long percentil(String fase, double percentil) {
+		return micros(getHistograma(Fase.valueOf(fase)).percentil(percentil));
+	}
+
+	@Override
+	public String histograma(String fase) {
+		return getHistograma(Fase.valueOf(fase)).toCsv();
+	}
+
+	@Override
+	public void reiniciar() {
+		for (Histograma h : histogramas) {
+			h.reiniciar();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getResumen();
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,37 @@
+package lsi.ubu.servicios;
+
+/**
+ * Interfaz JMX de {@link MetricasAlquiler}. Los tiempos se dan en microsegundos.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public interface MetricasAlquilerMBean {
+
+	/**
+	 * Una linea por fase: fase;n;media_us;p50_us;p95_us;p99_us;max_us.
+	 */
+	String getCsv();
+
+	/**
+	 * Resumen legible de todas las fases.
+	 */
+	String getResumen();
+
+	/**
+	 * @param fase      nombre de la fase (ver {@link MetricasAlquiler.Fase})
+	 * @param percentil valor entre 0 y 100
+	 * @return percentil de la fase en microsegundos
+	 */
+	long percentil(String fase, double percentil);
+
+	/**
+	 * Histograma completo de una fase en CSV.
+	 */
+	String histograma(String fase);
+
+	void reiniciar();
+}
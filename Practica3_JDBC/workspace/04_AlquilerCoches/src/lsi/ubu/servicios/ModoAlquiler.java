@@ -0,0 +1,30 @@
+package lsi.ubu.servicios;
+
+/**
+ * ModoAlquiler: Forma en la que {@link ServicioImpl} ejecuta un alquiler individual.
+ *
+ * Se elige con la propiedad de sistema {@value #PROPIEDAD} (p.e. -Dalquiler.modo=PROCEDIMIENTO) o pasandolo al
+ * constructor de ServicioImpl.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public enum ModoAlquiler {
+	JDBC, // Consultas e inserciones desde Java, una sentencia cada vez
+	PROCEDIMIENTO; // Una sola llamada al procedimiento alquilar de alquiler_coches.sql
+
+	/** Propiedad de sistema con el modo por defecto. */
+	public static final String PROPIEDAD = "alquiler.modo";
+
+	/**
+	 * Modo configurado en la propiedad de sistema, JDBC si no se indica.
+	 *
+	 * @return modo configurado
+	 */
+	public static ModoAlquiler configurado() {
+		return valueOf(System.getProperty(PROPIEDAD, JDBC.name()).trim().toUpperCase());
+	}
+}
@@ -0,0 +1,90 @@
+package lsi.ubu.servicios;
+
+import java.math.BigDecimal;
+
+/**
+ * PrecioModelo: Datos de tarifa del modelo de un vehiculo (modelos y precio_combustible), con el importe del
+ * deposito lleno ya calculado. Es inmutable para poder compartirse desde {@link CachePrecios}.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class PrecioModelo {
+
+	private final int idModelo;
+	private final BigDecimal precioCadaDia;
+	private final BigDecimal capacidadDeposito;
+	private final String tipoCombustible;
+	private final BigDecimal precioPorLitro;
+	private final BigDecimal importeCombustible;
+
+	public PrecioModelo(int idModelo, BigDecimal precioCadaDia, BigDecimal capacidadDeposito, String tipoCombustible,
+			BigDecimal precioPorLitro) {
+		this.idModelo = idModelo;
+		this.precioCadaDia = precioCadaDia;
+		this.capacidadDeposito = capacidadDeposito;
+		this.tipoCombustible = tipoCombustible;
+		this.precioPorLitro = precioPorLitro;
+		this.importeCombustible = capacidadDeposito.multiply(precioPorLitro);
+	}
+
+	public int getIdModelo() {
+		return idModelo;
+	}
+
+	public BigDecimal getPrecioCadaDia() {
+		return precioCadaDia;
+	}
+
+	public BigDecimal getCapacidadDeposito() {
+		return capacidadDeposito;
+	}
+
+	public String getTipoCombustible() {
+		return tipoCombustible;
+	}
+
+	public BigDecimal getPrecioPorLitro() {
+		return precioPorLitro;
+	}
+
+	/**
+	 * @return importe del deposito lleno: capacidad por precio del litro
+	 */
+	public BigDecimal getImporteCombustible() {
+		return importeCombustible;
+	}
+
+	/**
+	 * @param dias dias de alquiler
+	 * @return importe del vehiculo por esos dias
+	 */
+	public BigDecimal importeVehiculo(long dias) {
+		return new BigDecimal(dias).multiply(precioCadaDia);
+	}
+
+	/**
+	 * @param dias dias de alquiler
+	 * @return concepto de la linea de factura del vehiculo
+	 */
+	public String conceptoVehiculo(long dias) {
+		return dias + " dias de alquiler, vehiculo modelo " + idModelo;
+	}
+
+	/**
+	 * @return concepto de la linea de factura del combustible
+	 */
+	public String conceptoCombustible() {
+		return "Deposito lleno de " + capacidadDeposito + " litros de " + tipoCombustible;
+	}
+
+	@Override
+	public String toString() {
+		return "PrecioModelo [idModelo=" + idModelo + ", precioCadaDia=" + precioCadaDia + ", capacidadDeposito="
+				+ capacidadDeposito + ", tipoCombustible=" + tipoCombustible + ", precioPorLitro=" + precioPorLitro
+				+ "]";
+	}
+}
@@ -0,0 +1,100 @@
+package lsi.ubu.servicios;
+
+import lsi.ubu.excepciones.AlquilerCochesException;
+
+/**
+ * ResultadoAlquiler: Resultado de una solicitud de alquiler. Si el alquiler se ha realizado contiene el numero de
+ * factura generado, si no el codigo de {@link AlquilerCochesException} que lo ha impedido o {@link #ERROR_SGBD} si
+ * el fallo ha venido de la base de datos.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class ResultadoAlquiler {
+
+	/** Codigo de un alquiler realizado correctamente. */
+	public static final int OK = 0;
+
+	/** Codigo de un alquiler fallido por un error no contemplado de la base de datos. */
+	public static final int ERROR_SGBD = -1;
+
+	// Los rechazos no llevan datos propios, asi que se comparte una instancia por codigo
+	private static final ResultadoAlquiler[] RECHAZOS = new ResultadoAlquiler[AlquilerCochesException.VEHICULO_OCUPADO
+			+ 1];
+
+	static {
+		for (int codigo = AlquilerCochesException.CLIENTE_NO_EXIST; codigo < RECHAZOS.length; codigo++) {
+			RECHAZOS[codigo] = new ResultadoAlquiler(codigo, -1, AlquilerCochesException.mensajeDe(codigo));
+		}
+	}
+
+	private final int codigo;
+	private final int nroFactura;
+	private final String mensaje;
+
+	private ResultadoAlquiler(int codigo, int nroFactura, String mensaje) {
+		this.codigo = codigo;
+		this.nroFactura = nroFactura;
+		this.mensaje = mensaje;
+	}
+
+	/**
+	 * Resultado de un alquiler realizado.
+	 *
+	 * @param nroFactura numero de la factura generada
+	 * @return resultado correcto
+	 */
+	public static ResultadoAlquiler correcto(int nroFactura) {
+		return new ResultadoAlquiler(OK, nroFactura, null);
+	}
+
+	/**
+	 * Resultado de un alquiler rechazado por una regla de negocio.
+	 *
+	 * @param codigo codigo de {@link AlquilerCochesException}
+	 * @return resultado rechazado
+	 */
+	public static ResultadoAlquiler rechazado(int codigo) {
+		if (codigo > 0 && codigo < RECHAZOS.length) {
+			return RECHAZOS[codigo];
+		}
+		return new ResultadoAlquiler(codigo, -1, AlquilerCochesException.mensajeDe(codigo));
+	}
+
+	/**
+	 * Resultado de un alquiler fallido por un error de la base de datos.
+	 *
+	 * @param mensaje descripcion del error
+	 * @return resultado fallido
+	 */
+	public static ResultadoAlquiler error(String mensaje) {
+		return new ResultadoAlquiler(ERROR_SGBD, -1, mensaje);
+	}
+
+	public boolean isCorrecto() {
+		return codigo == OK;
+	}
+
+	public int getCodigo() {
+		return codigo;
+	}
+
+	/**
+	 * @return numero de factura o -1 si el alquiler no se ha realizado
+	 */
+	public int getNroFactura() {
+		return nroFactura;
+	}
+
+	public String getMensaje() {
+		return mensaje;
+	}
+
+	@Override
+	public String toString() {
+		return "ResultadoAlquiler [codigo=" + codigo + ", nroFactura=" + nroFactura + ", mensaje=" + mensaje + "]";
+	}
+}
@@ -2,8 +2,33 @@ package lsi.ubu.servicios;
 
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 
 public interface Servicio {
 
 	public void alquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException;
+
+	/**
+	 * Igual que {@link #alquilar(String, String, Date, Date)} pero los rechazos de negocio se devuelven en el
+	 * resultado en lugar de lanzar AlquilerCochesException.
+	 *
+	 * @return resultado con el numero de factura o el codigo de AlquilerCochesException del rechazo
+	 * @throws SQLException si falla la base de datos por otro motivo
+	 */
+	public ResultadoAlquiler intentarAlquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin)
+			throws SQLException;
+
+	/**
+	 * Realiza un conjunto de alquileres agrupando las inserciones en lotes JDBC. Cada solicitud se valida de forma
+	 * independiente, de modo que un rechazo no impide el resto de alquileres.
+	 *
+	 * Los errores de base de datos no se lanzan: si un lote no puede obtener su conexion, validarse o confirmarse,
+	 * sus solicitudes se devuelven con {@link ResultadoAlquiler#error(String)} y los lotes ya confirmados conservan
+	 * sus resultados.
+	 *
+	 * @param solicitudes alquileres a realizar
+	 * @return resultado de cada solicitud, en el mismo orden
+	 * @throws SQLException solo si falla al devolver la conexion de un lote al pool
+	 */
+	public List<ResultadoAlquiler> alquilar(List<SolicitudAlquiler> solicitudes) throws SQLException;
 }
@@ -1,17 +1,31 @@
 package lsi.ubu.servicios;
 
 import java.math.BigDecimal;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.util.BloqueoSegmentado;
+import lsi.ubu.util.EjecutorTransaccional;
+import lsi.ubu.util.GeneradorIdentificadores;
 import lsi.ubu.util.PoolDeConexiones;
 import lsi.ubu.util.exceptions.SGBDError;
 import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
@@ -30,9 +44,108 @@ import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
 public class ServicioImpl implements Servicio {
     private static final Logger LOGGER = LoggerFactory.getLogger(ServicioImpl.class);
 
-    private static final int DIAS_DE_ALQUILER = 4;
+    private static final int DIAS_DE_ALQUILER = CatalogoSentencias.DIAS_DE_ALQUILER;
+
+    // Numero de solicitudes que se confirman juntas en alquilar(List)
+    private static final int TAMANO_LOTE = 200;
+
+    /*
+     * Cerrojos de BLOQUEOS que puede tener a la vez un lote con SEGMENTADO. Un lote de 200 coches distintos se
+     * llevaria casi todos los segmentos y pararia a los alquileres individuales de cualquier coche durante toda
+     * su transaccion; con el tope se cierra antes el lote, a cambio de más transacciones y viajes cuando las
+     * solicitudes tocan muchos coches distintos.
+     */
+    private static final int SEGMENTOS_POR_LOTE = 16;
+
+    // El procedimiento alquilar lanza raise_application_error(-20000 - codigo de AlquilerCochesException)
+    private static final int ERROR_APLICACION_BASE = 20000;
+
+    // Las sentencias SQL del servicio estan en CatalogoSentencias, que el pool prepara en cada conexion nueva
+
+    /*
+     * Cerrojos por matricula compartidos por todas las instancias del servicio. Con la estrategia SEGMENTADO dos
+     * alquileres del mismo coche esperan aqui, sin ocupar conexion, en vez de pasar los dos la comprobacion de
+     * solape con READ_COMMITTED e insertar reservas que se pisan. Coches distintos casi nunca comparten cerrojo.
+     */
+    private static final BloqueoSegmentado BLOQUEOS = new BloqueoSegmentado(256);
+
+    // Reintenta los alquileres que fallan por interbloqueo, recurso ocupado o conexión perdida. Es compartido para
+    // que el presupuesto de reintentos limite a todos los hilos a la vez
+    private static final EjecutorTransaccional EJECUTOR = new EjecutorTransaccional();
+
+    // Histogramas por fase de los alquileres individuales de todas las instancias
+    private static final MetricasAlquiler METRICAS = new MetricasAlquiler(EJECUTOR);
+
+    private final IndiceDisponibilidad indice = IndiceDisponibilidad.getInstance();
+    private final IndiceOcupacion ocupacion = IndiceOcupacion.getInstance();
+    private final CachePrecios cachePrecios = CachePrecios.getInstance();
+    private final FiltrosExistencia filtros = FiltrosExistencia.getInstance();
+    private final GeneradorIdentificadores identificadores = GeneradorIdentificadores.getInstance();
+
+    private final ModoAlquiler modo;
+    private final EstrategiaBloqueo bloqueo;
+
+    /**
+     * Crea el servicio con el modo y la estrategia de bloqueo indicados en las propiedades de sistema
+     * alquiler.modo (JDBC por defecto) y alquiler.bloqueo (SEGMENTADO por defecto).
+     */
+    public ServicioImpl() {
+        this(ModoAlquiler.configurado());
+    }
+
+    /**
+     * Crea el servicio con un modo de ejecucion concreto para alquilar().
+     *
+     * @param modo JDBC o PROCEDIMIENTO
+     */
+    public ServicioImpl(ModoAlquiler modo) {
+        this(modo, EstrategiaBloqueo.configurada());
+    }
+
+    /**
+     * Crea el servicio con un modo de ejecucion y una estrategia de bloqueo concretos.
+     *
+     * @param modo    JDBC o PROCEDIMIENTO
+     * @param bloqueo como se serializan los alquileres del mismo vehiculo
+     */
+    public ServicioImpl(ModoAlquiler modo, EstrategiaBloqueo bloqueo) {
+        this.modo = modo;
+        this.bloqueo = bloqueo;
+    }
 
     public void alquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin) throws SQLException {
+        ResultadoAlquiler resultado = intentarAlquilar(nifCliente, matricula, fechaIni, fechaFin);
+        if (!resultado.isCorrecto()) {
+            throw new AlquilerCochesException(resultado.getCodigo());
+        }
+    }
+
+    /*
+     * Los rechazos de negocio no se lanzan como excepción mientras se procesan: se devuelven como resultado, que para
+     * cada código es siempre la misma instancia. alquilar() solo crea la AlquilerCochesException al final, para los
+     * llamadores que la esperan.
+     */
+    public ResultadoAlquiler intentarAlquilar(String nifCliente, String matricula, Date fechaIni, Date fechaFin)
+            throws SQLException {
+        long inicio = System.nanoTime();
+        try {
+            return procesarAlquiler(nifCliente, matricula, fechaIni, fechaFin);
+        } finally {
+            METRICAS.registrar(MetricasAlquiler.Fase.TOTAL, inicio);
+        }
+    }
+
+    /**
+     * Tiempos de cada fase de los alquileres individuales, compartidos por todas las instancias del servicio.
+     *
+     * @return metricas del alquiler
+     */
+    public static MetricasAlquiler getMetricas() {
+        return METRICAS;
+    }
+
+    private ResultadoAlquiler procesarAlquiler(String nifCliente, String matricula, Date fechaIni, Date fechaFin)
+            throws SQLException {
 
         /*
          * ¡IMPORTANTE!
@@ -53,188 +166,284 @@ public class ServicioImpl implements Servicio {
          * Se ha configurado de la siguiente manera para ver la salida por pantalla en la consola lo más limpia posible. Sin
          * embargo en el archivo .log se guarda una gran cantidad de información. Esto siempre se puede cambiar desde log4j.properties
          */
-        PoolDeConexiones pool = PoolDeConexiones.getInstance();
+        //El cálculo de los días se da hecho
+        long diasDiff = DIAS_DE_ALQUILER;
 
-        //Inicializamos las variables que vamos a utilizar. En este caso emplearemo solo un ResultSet que irá cambiando de contenido
-        Connection con = null;
-        PreparedStatement selDisponible = null;
+        // Emplearé esta variable para tener siempre la fecha final correcta, tanto si es nula como si no
+        Date fechaFinAux = null;
+
+        //Si la fecha de fin no es nula, calculamos la diferencia de días de la reserva, si fuera menor que 1, se rechaza
+        if (fechaFin != null) {
+            fechaFinAux = fechaFin;
+            diasDiff = TimeUnit.MILLISECONDS.toDays(fechaFin.getTime() - fechaIni.getTime());
+
+            if (diasDiff < 1) {
+                return ResultadoAlquiler.rechazado(AlquilerCochesException.SIN_DIAS);
+            }
+        }
+        // Dejo la fecha de fin calculada en caso de que sea null la fechaFin introducida
+        else {
+            // Si la fecha de fin es null la calculo sumando a la de inicio los días de alquiler
+            fechaFinAux = new Date(fechaIni.getTime() + TimeUnit.DAYS.toMillis(DIAS_DE_ALQUILER));
+        }
+
+        // Si el índice en memoria ya conoce una reserva vigente que se solapa, rechazo sin pedir conexión al pool.
+        // Si no la conoce no basta para aceptar: la comprobación definitiva sigue siendo la de la base de datos
+        if (indice.estaOcupado(matricula, fechaIni, fechaFinAux)) {
+            return ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_OCUPADO);
+        }
+
+        // Lo mismo con los filtros de existencia: un NIF o una matrícula que seguro que no existen se rechazan aquí,
+        // en el orden cliente y vehículo. Los casos en que el orden difiere del de la base de datos están en
+        // FiltrosExistencia
+        if (filtros.clienteInexistente(nifCliente)) {
+            return ResultadoAlquiler.rechazado(AlquilerCochesException.CLIENTE_NO_EXIST);
+        }
+        if (filtros.vehiculoInexistente(matricula)) {
+            return ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_NO_EXIST);
+        }
+
+        // Con SEGMENTADO se espera al cerrojo del coche antes de pedir conexión, así los alquileres que compiten
+        // por el mismo coche no retienen conexiones del pool mientras esperan
+        Lock cerrojo = null;
+        if (bloqueo == EstrategiaBloqueo.SEGMENTADO) {
+            long inicio = System.nanoTime();
+            cerrojo = BLOQUEOS.cerrojo(matricula);
+            cerrojo.lock();
+            METRICAS.registrar(MetricasAlquiler.Fase.BLOQUEO, inicio);
+        }
+
+        ResultadoAlquiler resultado;
+        try {
+            /*
+             * El ejecutor pide la conexión al pool, hace commit si la transacción termina bien y rollback si lanza
+             * excepción. Si el error es transitorio (interbloqueo, fallo de serialización, recurso ocupado o
+             * conexión perdida) repite la transacción entera con otra conexión tras una espera aleatoria creciente.
+             * Si lo que falla es el commit no se repite: se lanza EjecutorTransaccional.CommitIncierto, porque el
+             * alquiler puede haber quedado confirmado en el servidor.
+             * Un rechazo se devuelve como resultado, y el ejecutor hace rollback en vez de commit: el de clave ajena
+             * (2291) llega después de insertar la reserva.
+             */
+            final long dias = diasDiff;
+            final Date finAux = fechaFinAux;
+            resultado = EJECUTOR.ejecutar(new EjecutorTransaccional.UnidadDeTrabajo<ResultadoAlquiler>() {
+                @Override
+                public ResultadoAlquiler ejecutar(Connection con) throws SQLException {
+                    return alquilarEnTransaccion(con, nifCliente, matricula, fechaIni, fechaFin, dias, finAux);
+                }
+
+                @Override
+                public boolean confirmar(ResultadoAlquiler resultado) {
+                    return resultado.isCorrecto();
+                }
+            });
+            // Con tres argumentos slf4j crea un array aunque el nivel esté desactivado
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Transacción completada para reserva: nifCliente={}, matricula={}, {}", nifCliente,
+                    matricula, resultado);
+            }
+        } finally {
+            // El cerrojo se suelta después del commit o rollback, cuando la reserva ya es visible para el siguiente
+            if (cerrojo != null) {
+                cerrojo.unlock();
+            }
+        }
+
+        // Solo tras el commit la reserva es definitiva y se puede anotar en los índices
+        if (resultado.isCorrecto()) {
+            indice.registrar(matricula, fechaIni, fechaFinAux);
+            ocupacion.registrar(matricula, fechaIni, fechaFinAux);
+        }
+        return resultado;
+    }
+
+    /**
+     * Comprobaciones e inserciones de un alquiler sobre una conexión del ejecutor transaccional, que es quien hace
+     * commit o rollback y cierra la conexión.
+     *
+     * @return alquiler realizado con su número de factura, o rechazado con el código de AlquilerCochesException
+     */
+    private ResultadoAlquiler alquilarEnTransaccion(Connection con, String nifCliente, String matricula, Date fechaIni,
+            Date fechaFin, long diasDiff, Date fechaFinAux) throws SQLException {
+
+        //Inicializamos las variables que vamos a utilizar. La consulta de lectura cierra su propio ResultSet
+        PreparedStatement selLectura = null;
         PreparedStatement insReserva = null;
-        PreparedStatement selImportes = null;
         PreparedStatement insFactura = null;
         PreparedStatement insLineaFactura = null;
-        ResultSet cursor = null;
 
         //Se envuelve todo el proceso en un try-catch para gestinoar de forma correcta las excepciones producidas
         try {
-        
-            //El cálculo de los días se da hecho. Se ha incluido tambíen dentro del try-catch
-            long diasDiff = DIAS_DE_ALQUILER;
-
-            // Emplearé esta variable para tener siempre la fecha final correcta, tanto si es nula como si no
-            Date fechaFinAux = null;
+            LOGGER.debug("Conexión obtenida para alquiler: nifCliente={}, matricula={}", nifCliente, matricula);
 
-            //Si la fecha de fin no es nula, calculamos la diferencia de días de la reserva, si fuera menor que 1, lanzamos excepción
-            if (fechaFin != null) {
-                fechaFinAux = fechaFin;
-                diasDiff = TimeUnit.MILLISECONDS.toDays(fechaFin.getTime() - fechaIni.getTime());
+            // Con FOR_UPDATE la serialización la hace Oracle: la fila del vehículo queda bloqueada hasta el commit
+            // o rollback, también frente a otros procesos. Si el vehículo no existe no se bloquea nada y la
+            // consulta de lectura lo rechazará
+            long inicio = System.nanoTime();
+            if (bloqueo == EstrategiaBloqueo.FOR_UPDATE) {
+                bloquearVehiculo(con, matricula);
+                METRICAS.registrar(MetricasAlquiler.Fase.BLOQUEO, inicio);
+            }
 
-                if (diasDiff < 1) {
-                    throw new AlquilerCochesException(AlquilerCochesException.SIN_DIAS);
+            // En modo PROCEDIMIENTO toda la transacción (comprobaciones, reserva, precio y factura) se hace en el
+            // servidor con una sola llamada. Los errores de aplicación se traducen en el catch de abajo
+            if (modo == ModoAlquiler.PROCEDIMIENTO) {
+                int idReserva = identificadores.siguiente(con, CatalogoSentencias.SECUENCIA_RESERVAS);
+                int idFactura = identificadores.siguiente(con, CatalogoSentencias.SECUENCIA_FACTURAS);
+                inicio = System.nanoTime();
+                int nroFactura;
+                try {
+                    nroFactura = alquilarConProcedimiento(con, nifCliente, matricula, fechaIni, fechaFin, idReserva,
+                        idFactura);
+                } catch (SQLException e) {
+                    // El procedimiento hace su propio commit: si la conexión se pierde durante la llamada no se sabe
+                    // si ha llegado a confirmar, y repetirla podría rechazar el alquiler contra su propia reserva
+                    if (new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.CONNECTION_LOST)) {
+                        throw new EjecutorTransaccional.CommitIncierto(e);
+                    }
+                    throw e;
                 }
+                METRICAS.registrar(MetricasAlquiler.Fase.PROCEDIMIENTO, inicio);
+                LOGGER.debug("Procedimiento alquilar completado: nroFactura={}", nroFactura);
+                return ResultadoAlquiler.correcto(nroFactura);
             }
-            // Dejo la fecha de fin calculada en caso de que sea null la fechaFin introducida
-            else {
-                // Si la fecha de fin es null la calculo sumando a la de inicio los días de alquiler
-                fechaFinAux = new Date(fechaIni.getTime() + TimeUnit.DAYS.toMillis(DIAS_DE_ALQUILER));
-            }
-            
-            // Inicializo la conexión a la base de datos
-            con = pool.getConnection();
-            LOGGER.debug("Conexión obtenida para alquiler: nifCliente={}, matricula={}", nifCliente, matricula);
 
             /*---------------------------------------------------------------------------------------------------
-             * Para la gestión de las excepciones de cliente y vehículo inexistente plantearé un enfoque ofensivo.
-             * Primero gestionaré la excepción de vehículo ocupado de manera defensiva, ya que de otra manera no 
-             * se detectará sola.
-             * Sin embargo, no detectaré si existe o no el cliente o el coche. Es decir, realizaré la inserción y si
-             * dichos elementos no existen, por la forma en la que están diseñadas las tablas, saltará una excepción 
-             * de clave foránea (2291).
-             * Por lo tanto, será al capturarla cuando detecte que clave foránea ha sido violada y propague la excepción
-             * correcta.
+             * Todas las comprobaciones se hacen de forma defensiva y en una sola ida y vuelta a la base de datos:
+             * la consulta de lectura devuelve a la vez si el coche está ocupado en esas fechas, si existe el
+             * cliente y la tarifa del vehículo (nula si no existe). Así las inserciones solo se lanzan cuando el
+             * alquiler va a salir bien, sin insertar, fallar por clave foránea y deshacer.
+             * Se rechaza en el mismo orden de siempre: vehículo ocupado, cliente inexistente y vehículo inexistente.
+             * La excepción de clave foránea (2291) se sigue tratando en el catch por si el cliente o el vehículo
+             * desaparecen entre la lectura y la inserción, o la tarifa de la caché es de un vehículo ya borrado.
              *-----------------------------------------------------------------------------------------*/
 
-            // Ahora comprobaré la disponibilidad del coche introducido en las fechas especificadas
-            selDisponible = con.prepareStatement(
-                "SELECT fecha_ini, fecha_fin FROM reservas WHERE matricula = ?");
-            selDisponible.setString(1, matricula);
-            cursor = selDisponible.executeQuery();
-
-            // Defino unas variables de tipo Date donde iré guardando los valores de las fechas ya reservadas
-            Date fechaIniReservado;
-            Date fechaFinReservado;
-
-            // Itero por todas las reservas realizadas para dicho vehículo
-            // Paso de util.Date a sql.Date: java.sql.Date sqlFechaIni = new java.sql.Date(sqlFechaIni.getTime());
-            while (cursor.next()) {
-                fechaIniReservado = cursor.getDate("fecha_ini");
-                fechaFinReservado = cursor.getDate("fecha_fin");
-                //Tal y como dice en los apuntes, empleamos wasNull() para evualuar la nulidad del contenido de dicha columna en la tabla
-                //No hace falta ya que la fecha no es un tipo primitivo, si embargo, en los apuntes se recomienda hacer de esta forma
-                if (cursor.wasNull()) {
-                    fechaFinReservado = new Date(fechaIniReservado.getTime()
-                          + TimeUnit.DAYS.toMillis(DIAS_DE_ALQUILER));
-                }
+            // Si la tarifa está en la caché no hace falta leerla: la consulta solo comprueba cliente y solape,
+            // este último apoyándose en el índice de reservas por matrícula y fecha de fin
+            inicio = System.nanoTime();
+            PrecioModelo precio = cachePrecios.buscar(matricula);
+            selLectura = con.prepareStatement(precio == null
+                ? CatalogoSentencias.CONSULTA_LECTURA
+                : CatalogoSentencias.CONSULTA_LECTURA_SIN_PRECIO);
+            selLectura.setString(1, nifCliente);
+            selLectura.setString(2, matricula);
+            selLectura.setTimestamp(3, new java.sql.Timestamp(fechaIni.getTime()));
+            selLectura.setTimestamp(4, new java.sql.Timestamp(fechaFinAux.getTime()));
+            if (precio == null) {
+                selLectura.setString(5, matricula);
+            }
 
-                // Dos intervalos [A1,A2] y [B1,B2] se solapan si A1 <= B2 y B1 <= A2
-                // Emplearé: date1.after(date2) → true si date1 > date2
-                if (!fechaIni.after(fechaFinReservado) && !fechaIniReservado.after(fechaFinAux)) {
-                    throw new AlquilerCochesException(AlquilerCochesException.VEHICULO_OCUPADO);
+            boolean ocupado;
+            boolean existeCliente;
+            try (ResultSet lectura = selLectura.executeQuery()) {
+                lectura.next();
+                existeCliente = lectura.getInt("existe_cliente") > 0;
+                ocupado = lectura.getInt("ocupado") > 0;
+                if (precio == null && lectura.getString("matricula") != null) {
+                    precio = CachePrecios.leerPrecio(lectura);
+                    cachePrecios.guardar(matricula, precio);
                 }
             }
-            cursor.close();
-            LOGGER.debug("Disponibilidad comprobada para vehículo con matricula={}", matricula);
+            METRICAS.registrar(MetricasAlquiler.Fase.LECTURA, inicio);
 
-            /* -------------------------------------------------------------------------------------------------------
-             * Una vez gestionada la principal excepción (vehículo ocupado) y ya que las demás son violaciones de claves 
-             * foráneas, realizo la inserción de la reserva. Si no existe coche ya habrá saltado y si no existe cliente 
-             * saltará al intentar insertar.
-             */
-            insReserva = con.prepareStatement(
-                "INSERT INTO reservas (idReserva, cliente, matricula, fecha_ini, fecha_fin) " +
-                "VALUES (seq_reservas.nextval, ?, ?, ?, ?)");
-            insReserva.setString(1, nifCliente);
-            insReserva.setString(2, matricula);
+            if (ocupado) {
+                return ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_OCUPADO);
+            }
+            // Los filtros de existencia anotan como falso positivo los inexistentes que no habían descartado
+            if (!existeCliente) {
+                filtros.falsoPositivoCliente(nifCliente);
+                return ResultadoAlquiler.rechazado(AlquilerCochesException.CLIENTE_NO_EXIST);
+            }
+            if (precio == null) {
+                filtros.falsoPositivoVehiculo(matricula);
+                return ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_NO_EXIST);
+            }
+            LOGGER.debug("Lectura comprobada para vehículo con matricula={}: {}", matricula, precio);
+
+            // Los identificadores salen de los bloques de secuencia que el generador tiene en memoria: normalmente
+            // no cuestan ningún viaje a la base de datos y no dependen de currval en la sesión
+            inicio = System.nanoTime();
+            int idReserva = identificadores.siguiente(con, CatalogoSentencias.SECUENCIA_RESERVAS);
+            int nroFactura = identificadores.siguiente(con, CatalogoSentencias.SECUENCIA_FACTURAS);
+            METRICAS.registrar(MetricasAlquiler.Fase.IDENTIFICADORES, inicio);
+
+            // Una vez hechas las comprobaciones realizo la inserción de la reserva
+            inicio = System.nanoTime();
+            insReserva = con.prepareStatement(CatalogoSentencias.INSERCION_RESERVA);
+            insReserva.setInt(1, idReserva);
+            insReserva.setString(2, nifCliente);
+            insReserva.setString(3, matricula);
             
             // Para insertarlo en la tabla tengo que convertir las fechas de util.Date a sql.Date
-            insReserva.setDate(3, new java.sql.Date(fechaIni.getTime()));
+            insReserva.setDate(4, new java.sql.Date(fechaIni.getTime()));
             
             // Como fechaFin puede ser null, empleo un operador ternario para gestionar dicha posibilidad
             // Si fechaFin es nula, la fecha en sql tendrá ese mismo valor, sino se realiza la conversión
             java.sql.Date sqlfechaFin = (fechaFin == null
                 ? null
                 : new java.sql.Date(fechaFin.getTime()));
-            insReserva.setDate(4, sqlfechaFin);
+            insReserva.setDate(5, sqlfechaFin);
             
             // Por último realizo la inserción en la tabla reservas
             insReserva.executeUpdate();
+            METRICAS.registrar(MetricasAlquiler.Fase.INSERCION_RESERVA, inicio);
             LOGGER.debug("Reserva insertada para nifCliente={}, matricula={}", nifCliente, matricula);
 
             //--------------------------------------------------------------------------------------------
-            // En esta parte realizaré todos los cálculos de los importes de la reserva
-            selImportes = con.prepareStatement(
-                "SELECT id_modelo, m.precio_cada_dia, m.capacidad_deposito, tipo_combustible, p.precio_por_litro " +
-                "FROM vehiculos v JOIN modelos m USING (id_modelo) " +
-                "JOIN precio_combustible p USING (tipo_combustible) " +
-                "WHERE v.matricula = ?");
-            selImportes.setString(1, matricula);
-            cursor = selImportes.executeQuery();
-
-            // Obtengo del ResultSet los datos que necesito y realizo las operaciones en BigDecimal
-            // Selecciono también el nombre del modelo del coche y el tipo de gasolina para meterlo en el concepto de la factura
-            int modelo = 0;
-            BigDecimal dias_alquiler = null;
-            BigDecimal precioXdia = null;
-            BigDecimal capacidad_depo = null;
-            String nombreCombustible = null;
-            BigDecimal precioXlitro = null;
-
-            if (cursor.next()) {
-                modelo = cursor.getInt("id_modelo");
-                dias_alquiler = new BigDecimal(diasDiff);
-                precioXdia = cursor.getBigDecimal("precio_cada_dia");
-                capacidad_depo = new BigDecimal(cursor.getInt("capacidad_deposito"));
-                nombreCombustible = cursor.getString("tipo_combustible");
-                precioXlitro = cursor.getBigDecimal("precio_por_litro");
-            }
-            cursor.close();
-            LOGGER.debug("Importes recuperados: modelo={}, precioPorDia={}, capacidadDeposito={}, precioLitro={}",
-                modelo, precioXdia, capacidad_depo, precioXlitro);
+            // En esta parte realizaré todos los cálculos de los importes de la reserva.
+            // La tarifa del modelo (precio por día, capacidad y precio del combustible) ya se ha obtenido de la caché
+            // de precios o en la consulta de lectura
 
             // Calculo los importes con los datos recuperados
-            BigDecimal importeVehiculo = dias_alquiler.multiply(precioXdia);
-            BigDecimal importeFuel    = capacidad_depo.multiply(precioXlitro);
+            BigDecimal importeVehiculo = precio.importeVehiculo(diasDiff);
+            BigDecimal importeFuel    = precio.getImporteCombustible();
             BigDecimal importeTotal   = importeVehiculo.add(importeFuel);
 
             // Ahora realizaré la inserción en la tabla facturas.
-            insFactura = con.prepareStatement(
-                "INSERT INTO facturas (nroFactura, importe, cliente) " +
-                "VALUES (seq_num_fact.nextval, ?, ?)");
-            insFactura.setBigDecimal(1, importeTotal);
-            insFactura.setString(2, nifCliente);
+            inicio = System.nanoTime();
+            insFactura = con.prepareStatement(CatalogoSentencias.INSERCION_FACTURA);
+            insFactura.setInt(1, nroFactura);
+            insFactura.setBigDecimal(2, importeTotal);
+            insFactura.setString(3, nifCliente);
             insFactura.executeUpdate();
-            LOGGER.debug("Factura generada: importeTotal={}", importeTotal);
+            METRICAS.registrar(MetricasAlquiler.Fase.INSERCION_FACTURA, inicio);
+            LOGGER.debug("Factura generada: nroFactura={}, importeTotal={}", nroFactura, importeTotal);
 
             //-----------------------------------------------------------------------------------------
-            // Por último hago la inserción de los dos importes en la tabla líneas de factura (dos inserciones)
-            insLineaFactura = con.prepareStatement(
-                "INSERT INTO lineas_factura (nroFactura, concepto, importe) " +
-                "VALUES (seq_num_fact.currval, ?, ?)");
+            // Por último hago la inserción de los dos importes en la tabla líneas de factura. Como el número de
+            // factura ya se conoce, las dos líneas van juntas en un único lote JDBC
+            inicio = System.nanoTime();
+            insLineaFactura = con.prepareStatement(CatalogoSentencias.INSERCION_LINEA_FACTURA);
             
-            // Primero inserto el coste del modelo del coche
-            insLineaFactura.setString(1, diasDiff + " dias de alquiler, vehiculo modelo " + modelo);
-            insLineaFactura.setBigDecimal(2, importeVehiculo);
-            insLineaFactura.executeUpdate();
+            // Primero el coste del modelo del coche
+            insLineaFactura.setInt(1, nroFactura);
+            insLineaFactura.setString(2, precio.conceptoVehiculo(diasDiff));
+            insLineaFactura.setBigDecimal(3, importeVehiculo);
+            insLineaFactura.addBatch();
             
-            // Despúes inserto el precio del combustible
-            insLineaFactura.setString(1, "Deposito lleno de " + capacidad_depo + " litros de " + nombreCombustible);
-            insLineaFactura.setBigDecimal(2, importeFuel);
-            insLineaFactura.executeUpdate();
+            // Despúes el precio del combustible
+            insLineaFactura.setInt(1, nroFactura);
+            insLineaFactura.setString(2, precio.conceptoCombustible());
+            insLineaFactura.setBigDecimal(3, importeFuel);
+            insLineaFactura.addBatch();
+            insLineaFactura.executeBatch();
+            METRICAS.registrar(MetricasAlquiler.Fase.INSERCION_LINEAS, inicio);
 
-            // Si se ha llegado hasta aquí sin excepciones hacemos commit en la transacción
-            con.commit();
-            LOGGER.debug("Transacción completada para reserva: nifCliente={}, matricula={}", nifCliente, matricula);
+            // Si se ha llegado hasta aquí sin excepciones el ejecutor hace commit en la transacción
+            return ResultadoAlquiler.correcto(nroFactura);
 
         } catch (SQLException e) {
 
-            // Cualquier excepción primero hacer rollback
-            if (con != null) {
-                con.rollback();
-            }
+            // El rollback lo hace el ejecutor al recibir la excepción; una sentencia fallida ya se ha deshecho
+            // sola, así que la conexión sigue sirviendo para averiguar qué clave foránea se ha violado
 
-            // Si es de mi tipo la propago
-            if (e instanceof AlquilerCochesException) {
-            	LOGGER.debug("Rollback ejecutado por excepción: {}", e.getMessage());
-                throw (AlquilerCochesException) e;
+            // Los raise_application_error del procedimiento se convierten en el rechazo equivalente. El
+            // procedimiento ya ha hecho su rollback
+            int codigo = e.getErrorCode() - ERROR_APLICACION_BASE;
+            if (modo == ModoAlquiler.PROCEDIMIENTO && codigo >= AlquilerCochesException.CLIENTE_NO_EXIST
+                    && codigo <= AlquilerCochesException.VEHICULO_OCUPADO) {
+                LOGGER.debug("Rollback ejecutado por el procedimiento: {}", e.getMessage());
+                return ResultadoAlquiler.rechazado(codigo);
             }
 
             if (new OracleSGBDErrorUtil().checkExceptionToCode(e, SGBDError.FK_VIOLATED)) {
@@ -248,7 +457,7 @@ public class ServicioImpl implements Servicio {
                  * ya que pueden saltar excepciones que no son de nuestro tipo.
                  */
                 boolean existeCliente;
-                try (PreparedStatement selFKFail = con.prepareStatement("SELECT NIF FROM clientes WHERE NIF = ?")) {
+                try (PreparedStatement selFKFail = con.prepareStatement(CatalogoSentencias.CONSULTA_CLIENTE)) {
                     selFKFail.setString(1, nifCliente);
                     try (ResultSet getFKFail = selFKFail.executeQuery()) {
                         existeCliente = getFKFail.next();
@@ -256,14 +465,19 @@ public class ServicioImpl implements Servicio {
                 }
 
                 // Si se ha entrado en este bloque significa que o el cliente o el coche no existe.
-                AlquilerCochesException ex = null;
+                ResultadoAlquiler rechazo = null;
                 if (!existeCliente) {
-                    ex = new AlquilerCochesException(AlquilerCochesException.CLIENTE_NO_EXIST);
+                    rechazo = ResultadoAlquiler.rechazado(AlquilerCochesException.CLIENTE_NO_EXIST);
                 } else {
-                    ex = new AlquilerCochesException(AlquilerCochesException.VEHICULO_NO_EXIST);
+                    rechazo = ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_NO_EXIST);
                 }
-                LOGGER.debug("Rollback ejecutado por excepción: {}", ex.getMessage());
-                throw ex;
+                LOGGER.debug("Alquiler rechazado por clave foránea: {}", rechazo.getMensaje());
+                return rechazo;
+            }
+
+            // Los errores transitorios los registra el ejecutor, que decide si reintentar
+            if (new OracleSGBDErrorUtil().isTransient(e)) {
+                throw e;
             }
 
             // Si la excepción es de cualquier otro tipo, no entra en los ifs anteriores, se guarda en el logger como error y se propaga
@@ -272,29 +486,402 @@ public class ServicioImpl implements Servicio {
 
         } finally {
 
-            // Verificamos la no nulidad del cursor y las sentencias preparadas y los cerramos
-            if (cursor != null) {
-                cursor.close();
+            // Verificamos la no nulidad de las sentencias preparadas y las cerramos
+            if (selLectura != null) {
+                selLectura.close();    
+            }
+            if (insReserva != null) {
+                insReserva.close();
+            }
+            if (insFactura != null) {
+                insFactura.close();
+            }
+            if (insLineaFactura != null) {
+                insLineaFactura.close();
             }
+        }
+    }
+
+    /*
+     * Alquiler por lotes: en lugar de hacer 4 o mas executeUpdate por alquiler, primero se validan todas las
+     * solicitudes del lote (dias, disponibilidad, cliente y vehiculo) y despues se mandan las inserciones de
+     * reservas, facturas y lineas_factura en tres executeBatch. Como en un lote JDBC no podemos apoyarnos en
+     * seq_num_fact.currval, los identificadores se piden por adelantado al generador de identificadores.
+     * Cada lote es una transaccion con su propia conexion del pool, que se pide despues de tomar los cerrojos
+     * del lote, igual que en alquilar(): asi un lote nunca retiene una conexion mientras espera a un cerrojo que
+     * tiene un alquiler individual esperando a su vez por una conexion. Con SEGMENTADO un lote se cierra al
+     * llegar a TAMANO_LOTE solicitudes o cuando la siguiente necesitaria mas de SEGMENTOS_POR_LOTE cerrojos; los
+     * lotes siguen el orden de las solicitudes.
+     */
+    public List<ResultadoAlquiler> alquilar(List<SolicitudAlquiler> solicitudes) throws SQLException {
+        PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+        List<ResultadoAlquiler> resultados = new ArrayList<ResultadoAlquiler>(solicitudes.size());
+        LOGGER.debug("Alquiler por lotes: solicitudes={}", solicitudes.size());
+
+        for (int desde = 0, hasta; desde < solicitudes.size(); desde = hasta) {
+            hasta = finDeLote(solicitudes, desde);
+            List<SolicitudAlquiler> lote = solicitudes.subList(desde, hasta);
+
+            // Los coches del lote se bloquean todos antes de validar, siempre en el mismo orden para que dos lotes
+            // con coches en común no se esperen mutuamente
+            TreeSet<String> matriculas = new TreeSet<String>();
+            for (SolicitudAlquiler solicitud : lote) {
+                matriculas.add(solicitud.getMatricula());
+            }
+            List<Lock> cerrojos = bloqueo == EstrategiaBloqueo.SEGMENTADO
+                ? BLOQUEOS.bloquearTodos(matriculas)
+                : new ArrayList<Lock>();
+
+            Connection con = null;
+            try {
+                con = pool.getConnection();
+                resultados.addAll(alquilarLote(con, lote, matriculas));
+            } catch (SQLException e) {
+                // Un fallo al validar solo afecta a este lote: los anteriores ya estan confirmados y sus
+                // resultados se devuelven igualmente
+                LOGGER.error(e.getMessage(), e);
+                deshacer(con);
+                ResultadoAlquiler error = ResultadoAlquiler.error(e.getMessage());
+                for (int i = desde; i < hasta; i++) {
+                    resultados.add(error);
+                }
+            } finally {
+                try {
+                    if (con != null) {
+                        con.close();
+                    }
+                } finally {
+                    BloqueoSegmentado.liberar(cerrojos);
+                }
+            }
+        }
+        return resultados;
+    }
+
+    /**
+     * Posicion donde termina el lote que empieza en desde: a TAMANO_LOTE solicitudes o, con SEGMENTADO, antes de
+     * la primera que necesitaria un cerrojo mas de los SEGMENTOS_POR_LOTE permitidos.
+     */
+    private int finDeLote(List<SolicitudAlquiler> solicitudes, int desde) {
+        int limite = Math.min(desde + TAMANO_LOTE, solicitudes.size());
+        if (bloqueo != EstrategiaBloqueo.SEGMENTADO) {
+            return limite;
+        }
+        Set<Integer> segmentos = new HashSet<Integer>();
+        int hasta = desde;
+        while (hasta < limite) {
+            segmentos.add(BLOQUEOS.segmento(solicitudes.get(hasta).getMatricula()));
+            if (segmentos.size() > SEGMENTOS_POR_LOTE) {
+                break;
+            }
+            hasta++;
+        }
+        return hasta;
+    }
+
+    /**
+     * Procesa un lote de solicitudes en una unica transaccion. Los cerrojos de SEGMENTADO ya los tiene el llamador.
+     *
+     * @param con conexion sin autocommit
+     * @param lote solicitudes del lote
+     * @param matriculas matriculas del lote, ordenadas
+     * @return resultado de cada solicitud del lote
+     * @throws SQLException si falla la fase de validacion; el llamador hace el rollback
+     */
+    private List<ResultadoAlquiler> alquilarLote(Connection con, List<SolicitudAlquiler> lote,
+            TreeSet<String> matriculas) throws SQLException {
+        ResultadoAlquiler[] resultados = new ResultadoAlquiler[lote.size()];
+        List<AlquilerPreparado> aceptados = new ArrayList<AlquilerPreparado>();
+
+        PreparedStatement selDisponible = null;
+        PreparedStatement selCliente = null;
+        PreparedStatement insReserva = null;
+        PreparedStatement insFactura = null;
+        PreparedStatement insLineaFactura = null;
+
+        try {
+            if (bloqueo == EstrategiaBloqueo.FOR_UPDATE) {
+                for (String matricula : matriculas) {
+                    bloquearVehiculo(con, matricula);
+                }
+            }
+
+            selDisponible = con.prepareStatement(CatalogoSentencias.CONSULTA_SOLAPE);
+            selCliente = con.prepareStatement(CatalogoSentencias.CONSULTA_CLIENTE);
+
+            // Dentro del lote un mismo cliente suele repetirse, asi que solo se consulta una vez.
+            // Las tarifas de los vehiculos ya las guarda la cache de precios
+            Map<String, Boolean> clientes = new HashMap<String, Boolean>();
+            // Intervalos ya aceptados en este lote, que todavia no estan en la tabla reservas
+            Map<String, List<Date[]>> ocupadosEnLote = new HashMap<String, List<Date[]>>();
+
+            //------------------------------------------------------------------------------------------
+            // Fase de validacion: se aplican las mismas reglas y en el mismo orden que en alquilar()
+            for (int i = 0; i < lote.size(); i++) {
+                SolicitudAlquiler solicitud = lote.get(i);
+                Date fechaIni = solicitud.getFechaIni();
+                Date fechaFin = solicitud.getFechaFin();
+
+                long diasDiff = DIAS_DE_ALQUILER;
+                Date fechaFinAux;
+                if (fechaFin != null) {
+                    fechaFinAux = fechaFin;
+                    diasDiff = TimeUnit.MILLISECONDS.toDays(fechaFin.getTime() - fechaIni.getTime());
+                    if (diasDiff < 1) {
+                        resultados[i] = ResultadoAlquiler.rechazado(AlquilerCochesException.SIN_DIAS);
+                        continue;
+                    }
+                } else {
+                    fechaFinAux = new Date(fechaIni.getTime() + TimeUnit.DAYS.toMillis(DIAS_DE_ALQUILER));
+                }
+
+                List<Date[]> ocupados = ocupadosEnLote.get(solicitud.getMatricula());
+                // Aquí el índice de disponibilidad no ahorra nada: un solape suyo habría que confirmarlo con esta
+                // misma consulta
+                if (solapa(ocupados, fechaIni, fechaFinAux)
+                        || estaOcupado(selDisponible, solicitud.getMatricula(), fechaIni, fechaFinAux)) {
+                    resultados[i] = ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_OCUPADO);
+                    continue;
+                }
+
+                if (filtros.clienteInexistente(solicitud.getNifCliente())) {
+                    resultados[i] = ResultadoAlquiler.rechazado(AlquilerCochesException.CLIENTE_NO_EXIST);
+                    continue;
+                }
+                Boolean existeCliente = clientes.get(solicitud.getNifCliente());
+                if (existeCliente == null) {
+                    selCliente.setString(1, solicitud.getNifCliente());
+                    try (ResultSet rs = selCliente.executeQuery()) {
+                        existeCliente = rs.next();
+                    }
+                    clientes.put(solicitud.getNifCliente(), existeCliente);
+                    if (!existeCliente) {
+                        filtros.falsoPositivoCliente(solicitud.getNifCliente());
+                    }
+                }
+                if (!existeCliente) {
+                    resultados[i] = ResultadoAlquiler.rechazado(AlquilerCochesException.CLIENTE_NO_EXIST);
+                    continue;
+                }
+
+                if (filtros.vehiculoInexistente(solicitud.getMatricula())) {
+                    resultados[i] = ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_NO_EXIST);
+                    continue;
+                }
+                PrecioModelo precio = cachePrecios.obtener(con, solicitud.getMatricula());
+                if (precio == null) {
+                    filtros.falsoPositivoVehiculo(solicitud.getMatricula());
+                    resultados[i] = ResultadoAlquiler.rechazado(AlquilerCochesException.VEHICULO_NO_EXIST);
+                    continue;
+                }
+
+                AlquilerPreparado alquiler = new AlquilerPreparado(i, solicitud, diasDiff, fechaFinAux, precio);
+                aceptados.add(alquiler);
+
+                if (ocupados == null) {
+                    ocupados = new ArrayList<Date[]>();
+                    ocupadosEnLote.put(solicitud.getMatricula(), ocupados);
+                }
+                ocupados.add(new Date[] { fechaIni, fechaFinAux });
+            }
+            LOGGER.debug("Lote validado: solicitudes={}, aceptadas={}", lote.size(), aceptados.size());
+
+            if (aceptados.isEmpty()) {
+                con.rollback();
+                return Arrays.asList(resultados);
+            }
+
+            //------------------------------------------------------------------------------------------
+            // Fase de escritura: tres lotes JDBC y un unico commit
+            try {
+                int[] idsReserva = identificadores.siguientes(con, CatalogoSentencias.SECUENCIA_RESERVAS, aceptados.size());
+                int[] nrosFactura = identificadores.siguientes(con, CatalogoSentencias.SECUENCIA_FACTURAS, aceptados.size());
+
+                insReserva = con.prepareStatement(CatalogoSentencias.INSERCION_RESERVA);
+                insFactura = con.prepareStatement(CatalogoSentencias.INSERCION_FACTURA);
+                insLineaFactura = con.prepareStatement(CatalogoSentencias.INSERCION_LINEA_FACTURA);
+
+                for (int i = 0; i < aceptados.size(); i++) {
+                    AlquilerPreparado alquiler = aceptados.get(i);
+                    SolicitudAlquiler solicitud = alquiler.solicitud;
+
+                    insReserva.setInt(1, idsReserva[i]);
+                    insReserva.setString(2, solicitud.getNifCliente());
+                    insReserva.setString(3, solicitud.getMatricula());
+                    insReserva.setDate(4, new java.sql.Date(solicitud.getFechaIni().getTime()));
+                    insReserva.setDate(5, solicitud.getFechaFin() == null
+                        ? null
+                        : new java.sql.Date(solicitud.getFechaFin().getTime()));
+                    insReserva.addBatch();
+
+                    insFactura.setInt(1, nrosFactura[i]);
+                    insFactura.setBigDecimal(2, alquiler.importeTotal);
+                    insFactura.setString(3, solicitud.getNifCliente());
+                    insFactura.addBatch();
+
+                    insLineaFactura.setInt(1, nrosFactura[i]);
+                    insLineaFactura.setString(2, alquiler.precio.conceptoVehiculo(alquiler.diasDiff));
+                    insLineaFactura.setBigDecimal(3, alquiler.importeVehiculo);
+                    insLineaFactura.addBatch();
+
+                    insLineaFactura.setInt(1, nrosFactura[i]);
+                    insLineaFactura.setString(2, alquiler.precio.conceptoCombustible());
+                    insLineaFactura.setBigDecimal(3, alquiler.importeFuel);
+                    insLineaFactura.addBatch();
+                }
+
+                // El orden importa por las claves ajenas: reservas y facturas antes que sus lineas
+                insReserva.executeBatch();
+                insFactura.executeBatch();
+                insLineaFactura.executeBatch();
+                con.commit();
+
+                for (int i = 0; i < aceptados.size(); i++) {
+                    AlquilerPreparado alquiler = aceptados.get(i);
+                    resultados[alquiler.posicion] = ResultadoAlquiler.correcto(nrosFactura[i]);
+                    indice.registrar(alquiler.solicitud.getMatricula(), alquiler.solicitud.getFechaIni(),
+                        alquiler.fechaFinAux);
+                    ocupacion.registrar(alquiler.solicitud.getMatricula(), alquiler.solicitud.getFechaIni(),
+                        alquiler.fechaFinAux);
+                }
+                LOGGER.debug("Lote confirmado: alquileres={}", aceptados.size());
+
+            } catch (SQLException e) {
+                // Un fallo en la escritura deshace el lote completo, el resto de lotes sigue adelante
+                deshacer(con);
+                LOGGER.error(e.getMessage(), e);
+                for (AlquilerPreparado alquiler : aceptados) {
+                    resultados[alquiler.posicion] = ResultadoAlquiler.error(e.getMessage());
+                }
+            }
+
+        } finally {
             if (selDisponible != null) {
-                selDisponible.close();    
+                selDisponible.close();
+            }
+            if (selCliente != null) {
+                selCliente.close();
             }
             if (insReserva != null) {
                 insReserva.close();
             }
-            if (selImportes != null) {
-                selImportes.close();
-            }
             if (insFactura != null) {
                 insFactura.close();
             }
             if (insLineaFactura != null) {
                 insLineaFactura.close();
             }
-            if (con != null) {
-                con.close();   // Si la conexión existe la cerramos
-                LOGGER.debug("Conexión cerrada correctamente");
+        }
+        return Arrays.asList(resultados);
+    }
+
+    /**
+     * Rollback que no tapa el error original: si la conexion se ha perdido tambien falla, y lo importante es que
+     * los cerrojos de FOR_UPDATE no vuelvan al pool.
+     */
+    private static void deshacer(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            LOGGER.debug("No se pudo hacer rollback: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Comprueba si alguna reserva del vehiculo se solapa con el intervalo indicado. Dos intervalos [A1,A2] y
+     * [B1,B2] se solapan si A1 <= B2 y B1 <= A2; una reserva sin fecha de fin ocupa DIAS_DE_ALQUILER dias.
+     *
+     * @param selDisponible sentencia preparada con {@link CatalogoSentencias#CONSULTA_SOLAPE}
+     */
+    private static boolean estaOcupado(PreparedStatement selDisponible, String matricula, Date fechaIni,
+            Date fechaFinAux) throws SQLException {
+        selDisponible.setString(1, matricula);
+        selDisponible.setTimestamp(2, new java.sql.Timestamp(fechaIni.getTime()));
+        selDisponible.setTimestamp(3, new java.sql.Timestamp(fechaFinAux.getTime()));
+        try (ResultSet cursor = selDisponible.executeQuery()) {
+            return cursor.next();
+        }
+    }
+
+    /**
+     * Bloquea la fila del vehiculo en la transaccion actual de la conexion.
+     */
+    private static void bloquearVehiculo(Connection con, String matricula) throws SQLException {
+        try (PreparedStatement st = con.prepareStatement(CatalogoSentencias.BLOQUEO_VEHICULO)) {
+            st.setString(1, matricula);
+            try (ResultSet rs = st.executeQuery()) {
+                rs.next();
+            }
+        }
+    }
+
+    /**
+     * Ejecuta el alquiler completo con el procedimiento almacenado alquilar, que hace su propio commit. Los
+     * identificadores se le pasan ya reservados por el generador.
+     *
+     * @return numero de la factura generada
+     */
+    private static int alquilarConProcedimiento(Connection con, String nifCliente, String matricula, Date fechaIni,
+            Date fechaFin, int idReserva, int nroFactura) throws SQLException {
+        try (CallableStatement cst = con.prepareCall(CatalogoSentencias.LLAMADA_ALQUILAR)) {
+            cst.setString(1, nifCliente);
+            cst.setString(2, matricula);
+            cst.setDate(3, new java.sql.Date(fechaIni.getTime()));
+            if (fechaFin == null) {
+                cst.setNull(4, Types.DATE);
+            } else {
+                cst.setDate(4, new java.sql.Date(fechaFin.getTime()));
             }
+            cst.registerOutParameter(5, Types.INTEGER);
+            cst.setInt(6, idReserva);
+            cst.setInt(7, nroFactura);
+            cst.execute();
+            return cst.getInt(5);
+        }
+    }
+
+    /**
+     * Comprueba el solape contra los intervalos ya aceptados dentro del lote.
+     */
+    private static boolean solapa(List<Date[]> ocupados, Date fechaIni, Date fechaFinAux) {
+        if (ocupados != null) {
+            for (Date[] intervalo : ocupados) {
+                if (!fechaIni.after(intervalo[1]) && !intervalo[0].after(fechaFinAux)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Alquiler ya validado dentro de un lote, con los importes calculados igual que en alquilar().
+     */
+    private static class AlquilerPreparado {
+        final int posicion;
+        final SolicitudAlquiler solicitud;
+        final long diasDiff;
+        final Date fechaFinAux;
+        final PrecioModelo precio;
+
+        final BigDecimal importeVehiculo;
+        final BigDecimal importeFuel;
+        final BigDecimal importeTotal;
+
+        AlquilerPreparado(int posicion, SolicitudAlquiler solicitud, long diasDiff, Date fechaFinAux,
+                PrecioModelo precio) {
+            this.posicion = posicion;
+            this.solicitud = solicitud;
+            this.diasDiff = diasDiff;
+            this.fechaFinAux = fechaFinAux;
+            this.precio = precio;
+            this.importeVehiculo = precio.importeVehiculo(diasDiff);
+            this.importeFuel = precio.getImporteCombustible();
+            this.importeTotal = importeVehiculo.add(importeFuel);
         }
     }
 }
@@ -0,0 +1,593 @@
+package lsi.ubu.servicios;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * ServicioInformes: Consultas de lectura sobre facturas, reservas y vehiculos para los informes, pensadas para
+ * volumenes grandes.
+ *
+ * Los listados se leen por paginas con paginacion por clave (nroFactura, idReserva o matricula mayor que la
+ * ultima leida) en lugar de OFFSET, de modo que cada pagina cuesta lo mismo sea la primera o la diezmilesima. Los
+ * metodos recorrer* entregan las filas una a una a un {@link Consumidor} segun llegan del driver, pagina a pagina,
+ * y no guardan nada: la memoria no depende del tamaño del informe. Cada pagina usa su propia conexion del pool, asi
+ * que un informe largo no retiene conexiones; las filas insertadas mientras tanto aparecen al final si su clave es
+ * mayor.
+ *
+ * Las facturas no guardan fecha ni vehiculo, asi que los ingresos por modelo y periodo se calculan a partir de las
+ * reservas con la misma formula que {@link ServicioImpl} aplica al facturar, con las tarifas actuales.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class ServicioInformes {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServicioInformes.class);
+
+	/** Facturas por pagina al recorrer un listado completo. Cada factura tiene dos lineas. */
+	public static final int FACTURAS_POR_PAGINA = 500;
+
+	/** Reservas o vehiculos por pagina al recorrer un listado completo. */
+	public static final int FILAS_POR_PAGINA = 1000;
+
+	// Filas que trae el driver en cada viaje: una pagina completa en uno o dos viajes, en vez de las 10 por defecto
+	private static final int FILAS_POR_VIAJE = 1000;
+
+	private static final int DIAS_DE_ALQUILER = CatalogoSentencias.DIAS_DE_ALQUILER;
+
+	/*
+	 * Pagina de facturas con sus lineas. El limite se aplica a las facturas en la subconsulta, para que una pagina
+	 * nunca corte las lineas de una factura. Con cliente se apoya en facturas_cliente_idx.
+	 */
+	private static final String PAGINA_FACTURAS =
+		"SELECT f.nroFactura, f.cliente, f.importe, l.concepto, l.importe " +
+		"FROM (SELECT * FROM (" +
+		"SELECT nroFactura, cliente, importe FROM facturas WHERE nroFactura > ? %s ORDER BY nroFactura" +
+		") WHERE ROWNUM <= ?) f " +
+		"LEFT JOIN lineas_factura l ON l.nroFactura = f.nroFactura " +
+		"ORDER BY f.nroFactura, l.concepto";
+
+	private static final String PAGINA_FACTURAS_TODAS = String.format(PAGINA_FACTURAS, "");
+	private static final String PAGINA_FACTURAS_CLIENTE = String.format(PAGINA_FACTURAS, "AND cliente = ?");
+
+	private static final String PAGINA_RESERVAS =
+		"SELECT * FROM (" +
+		"SELECT idReserva, cliente, matricula, fecha_ini, fecha_fin FROM reservas " +
+		"WHERE idReserva > ? AND fecha_ini >= CAST(? AS DATE) AND fecha_ini < CAST(? AS DATE) " +
+		"ORDER BY idReserva" +
+		") WHERE ROWNUM <= ?";
+
+	// Mismos dias e importes que ServicioImpl: dias completos entre las fechas, o 4 sin fecha de fin
+	private static final String INGRESOS_POR_MODELO =
+		"SELECT m.id_modelo, m.nombre, TRUNC(r.fecha_ini, 'MM') mes, COUNT(*) alquileres, " +
+		"SUM(NVL(TRUNC(r.fecha_fin - r.fecha_ini), " + DIAS_DE_ALQUILER + ")) dias, " +
+		"SUM(NVL(TRUNC(r.fecha_fin - r.fecha_ini), " + DIAS_DE_ALQUILER + ") * m.precio_cada_dia " +
+		"+ m.capacidad_deposito * p.precio_por_litro) importe " +
+		"FROM reservas r " +
+		"JOIN vehiculos v ON v.matricula = r.matricula " +
+		"JOIN modelos m ON m.id_modelo = v.id_modelo " +
+		"JOIN precio_combustible p ON p.tipo_combustible = m.tipo_combustible " +
+		"WHERE r.fecha_ini >= CAST(? AS DATE) AND r.fecha_ini < CAST(? AS DATE) " +
+		"GROUP BY m.id_modelo, m.nombre, TRUNC(r.fecha_ini, 'MM') " +
+		"ORDER BY mes, m.id_modelo";
+
+	/*
+	 * Dias ocupados de cada vehiculo dentro de [desde, hasta), recortando las reservas que empiezan antes o
+	 * terminan despues. El predicado sobre NVL(fecha_fin, ...) es el de reservas_ocupacion_idx. Parametros: hasta,
+	 * desde, hasta, desde, ultima matricula y numero de vehiculos.
+	 */
+	private static final String PAGINA_UTILIZACION =
+		"SELECT * FROM (" +
+		"SELECT v.matricula, v.id_modelo, " +
+		"NVL(SUM(LEAST(NVL(r.fecha_fin, r.fecha_ini + " + DIAS_DE_ALQUILER + "), CAST(? AS DATE)) " +
+		"- GREATEST(r.fecha_ini, CAST(? AS DATE))), 0) dias " +
+		"FROM vehiculos v LEFT JOIN reservas r ON r.matricula = v.matricula " +
+		"AND r.fecha_ini < CAST(? AS DATE) " +
+		"AND NVL(r.fecha_fin, r.fecha_ini + " + DIAS_DE_ALQUILER + ") > CAST(? AS DATE) " +
+		"WHERE v.matricula > ? " +
+		"GROUP BY v.matricula, v.id_modelo " +
+		"ORDER BY v.matricula" +
+		") WHERE ROWNUM <= ?";
+
+	private final PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+	/**
+	 * Recibe las filas de un informe segun se leen.
+	 */
+	public interface Consumidor<T> {
+		void aceptar(T fila) throws SQLException;
+	}
+
+	/**
+	 * Pagina de facturas o reservas con paginacion por clave. Para pedir la siguiente se pasa
+	 * {@link #getSiguiente()} como clave de inicio.
+	 */
+	public static class Pagina<T> {
+
+		private final List<T> filas;
+		private final int siguiente;
+
+		Pagina(List<T> filas, int siguiente) {
+			this.filas = Collections.unmodifiableList(filas);
+			this.siguiente = siguiente;
+		}
+
+		public List<T> getFilas() {
+			return filas;
+		}
+
+		/**
+		 * @return true si puede haber mas filas despues de esta pagina
+		 */
+		public boolean hayMas() {
+			return siguiente >= 0;
+		}
+
+		/**
+		 * @return clave de la ultima fila, para pedir la pagina siguiente, o -1 si era la ultima
+		 */
+		public int getSiguiente() {
+			return siguiente;
+		}
+	}
+
+	/**
+	 * Pagina de facturas de un cliente, en orden de numero de factura.
+	 *
+	 * @param nifCliente cliente, o null para todas las facturas
+	 * @param despuesDe  ultimo numero de factura de la pagina anterior, 0 para la primera
+	 * @param tamanyo    numero maximo de facturas de la pagina
+	 * @return facturas con sus lineas
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Pagina<Factura> facturas(String nifCliente, int despuesDe, int tamanyo) throws SQLException {
+		final List<Factura> filas = new ArrayList<Factura>(tamanyo);
+		leerFacturas(nifCliente, despuesDe, tamanyo, new Consumidor<Factura>() {
+			@Override
+			public void aceptar(Factura factura) {
+				filas.add(factura);
+			}
+		});
+		return new Pagina<Factura>(filas,
+				filas.size() < tamanyo ? -1 : filas.get(filas.size() - 1).getNroFactura());
+	}
+
+	/**
+	 * Recorre todas las facturas, o las de un cliente, en orden de numero de factura.
+	 *
+	 * @param nifCliente cliente, o null para todas las facturas
+	 * @param consumidor recibe cada factura con sus lineas
+	 * @return numero de facturas recorridas
+	 * @throws SQLException si hay un error con la base de datos o lo lanza el consumidor
+	 */
+	public long recorrerFacturas(String nifCliente, final Consumidor<Factura> consumidor) throws SQLException {
+		final int[] ultima = { 0 };
+		Consumidor<Factura> anotador = new Consumidor<Factura>() {
+			@Override
+			public void aceptar(Factura factura) throws SQLException {
+				ultima[0] = factura.getNroFactura();
+				consumidor.aceptar(factura);
+			}
+		};
+		long total = 0;
+		int leidas;
+		do {
+			leidas = leerFacturas(nifCliente, ultima[0], FACTURAS_POR_PAGINA, anotador);
+			total += leidas;
+		} while (leidas == FACTURAS_POR_PAGINA);
+		LOGGER.debug("Facturas recorridas: cliente={}, facturas={}", nifCliente, total);
+		return total;
+	}
+
+	/**
+	 * Pagina de reservas que empiezan en [desde, hasta), en orden de idReserva.
+	 *
+	 * @param despuesDe ultimo idReserva de la pagina anterior, 0 para la primera
+	 * @param tamanyo   numero maximo de reservas de la pagina
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Pagina<Reserva> reservas(Date desde, Date hasta, int despuesDe, int tamanyo) throws SQLException {
+		final List<Reserva> filas = new ArrayList<Reserva>(tamanyo);
+		leerReservas(desde, hasta, despuesDe, tamanyo, new Consumidor<Reserva>() {
+			@Override
+			public void aceptar(Reserva reserva) {
+				filas.add(reserva);
+			}
+		});
+		return new Pagina<Reserva>(filas,
+				filas.size() < tamanyo ? -1 : filas.get(filas.size() - 1).getIdReserva());
+	}
+
+	/**
+	 * Recorre las reservas que empiezan en [desde, hasta), en orden de idReserva.
+	 *
+	 * @return numero de reservas recorridas
+	 * @throws SQLException si hay un error con la base de datos o lo lanza el consumidor
+	 */
+	public long recorrerReservas(Date desde, Date hasta, final Consumidor<Reserva> consumidor) throws SQLException {
+		final int[] ultima = { 0 };
+		Consumidor<Reserva> anotador = new Consumidor<Reserva>() {
+			@Override
+			public void aceptar(Reserva reserva) throws SQLException {
+				ultima[0] = reserva.getIdReserva();
+				consumidor.aceptar(reserva);
+			}
+		};
+		long total = 0;
+		int leidas;
+		do {
+			leidas = leerReservas(desde, hasta, ultima[0], FILAS_POR_PAGINA, anotador);
+			total += leidas;
+		} while (leidas == FILAS_POR_PAGINA);
+		return total;
+	}
+
+	/**
+	 * Ingresos de cada modelo por mes, para las reservas que empiezan en [desde, hasta). Se agrega en la base de
+	 * datos, asi que solo viaja una fila por modelo y mes.
+	 *
+	 * @return numero de filas entregadas
+	 * @throws SQLException si hay un error con la base de datos o lo lanza el consumidor
+	 */
+	public int ingresosPorModelo(Date desde, Date hasta, Consumidor<IngresoModelo> consumidor) throws SQLException {
+		int filas = 0;
+		Connection con = pool.getConnection();
+		try (PreparedStatement st = con.prepareStatement(INGRESOS_POR_MODELO)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			st.setTimestamp(1, new Timestamp(desde.getTime()));
+			st.setTimestamp(2, new Timestamp(hasta.getTime()));
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					consumidor.aceptar(new IngresoModelo(rs.getInt(1), rs.getString(2), rs.getTimestamp(3),
+							rs.getInt(4), rs.getLong(5), rs.getBigDecimal(6)));
+					filas++;
+				}
+			}
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+		return filas;
+	}
+
+	/**
+	 * Recorre todos los vehiculos, en orden de matricula, con los dias que han estado reservados en [desde, hasta).
+	 *
+	 * @return numero de vehiculos recorridos
+	 * @throws SQLException si hay un error con la base de datos o lo lanza el consumidor
+	 */
+	public long utilizacionVehiculos(Date desde, Date hasta, Consumidor<UtilizacionVehiculo> consumidor)
+			throws SQLException {
+		double diasPeriodo = (double) (hasta.getTime() - desde.getTime()) / TimeUnit.DAYS.toMillis(1);
+		Timestamp inicio = new Timestamp(desde.getTime());
+		Timestamp fin = new Timestamp(hasta.getTime());
+
+		// Para Oracle la cadena vacia es NULL: se empieza por un blanco, menor que cualquier matricula
+		String ultima = " ";
+		long total = 0;
+		int leidas;
+		do {
+			leidas = 0;
+			Connection con = pool.getConnection();
+			try (PreparedStatement st = con.prepareStatement(PAGINA_UTILIZACION)) {
+				st.setFetchSize(FILAS_POR_VIAJE);
+				st.setTimestamp(1, fin);
+				st.setTimestamp(2, inicio);
+				st.setTimestamp(3, fin);
+				st.setTimestamp(4, inicio);
+				st.setString(5, ultima);
+				st.setInt(6, FILAS_POR_PAGINA);
+				try (ResultSet rs = st.executeQuery()) {
+					while (rs.next()) {
+						ultima = rs.getString(1);
+						double dias = rs.getDouble(3);
+						consumidor.aceptar(new UtilizacionVehiculo(ultima, rs.getInt(2), dias,
+								diasPeriodo <= 0 ? 0 : dias / diasPeriodo));
+						leidas++;
+					}
+				}
+			} finally {
+				PoolDeConexiones.devolver(con);
+			}
+			total += leidas;
+		} while (leidas == FILAS_POR_PAGINA);
+		return total;
+	}
+
+	/**
+	 * Lee una pagina de facturas. Las lineas llegan ordenadas por factura, asi que cada factura se entrega en
+	 * cuanto empieza la siguiente.
+	 *
+	 * @return numero de facturas leidas
+	 */
+	private int leerFacturas(String nifCliente, int despuesDe, int tamanyo, Consumidor<Factura> consumidor)
+			throws SQLException {
+		int facturas = 0;
+		Connection con = pool.getConnection();
+		try (PreparedStatement st = con.prepareStatement(
+				nifCliente == null ? PAGINA_FACTURAS_TODAS : PAGINA_FACTURAS_CLIENTE)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			int i = 1;
+			st.setInt(i++, despuesDe);
+			if (nifCliente != null) {
+				st.setString(i++, nifCliente);
+			}
+			st.setInt(i, tamanyo);
+
+			try (ResultSet rs = st.executeQuery()) {
+				Factura actual = null;
+				while (rs.next()) {
+					int nroFactura = rs.getInt(1);
+					if (actual == null || actual.getNroFactura() != nroFactura) {
+						if (actual != null) {
+							consumidor.aceptar(actual);
+						}
+						actual = new Factura(nroFactura, rs.getString(2), rs.getBigDecimal(3));
+						facturas++;
+					}
+					String concepto = rs.getString(4);
+					if (concepto != null) {
+						// concepto es char(40): se quitan los blancos de relleno
+						actual.lineas.add(new LineaFactura(concepto.trim(), rs.getBigDecimal(5)));
+					}
+				}
+				if (actual != null) {
+					consumidor.aceptar(actual);
+				}
+			}
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+		return facturas;
+	}
+
+	private int leerReservas(Date desde, Date hasta, int despuesDe, int tamanyo, Consumidor<Reserva> consumidor)
+			throws SQLException {
+		int reservas = 0;
+		Connection con = pool.getConnection();
+		try (PreparedStatement st = con.prepareStatement(PAGINA_RESERVAS)) {
+			st.setFetchSize(FILAS_POR_VIAJE);
+			st.setInt(1, despuesDe);
+			st.setTimestamp(2, new Timestamp(desde.getTime()));
+			st.setTimestamp(3, new Timestamp(hasta.getTime()));
+			st.setInt(4, tamanyo);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					consumidor.aceptar(new Reserva(rs.getInt(1), rs.getString(2), rs.getString(3),
+							rs.getTimestamp(4), rs.getTimestamp(5)));
+					reservas++;
+				}
+			}
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+		return reservas;
+	}
+
+	/**
+	 * Factura con sus lineas.
+	 */
+	public static class Factura {
+
+		private final int nroFactura;
+		private final String cliente;
+		private final BigDecimal importe;
+		private final List<LineaFactura> lineas = new ArrayList<LineaFactura>(2);
+
+		Factura(int nroFactura, String cliente, BigDecimal importe) {
+			this.nroFactura = nroFactura;
+			this.cliente = cliente;
+			this.importe = importe;
+		}
+
+		public int getNroFactura() {
+			return nroFactura;
+		}
+
+		public String getCliente() {
+			return cliente;
+		}
+
+		public BigDecimal getImporte() {
+			return importe;
+		}
+
+		public List<LineaFactura> getLineas() {
+			return Collections.unmodifiableList(lineas);
+		}
+
+		@Override
+		public String toString() {
+			return "Factura [nroFactura=" + nroFactura + ", cliente=" + cliente + ", importe=" + importe
+					+ ", lineas=" + lineas + "]";
+		}
+	}
+
+	/**
+	 * Linea de una factura.
+	 */
+	public static class LineaFactura {
+
+		private final String concepto;
+		private final BigDecimal importe;
+
+		LineaFactura(String concepto, BigDecimal importe) {
+			this.concepto = concepto;
+			this.importe = importe;
+		}
+
+		public String getConcepto() {
+			return concepto;
+		}
+
+		public BigDecimal getImporte() {
+			return importe;
+		}
+
+		@Override
+		public String toString() {
+			return concepto + ": " + importe;
+		}
+	}
+
+	/**
+	 * Reserva tal como esta en la tabla; fechaFin es null si se alquilo sin fecha de fin.
+	 */
+	public static class Reserva {
+
+		private final int idReserva;
+		private final String cliente;
+		private final String matricula;
+		private final Date fechaIni;
+		private final Date fechaFin;
+
+		Reserva(int idReserva, String cliente, String matricula, Date fechaIni, Date fechaFin) {
+			this.idReserva = idReserva;
+			this.cliente = cliente;
+			this.matricula = matricula;
+			this.fechaIni = fechaIni;
+			this.fechaFin = fechaFin;
+		}
+
+		public int getIdReserva() {
+			return idReserva;
+		}
+
+		public String getCliente() {
+			return cliente;
+		}
+
+		public String getMatricula() {
+			return matricula;
+		}
+
+		public Date getFechaIni() {
+			return fechaIni;
+		}
+
+		public Date getFechaFin() {
+			return fechaFin;
+		}
+
+		@Override
+		public String toString() {
+			return "Reserva [idReserva=" + idReserva + ", cliente=" + cliente + ", matricula=" + matricula
+					+ ", fechaIni=" + fechaIni + ", fechaFin=" + fechaFin + "]";
+		}
+	}
+
+	/**
+	 * Ingresos de un modelo en un mes.
+	 */
+	public static class IngresoModelo {
+
+		private final int idModelo;
+		private final String nombre;
+		private final Date mes;
+		private final int alquileres;
+		private final long dias;
+		private final BigDecimal importe;
+
+		IngresoModelo(int idModelo, String nombre, Date mes, int alquileres, long dias, BigDecimal importe) {
+			this.idModelo = idModelo;
+			this.nombre = nombre;
+			this.mes = mes;
+			this.alquileres = alquileres;
+			this.dias = dias;
+			this.importe = importe;
+		}
+
+		public int getIdModelo() {
+			return idModelo;
+		}
+
+		public String getNombre() {
+			return nombre;
+		}
+
+		/**
+		 * @return primer dia del mes
+		 */
+		public Date getMes() {
+			return mes;
+		}
+
+		public int getAlquileres() {
+			return alquileres;
+		}
+
+		public long getDias() {
+			return dias;
+		}
+
+		public BigDecimal getImporte() {
+			return importe;
+		}
+
+		@Override
+		public String toString() {
+			return "IngresoModelo [idModelo=" + idModelo + ", nombre=" + nombre + ", mes=" + mes + ", alquileres="
+					+ alquileres + ", dias=" + dias + ", importe=" + importe + "]";
+		}
+	}
+
+	/**
+	 * Ocupacion de un vehiculo en el periodo del informe.
+	 */
+	public static class UtilizacionVehiculo {
+
+		private final String matricula;
+		private final int idModelo;
+		private final double diasReservado;
+		private final double utilizacion;
+
+		UtilizacionVehiculo(String matricula, int idModelo, double diasReservado, double utilizacion) {
+			this.matricula = matricula;
+			this.idModelo = idModelo;
+			this.diasReservado = diasReservado;
+			this.utilizacion = utilizacion;
+		}
+
+		public String getMatricula() {
+			return matricula;
+		}
+
+		public int getIdModelo() {
+			return idModelo;
+		}
+
+		public double getDiasReservado() {
+			return diasReservado;
+		}
+
+		/**
+		 * @return proporcion del periodo con el vehiculo reservado, entre 0 y 1
+		 */
+		public double getUtilizacion() {
+			return utilizacion;
+		}
+
+		@Override
+		public String toString() {
+			return "UtilizacionVehiculo [matricula=" + matricula + ", idModelo=" + idModelo + ", diasReservado="
+					+ diasReservado + ", utilizacion=" + utilizacion + "]";
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package lsi.ubu.servicios;
+
+import java.util.Date;
+
+/**
+ * SolicitudAlquiler: Datos de entrada de un alquiler dentro de una peticion por lotes. Contiene los mismos
+ * parametros que recibe {@link Servicio#alquilar(String, String, Date, Date)}.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class SolicitudAlquiler {
+
+	private final String nifCliente;
+	private final String matricula;
+	private final Date fechaIni;
+	private final Date fechaFin;
+
+	/**
+	 * Crea una solicitud de alquiler.
+	 *
+	 * @param nifCliente NIF del cliente
+	 * @param matricula  matricula del vehiculo
+	 * @param fechaIni   fecha de inicio del alquiler
+	 * @param fechaFin   fecha de fin del alquiler, puede ser null
+	 */
+	public SolicitudAlquiler(String nifCliente, String matricula, Date fechaIni, Date fechaFin) {
+		this.nifCliente = nifCliente;
+		this.matricula = matricula;
+		this.fechaIni = fechaIni;
+		this.fechaFin = fechaFin;
+	}
+
+	public String getNifCliente() {
+		return nifCliente;
+	}
+
+	public String getMatricula() {
+		return matricula;
+	}
+
+	public Date getFechaIni() {
+		return fechaIni;
+	}
+
+	public Date getFechaFin() {
+		return fechaFin;
+	}
+
+	@Override
+	public String toString() {
+		return "SolicitudAlquiler [nifCliente=" + nifCliente + ", matricula=" + matricula + ", fechaIni=" + fechaIni
+				+ ", fechaFin=" + fechaFin + "]";
+	}
+}
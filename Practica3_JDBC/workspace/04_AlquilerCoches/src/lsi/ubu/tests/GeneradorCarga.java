@@ -0,0 +1,309 @@
+package lsi.ubu.tests;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.benchmarks.FlotaSintetica;
+import lsi.ubu.benchmarks.Parametros;
+import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.servicios.CatalogoSentencias;
+import lsi.ubu.servicios.FiltrosExistencia;
+import lsi.ubu.servicios.MetricasAlquiler;
+import lsi.ubu.servicios.Servicio;
+import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.util.ControladorPool;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.Histograma;
+import lsi.ubu.util.MetricasPool;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Generador de carga concurrente para el servicio de alquiler. Lanza una mezcla configurable de peticiones desde
+ * N hilos sobre una flota sintetica y, para cada numero de hilos, informa de:
+ * <ul>
+ * <li>rendimiento (alquileres/s) y eficiencia respecto a 1 hilo</li>
+ * <li>latencia p50, p95, p99 y p999</li>
+ * <li>proporcion de cada codigo de AlquilerCochesException</li>
+ * <li>tiempo de espera para obtener conexion del pool</li>
+ * </ul>
+ * Al subir el numero de hilos se ve en que punto el rendimiento deja de crecer y si la causa es la espera al pool.
+ *
+ * Ejemplo:
+ *
+ * <pre>
+ * java lsi.ubu.tests.GeneradorCarga hilos=1,2,4,8,16,32 segundos=30 flota=500 reservas=100
+ *      mezcla=EXITO:70,VEHICULO_OCUPADO:20,CLIENTE_NO_EXIST:5,VEHICULO_NO_EXIST:3,SIN_DIAS:2
+ * </pre>
+ *
+ * Con filtros=true se cargan los filtros de existencia antes de empezar y se informa de su tasa de falsos
+ * positivos y de su memoria.
+ *
+ * Con adaptativo=5,40 un {@link ControladorPool} ajusta cada segundo el maximo del pool entre esos limites; el
+ * informe del pool de cada ronda muestra el maximo con el que ha terminado.
+ *
+ * Cada ronda informa tambien de la latencia de cada fase del alquiler ({@link MetricasAlquiler}). Con
+ * fases=fichero.csv se guardan ademas en ese fichero, una linea por fase y numero de hilos.
+ */
+public class GeneradorCarga {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeneradorCarga.class);
+
+	/** Tipos de peticion que se pueden mezclar. */
+	public enum TipoPeticion {
+		EXITO, VEHICULO_OCUPADO, CLIENTE_NO_EXIST, VEHICULO_NO_EXIST, SIN_DIAS
+	}
+
+	// Posiciones del contador de resultados: 0 correcto, 1..4 codigos de AlquilerCochesException, 5 otros errores
+	private static final int CORRECTO = 0;
+	private static final int OTRO_ERROR = AlquilerCochesException.VEHICULO_OCUPADO + 1;
+	private static final String[] NOMBRES_RESULTADO = { "OK", "CLIENTE_NO_EXIST", "VEHICULO_NO_EXIST", "SIN_DIAS",
+			"VEHICULO_OCUPADO", "OTRO_ERROR" };
+
+	private final Servicio servicio;
+	private final FlotaSintetica flota;
+	private final TipoPeticion[] tipos;
+	private final int[] pesosAcumulados;
+
+	private final AtomicLong secuencia = new AtomicLong();
+
+	/**
+	 * @param servicio servicio a probar
+	 * @param flota    flota ya preparada
+	 * @param mezcla   pares TIPO:peso
+	 */
+	public GeneradorCarga(Servicio servicio, FlotaSintetica flota, String[] mezcla) {
+		this.servicio = servicio;
+		this.flota = flota;
+		this.tipos = new TipoPeticion[mezcla.length];
+		this.pesosAcumulados = new int[mezcla.length];
+
+		int acumulado = 0;
+		for (int i = 0; i < mezcla.length; i++) {
+			String[] par = mezcla[i].split(":");
+			tipos[i] = TipoPeticion.valueOf(par[0].trim());
+			acumulado += Integer.parseInt(par[1].trim());
+			pesosAcumulados[i] = acumulado;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Parametros p = new Parametros(args);
+
+		ExecuteScript.run(p.texto("script", "sql/alquiler_coches.sql"));
+		CatalogoSentencias.precalentarEn(PoolDeConexiones.getInstance());
+		PoolDeConexiones.getInstance().warmUp();
+		MetricasPool metricasPool = PoolDeConexiones.getInstance().registrarMetricas();
+		MetricasAlquiler metricasAlquiler = ServicioImpl.getMetricas();
+		metricasAlquiler.registrarMBean();
+		String ficheroFases = p.texto("fases", null);
+		int[] limitesPool = p.enteros("adaptativo");
+		if (limitesPool.length == 2) {
+			new ControladorPool(PoolDeConexiones.getInstance(), limitesPool[0], limitesPool[1]).iniciar(1,
+					TimeUnit.SECONDS);
+		}
+
+		FlotaSintetica flota = new FlotaSintetica(p.enteros("flota", 500)[0], p.enteros("reservas", 100)[0]);
+		flota.preparar();
+		boolean conFiltros = Boolean.parseBoolean(p.texto("filtros", "false"));
+		if (conFiltros) {
+			FiltrosExistencia.getInstance().resincronizar();
+		}
+
+		GeneradorCarga generador = new GeneradorCarga(new ServicioImpl(), flota,
+				p.textos("mezcla", "EXITO:70,VEHICULO_OCUPADO:20,CLIENTE_NO_EXIST:5,VEHICULO_NO_EXIST:3,SIN_DIAS:2"));
+
+		int segundos = p.enteros("segundos", 30)[0];
+		int calentamiento = p.enteros("calentamiento", 5)[0];
+
+		LOGGER.info("Pool: maximo {} conexiones", PoolDeConexiones.getInstance().getMaxPoolSize());
+		double rendimientoUnHilo = 0;
+		boolean ficheroIniciado = false;
+		for (int hilos : p.enteros("hilos", 1, 2, 4, 8, 16, 32)) {
+			generador.ejecutar(hilos, calentamiento);
+			metricasPool.reiniciar();
+			metricasAlquiler.reiniciar();
+			Informe informe = generador.ejecutar(hilos, segundos);
+			if (rendimientoUnHilo == 0) {
+				rendimientoUnHilo = informe.getRendimiento() / hilos;
+			}
+			LOGGER.info(informe.toString(rendimientoUnHilo));
+			LOGGER.info("  pool: {}", metricasPool);
+			LOGGER.info("  fases (us):\n{}", metricasAlquiler.getResumen());
+			if (ficheroFases != null) {
+				guardarFases(ficheroFases, hilos, metricasAlquiler, !ficheroIniciado);
+				ficheroIniciado = true;
+			}
+			if (conFiltros) {
+				LOGGER.info("  filtros: {}", FiltrosExistencia.getInstance());
+			}
+		}
+	}
+
+	/**
+	 * Añade al fichero CSV las fases de una ronda, con el numero de hilos como primera columna.
+	 */
+	private static void guardarFases(String fichero, int hilos, MetricasAlquiler metricas, boolean primeraRonda)
+			throws IOException {
+		String[] lineas = metricas.getCsv().split("\n");
+		try (Writer salida = primeraRonda
+				? Files.newBufferedWriter(Paths.get(fichero), StandardCharsets.UTF_8)
+				: Files.newBufferedWriter(Paths.get(fichero), StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+			if (primeraRonda) {
+				salida.write("hilos;" + lineas[0] + "\n");
+			}
+			for (int i = 1; i < lineas.length; i++) {
+				salida.write(hilos + ";" + lineas[i] + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Lanza la carga desde varios hilos durante el tiempo indicado.
+	 *
+	 * @param hilos    numero de hilos
+	 * @param segundos duracion
+	 * @return informe de la ejecucion
+	 * @throws InterruptedException si se interrumpe la espera a los hilos
+	 */
+	public Informe ejecutar(int hilos, int segundos) throws InterruptedException {
+		final Informe informe = new Informe(hilos);
+		final long fin = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+		final Histograma esperaPool = PoolDeConexiones.getInstance().getEsperaPrestamo();
+		esperaPool.reiniciar();
+
+		List<Thread> trabajadores = new ArrayList<Thread>();
+		for (int h = 0; h < hilos; h++) {
+			trabajadores.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < fin) {
+						TipoPeticion tipo = elegirTipo();
+						long inicio = System.nanoTime();
+						int resultado = lanzar(tipo);
+						informe.latencias.registrarDesde(inicio);
+						informe.resultados.incrementAndGet(resultado);
+					}
+				}
+			}, "carga-" + h));
+		}
+
+		long inicio = System.nanoTime();
+		for (Thread hilo : trabajadores) {
+			hilo.start();
+		}
+		for (Thread hilo : trabajadores) {
+			hilo.join();
+		}
+		informe.nanos = System.nanoTime() - inicio;
+		informe.esperaPool = esperaPool.toString();
+		return informe;
+	}
+
+	private TipoPeticion elegirTipo() {
+		int valor = ThreadLocalRandom.current().nextInt(pesosAcumulados[pesosAcumulados.length - 1]);
+		for (int i = 0; i < pesosAcumulados.length; i++) {
+			if (valor < pesosAcumulados[i]) {
+				return tipos[i];
+			}
+		}
+		return tipos[tipos.length - 1];
+	}
+
+	/**
+	 * Lanza una peticion del tipo indicado.
+	 *
+	 * @return posicion del resultado en el contador
+	 */
+	private int lanzar(TipoPeticion tipo) {
+		long n = secuencia.getAndIncrement();
+		String matricula = FlotaSintetica.matricula((int) (n % flota.getVehiculos()));
+		// Intervalo libre distinto para cada vuelta a la flota, como en el benchmark
+		int desde = FlotaSintetica.INICIO_LIBRE + 3 * (int) (n / flota.getVehiculos());
+		String cliente = FlotaSintetica.CLIENTE;
+		Date ini = flota.dia(desde);
+		Date fin = flota.dia(desde + 2);
+
+		switch (tipo) {
+		case VEHICULO_OCUPADO:
+			ini = flota.dia(FlotaSintetica.INICIO_BLOQUEO + 1);
+			fin = flota.dia(FlotaSintetica.INICIO_BLOQUEO + 3);
+			break;
+		case CLIENTE_NO_EXIST:
+			cliente = FlotaSintetica.CLIENTE_INEXISTENTE;
+			break;
+		case VEHICULO_NO_EXIST:
+			matricula = "ZZZZ-999";
+			break;
+		case SIN_DIAS:
+			fin = ini;
+			break;
+		default:
+			break;
+		}
+
+		try {
+			servicio.alquilar(cliente, matricula, ini, fin);
+			return CORRECTO;
+		} catch (AlquilerCochesException e) {
+			return e.getErrorCode();
+		} catch (SQLException e) {
+			return OTRO_ERROR;
+		}
+	}
+
+	/**
+	 * Resultado de una ejecucion con un numero de hilos.
+	 */
+	public static class Informe {
+		final int hilos;
+		final Histograma latencias = new Histograma();
+		final AtomicLongArray resultados = new AtomicLongArray(NOMBRES_RESULTADO.length);
+		long nanos;
+		String esperaPool;
+
+		Informe(int hilos) {
+			this.hilos = hilos;
+		}
+
+		/**
+		 * @return peticiones por segundo
+		 */
+		public double getRendimiento() {
+			return latencias.getCuenta() * 1e9 / nanos;
+		}
+
+		/**
+		 * @param rendimientoUnHilo rendimiento por hilo con un solo hilo
+		 * @return informe en texto
+		 */
+		public String toString(double rendimientoUnHilo) {
+			StringBuilder texto = new StringBuilder();
+			texto.append(String.format("hilos=%d peticiones/s=%.1f eficiencia=%.0f%%%n", hilos, getRendimiento(),
+					100 * getRendimiento() / (rendimientoUnHilo * hilos)));
+			texto.append("  latencia: ").append(latencias).append('\n');
+			texto.append("  espera pool: ").append(esperaPool).append('\n');
+			texto.append("  resultados:");
+			long total = Math.max(1, latencias.getCuenta());
+			for (int i = 0; i < NOMBRES_RESULTADO.length; i++) {
+				texto.append(String.format(" %s=%.1f%%", NOMBRES_RESULTADO[i], 100.0 * resultados.get(i) / total));
+			}
+			return texto.toString();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package lsi.ubu.tests;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.Misc;
+import lsi.ubu.servicios.CatalogoSentencias;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Mide el coste de comprobar la disponibilidad de un vehiculo segun crece su historico de reservas. Compara el
+ * recorrido con cursor que se hacia antes en ServicioImpl (todas las reservas del coche se traen a Java) con la
+ * consulta de existencia apoyada en el indice reservas_ocupacion_idx.
+ *
+ * Necesita la misma base de datos que {@link Tests}. Se lanza con:
+ * java lsi.ubu.tests.MedicionDisponibilidad
+ */
+public class MedicionDisponibilidad {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(MedicionDisponibilidad.class);
+
+	private static final int[] RESERVAS_POR_VEHICULO = { 0, 100, 1000, 10000, 50000 };
+	private static final int CALENTAMIENTO = 200;
+	private static final int REPETICIONES = 2000;
+
+	private static final String MATRICULA = "1234-ABC";
+
+	/** Las dos formas de comprobar la disponibilidad que se comparan. */
+	private enum Comprobacion {
+		/** Recorrido de todas las reservas del coche en Java, como hacia ServicioImpl antes de usar el indice. */
+		CURSOR("SELECT fecha_ini, fecha_fin FROM reservas WHERE matricula = ?"),
+		/** Consulta de solape del servicio, apoyada en reservas_ocupacion_idx. */
+		INDICE(CatalogoSentencias.CONSULTA_SOLAPE);
+
+		private final String sql;
+
+		Comprobacion(String sql) {
+			this.sql = sql;
+		}
+	}
+
+	public static void main(String[] args) throws SQLException {
+		ExecuteScript.run("sql/alquiler_coches.sql");
+
+		// Intervalo libre posterior a todo el historico: es el peor caso para el recorrido con cursor
+		Date fechaIni = Misc.addDays(Misc.getCurrentDate(), 10);
+		Date fechaFin = Misc.addDays(fechaIni, 2);
+
+		LOGGER.info("reservas/vehiculo;cursor (us/consulta);indice (us/consulta)");
+		for (int historico : RESERVAS_POR_VEHICULO) {
+			prepararHistorico(historico);
+
+			double cursor = medir(Comprobacion.CURSOR, fechaIni, fechaFin);
+			double indice = medir(Comprobacion.INDICE, fechaIni, fechaFin);
+
+			LOGGER.info(String.format("%d;%.1f;%.1f", historico, cursor, indice));
+		}
+	}
+
+	/**
+	 * Reinicia las tablas e inserta reservas pasadas de 2 dias, una cada 5 dias hacia atras.
+	 */
+	private static void prepararHistorico(int reservas) throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			try (CallableStatement cst = con.prepareCall("{call inicializa_test}")) {
+				cst.execute();
+			}
+			try (PreparedStatement st = con.prepareStatement(
+					"INSERT INTO reservas VALUES (seq_reservas.nextval, '12345678A', ?, ?, ?)")) {
+				Date hoy = Misc.getCurrentDate();
+				for (int i = 1; i <= reservas; i++) {
+					Date ini = Misc.addDays(hoy, -5 * i);
+					st.setString(1, MATRICULA);
+					st.setDate(2, new java.sql.Date(ini.getTime()));
+					st.setDate(3, new java.sql.Date(Misc.addDays(ini, 2).getTime()));
+					st.addBatch();
+					if (i % 1000 == 0) {
+						st.executeBatch();
+					}
+				}
+				st.executeBatch();
+			}
+			con.commit();
+
+			// Con estadisticas actualizadas el optimizador elige el indice aunque la tabla acabe de llenarse
+			try (CallableStatement cst = con.prepareCall("BEGIN DBMS_STATS.GATHER_TABLE_STATS(USER, 'RESERVAS'); END;")) {
+				cst.execute();
+			}
+		} finally {
+			con.close();
+		}
+	}
+
+	/**
+	 * Ejecuta la comprobacion de disponibilidad repetidas veces y devuelve la media en microsegundos.
+	 */
+	private static double medir(Comprobacion consulta, Date fechaIni, Date fechaFin) throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (PreparedStatement st = con.prepareStatement(consulta.sql)) {
+			for (int i = 0; i < CALENTAMIENTO; i++) {
+				comprobar(st, consulta, fechaIni, fechaFin);
+			}
+			long inicio = System.nanoTime();
+			for (int i = 0; i < REPETICIONES; i++) {
+				comprobar(st, consulta, fechaIni, fechaFin);
+			}
+			return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - inicio) / (double) REPETICIONES;
+		} finally {
+			PoolDeConexiones.devolver(con);
+		}
+	}
+
+	private static boolean comprobar(PreparedStatement st, Comprobacion consulta, Date fechaIni, Date fechaFin)
+			throws SQLException {
+		st.setString(1, MATRICULA);
+		if (consulta == Comprobacion.INDICE) {
+			st.setTimestamp(2, new java.sql.Timestamp(fechaIni.getTime()));
+			st.setTimestamp(3, new java.sql.Timestamp(fechaFin.getTime()));
+			try (ResultSet rs = st.executeQuery()) {
+				return rs.next();
+			}
+		}
+
+		// Recorrido del historico en Java, como hacia ServicioImpl antes de usar el indice
+		boolean ocupado = false;
+		try (ResultSet rs = st.executeQuery()) {
+			while (rs.next()) {
+				Date ini = rs.getDate(1);
+				Date fin = rs.getDate(2);
+				if (rs.wasNull()) {
+					fin = Misc.addDays(ini, Misc.DEFAULT_INVOICE_DAYS);
+				}
+				if (!fechaIni.after(fin) && !ini.after(fechaFin)) {
+					ocupado = true;
+				}
+			}
+		}
+		return ocupado;
+	}
+}
@@ -1,5 +1,12 @@
 package lsi.ubu.tests;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -8,14 +15,30 @@ import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lsi.ubu.excepciones.AlquilerCochesException;
+import lsi.ubu.servicios.CatalogoSentencias;
+import lsi.ubu.servicios.EstrategiaBloqueo;
+import lsi.ubu.servicios.FiltrosExistencia;
+import lsi.ubu.servicios.ImportadorHistorico;
+import lsi.ubu.servicios.IndiceDisponibilidad;
+import lsi.ubu.servicios.IndiceOcupacion;
+import lsi.ubu.servicios.ModoAlquiler;
+import lsi.ubu.servicios.ResultadoAlquiler;
 import lsi.ubu.servicios.Servicio;
 import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.servicios.ServicioInformes;
+import lsi.ubu.servicios.SolicitudAlquiler;
+import lsi.ubu.util.ContadorViajes;
+import lsi.ubu.util.EjecutorScripts;
+import lsi.ubu.util.GeneradorIdentificadores;
+import lsi.ubu.util.MetricasPool;
 import lsi.ubu.util.PoolDeConexiones;
 
 public class Tests {
@@ -23,6 +46,13 @@ public class Tests {
 	/** Logger. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(Tests.class);
 
+	// Viajes de cada paso de un alquiler JDBC (caso 8). Los identificadores salen de bloques ya reservados y no
+	// cuestan viajes
+	private static final int VIAJES_BLOQUEO_FILA = 1; // SELECT ... FOR UPDATE, solo con FOR_UPDATE
+	private static final int VIAJES_LECTURA = 1; // cliente, solape y tarifa en una consulta
+	private static final int VIAJES_INSERCIONES = 3; // reserva, factura y lote de lineas
+	private static final int VIAJES_FIN_TRANSACCION = 1; // commit, o rollback de un rechazo
+
 	public void ejecutarTests() throws SQLException {
 
 		Servicio servicio = new ServicioImpl();
@@ -31,6 +61,10 @@ public class Tests {
 
 		SimpleDateFormat formatoFechas = new SimpleDateFormat("dd-MM-yyyy");
 
+		// inicializa_test borra reservas e inserta clientes y vehiculos por fuera del servicio, asi que tras cada
+		// reinicio de filas se vuelven a cargar el indice de disponibilidad y los filtros de existencia, como tendria
+		// que hacer cualquier proceso que las cambie sin avisarles
+
 		// caso 1 nro dias negativo
 		{
 			try {
@@ -101,6 +135,9 @@ public class Tests {
 				con = pool.getConnection();
 				cst = con.prepareCall("{call inicializa_test}");
 				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
 
 				fechaIni = formatoFechas.parse("11-3-2013");
 
@@ -169,6 +206,9 @@ public class Tests {
 				con = pool.getConnection();
 				cst = con.prepareCall("{call inicializa_test}");
 				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
 
 				String query = "";
 				query += " insert into reservas values ";
@@ -218,6 +258,9 @@ public class Tests {
 				con = pool.getConnection();
 				cst = con.prepareCall("{call inicializa_test}");
 				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
 
 				String query = "";
 				query += " insert into reservas values ";
@@ -268,6 +311,9 @@ public class Tests {
 				con = pool.getConnection();
 				cst = con.prepareCall("{call inicializa_test}");
 				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
 
 				String query = "";
 				query += " insert into reservas values ";
@@ -320,6 +366,9 @@ public class Tests {
 				con = pool.getConnection();
 				cst = con.prepareCall("{call inicializa_test}");
 				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
 
 				fechaIni = formatoFechas.parse("11-3-2013");
 				fechaFin = formatoFechas.parse("13-3-2013");
@@ -373,5 +422,485 @@ public class Tests {
 				}
 			}
 		}
+
+		// caso 7 las sentencias de un alquiler correcto salen todas de la cache de sentencias de la conexion
+		{
+			Connection con = null;
+			CallableStatement cst = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				// Las conexiones prestadas a partir de aqui anotan si cada sentencia preparada estaba en la cache
+				CatalogoSentencias.precalentarEn(pool);
+				MetricasPool metricas = pool.registrarMetricas();
+				metricas.reiniciar();
+
+				fechaIni = formatoFechas.parse("11-3-2013");
+				fechaFin = formatoFechas.parse("13-3-2013");
+				servicio.alquilar("12345678A", "2222-ABC", fechaIni, fechaFin);
+
+				if (metricas.getFallosCacheSentencias() == 0 && metricas.getAciertosCacheSentencias() > 0) {
+					LOGGER.info("OK Caso sentencias del alquiler en la cache de sentencias");
+				} else {
+					LOGGER.info("MAL Caso sentencias del alquiler en la cache de sentencias: "
+							+ metricas.getFallosCacheSentencias() + " sentencias preparadas fuera de la cache");
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso sentencias del alquiler en la cache de sentencias levanta excepcion "
+						+ e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 8 un alquiler hace exactamente los viajes a la base de datos de su camino, con cada estrategia de
+		// bloqueo: correcto, rechazado en memoria por el indice de disponibilidad y rechazado en la base de datos
+		for (EstrategiaBloqueo estrategia : new EstrategiaBloqueo[] { EstrategiaBloqueo.SEGMENTADO,
+				EstrategiaBloqueo.FOR_UPDATE }) {
+			Connection con = null;
+			CallableStatement cst = null;
+			PreparedStatement st = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				Servicio jdbc = new ServicioImpl(ModoAlquiler.JDBC, estrategia);
+				fechaIni = formatoFechas.parse("11-3-2013");
+				fechaFin = formatoFechas.parse("13-3-2013");
+				Date otroIni = formatoFechas.parse("21-3-2013");
+				Date otroFin = formatoFechas.parse("23-3-2013");
+
+				// El primer alquiler reserva los bloques de identificadores, que luego no cuestan viajes
+				jdbc.alquilar("12345678A", "2222-ABC", fechaIni, fechaFin);
+
+				// Reserva hecha por fuera del servicio, como la de otro proceso: el indice no la conoce
+				st = con.prepareStatement("INSERT INTO reservas VALUES (seq_reservas.nextval, ?, ?, ?, ?)");
+				st.setString(1, "12345678A");
+				st.setString(2, "2222-ABC");
+				st.setDate(3, new java.sql.Date(otroIni.getTime()));
+				st.setDate(4, new java.sql.Date(otroFin.getTime()));
+				st.executeUpdate();
+				con.commit();
+
+				int bloqueoFila = estrategia == EstrategiaBloqueo.FOR_UPDATE ? VIAJES_BLOQUEO_FILA : 0;
+				pool.setContarViajes(true);
+				try {
+					comprobarViajes(estrategia + " correcto", jdbc, "11111111B", "1111-ABC", fechaIni, fechaFin,
+							true, bloqueoFila + VIAJES_LECTURA + VIAJES_INSERCIONES + VIAJES_FIN_TRANSACCION);
+					comprobarViajes(estrategia + " rechazado por el indice", jdbc, "11111111B", "1111-ABC", fechaIni,
+							fechaFin, false, 0);
+					comprobarViajes(estrategia + " rechazado en la base de datos", jdbc, "11111111B", "2222-ABC",
+							otroIni, otroFin, false, bloqueoFila + VIAJES_LECTURA + VIAJES_FIN_TRANSACCION);
+				} finally {
+					pool.setContarViajes(false);
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso viajes de un alquiler levanta excepcion " + e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (st != null) {
+					st.close();
+				}
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 9 los informes cuadran con la factura de un alquiler
+		{
+			Connection con = null;
+			CallableStatement cst = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				fechaIni = formatoFechas.parse("11-3-2013");
+				fechaFin = formatoFechas.parse("13-3-2013");
+				servicio.alquilar("12345678A", "1234-ABC", fechaIni, fechaFin);
+
+				ServicioInformes informes = new ServicioInformes();
+				ServicioInformes.Pagina<ServicioInformes.Factura> pagina = informes.facturas("12345678A", 0, 10);
+				BigDecimal importeLineas = BigDecimal.ZERO;
+				for (ServicioInformes.LineaFactura linea : pagina.getFilas().get(0).getLineas()) {
+					importeLineas = importeLineas.add(linea.getImporte());
+				}
+				final BigDecimal[] ingresos = { BigDecimal.ZERO };
+				informes.ingresosPorModelo(formatoFechas.parse("1-3-2013"), formatoFechas.parse("1-4-2013"),
+						new ServicioInformes.Consumidor<ServicioInformes.IngresoModelo>() {
+							@Override
+							public void aceptar(ServicioInformes.IngresoModelo fila) {
+								ingresos[0] = ingresos[0].add(fila.getImporte());
+							}
+						});
+				BigDecimal importe = pagina.getFilas().get(0).getImporte();
+
+				if (pagina.getFilas().size() == 1 && !pagina.hayMas()
+						&& pagina.getFilas().get(0).getLineas().size() == 2 && importe.compareTo(importeLineas) == 0
+						&& importe.compareTo(ingresos[0]) == 0) {
+					LOGGER.info("OK Caso informes de facturas e ingresos");
+				} else {
+					LOGGER.info("MAL Caso informes de facturas e ingresos: " + pagina.getFilas() + ", ingresos "
+							+ ingresos[0]);
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso informes de facturas e ingresos levanta excepcion " + e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 10 el indice de ocupacion no ofrece un vehiculo reservado y si el resto de su combustible
+		{
+			Connection con = null;
+			CallableStatement cst = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				fechaIni = formatoFechas.parse("11-3-2013");
+				fechaFin = formatoFechas.parse("13-3-2013");
+				servicio.alquilar("12345678A", "1111-ABC", fechaIni, fechaFin);
+
+				IndiceOcupacion ocupacion = IndiceOcupacion.getInstance();
+				ocupacion.cargar(con, formatoFechas.parse("1-3-2013"), 60);
+				con.rollback();
+				List<String> libres = ocupacion.buscarLibres(null, "Gasoil", formatoFechas.parse("12-3-2013"),
+						formatoFechas.parse("12-3-2013"));
+
+				if (libres.size() == 1 && libres.contains("2222-ABC")) {
+					LOGGER.info("OK Caso vehiculos libres en el indice de ocupacion");
+				} else {
+					LOGGER.info("MAL Caso vehiculos libres en el indice de ocupacion: " + libres);
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso vehiculos libres en el indice de ocupacion levanta excepcion " + e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 11 la importacion historica carga las filas validas, rechaza las de claves inexistentes o repetidas,
+		// no repite un fichero ya importado y deja las secuencias por encima de lo importado
+		{
+			Connection con = null;
+			CallableStatement cst = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				Path directorio = Files.createTempDirectory("importacion");
+				Files.write(directorio.resolve("facturas.csv"), Arrays.asList("nroFactura;importe;cliente",
+						"10001;80.00;12345678A", "10002;50.00;00000000Z", "10001;90.00;11111111B"),
+						StandardCharsets.UTF_8);
+				Files.write(directorio.resolve("lineas_factura.csv"), Arrays.asList("nroFactura;concepto;importe",
+						"10001;\"2 dias de alquiler; historico\";30.00", "10001;Deposito;50.00", "10002;Deposito;50.00"),
+						StandardCharsets.UTF_8);
+
+				List<ImportadorHistorico.Resultado> primera = new ImportadorHistorico(100, 1000).importar(directorio);
+				List<ImportadorHistorico.Resultado> segunda = new ImportadorHistorico(100, 1000).importar(directorio);
+				ServicioInformes.Pagina<ServicioInformes.Factura> pagina = new ServicioInformes().facturas(null, 0,
+						10);
+				ResultadoAlquiler alquiler = servicio.intentarAlquilar("12345678A", "1234-ABC",
+						formatoFechas.parse("11-3-2013"), formatoFechas.parse("13-3-2013"));
+
+				if (primera.get(0).getInsertadas() == 1 && primera.get(0).getRechazadas() == 2
+						&& primera.get(1).getInsertadas() == 2 && primera.get(1).getRechazadas() == 1
+						&& segunda.get(0).getInsertadas() == 0 && segunda.get(1).getInsertadas() == 0
+						&& pagina.getFilas().size() == 1 && pagina.getFilas().get(0).getLineas().size() == 2
+						&& alquiler.getNroFactura() > 10001) {
+					LOGGER.info("OK Caso importacion historica");
+				} else {
+					LOGGER.info("MAL Caso importacion historica: " + primera + ", " + segunda + ", "
+							+ pagina.getFilas() + ", " + alquiler);
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso importacion historica levanta excepcion " + e.getMessage());
+			} catch (IOException e) {
+				LOGGER.error("Error en el test al escribir los ficheros de importacion: " + e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 12 el alquiler por lotes devuelve un resultado por solicitud, en orden, con los mismos rechazos que
+		// el alquiler individual
+		{
+			Connection con = null;
+			CallableStatement cst = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				fechaIni = formatoFechas.parse("11-3-2013");
+				fechaFin = formatoFechas.parse("13-3-2013");
+				List<ResultadoAlquiler> resultados = servicio.alquilar(Arrays.asList(
+						new SolicitudAlquiler("12345678A", "1234-ABC", fechaIni, fechaFin),
+						new SolicitudAlquiler("11111111B", "1234-ABC", formatoFechas.parse("12-3-2013"), null),
+						new SolicitudAlquiler("87654321Z", "2222-ABC", fechaIni, fechaFin),
+						new SolicitudAlquiler("12345678A", "9999-ZZZ", fechaIni, fechaFin),
+						new SolicitudAlquiler("11111111B", "2222-ABC", fechaIni, fechaFin)));
+
+				if (resultados.size() == 5 && resultados.get(0).isCorrecto()
+						&& resultados.get(1).getCodigo() == AlquilerCochesException.VEHICULO_OCUPADO
+						&& resultados.get(2).getCodigo() == AlquilerCochesException.CLIENTE_NO_EXIST
+						&& resultados.get(3).getCodigo() == AlquilerCochesException.VEHICULO_NO_EXIST
+						&& resultados.get(4).isCorrecto()
+						&& resultados.get(0).getNroFactura() != resultados.get(4).getNroFactura()) {
+					LOGGER.info("OK Caso alquiler por lotes");
+				} else {
+					LOGGER.info("MAL Caso alquiler por lotes: " + resultados);
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso alquiler por lotes levanta excepcion " + e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 13 los filtros de existencia rechazan cada uno por su cuenta sin viajes a la base de datos, despues
+		// de un vehiculo ocupado que conoce el indice de disponibilidad
+		{
+			Connection con = null;
+			CallableStatement cst = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				FiltrosExistencia filtros = FiltrosExistencia.getInstance();
+				filtros.reiniciar();
+
+				fechaIni = formatoFechas.parse("11-3-2013");
+				fechaFin = formatoFechas.parse("13-3-2013");
+				servicio.alquilar("12345678A", "1234-ABC", fechaIni, fechaFin);
+
+				ResultadoAlquiler ocupado = servicio.intentarAlquilar("87654321Z", "1234-ABC",
+						formatoFechas.parse("12-3-2013"), null);
+
+				pool.setContarViajes(true);
+				ContadorViajes.Cuenta cuenta = ContadorViajes.iniciar();
+				ResultadoAlquiler sinCliente;
+				ResultadoAlquiler sinVehiculo;
+				try {
+					sinCliente = servicio.intentarAlquilar("87654321Z", "2222-ABC", fechaIni, fechaFin);
+					sinVehiculo = servicio.intentarAlquilar("12345678A", "9999-ZZZ", fechaIni, fechaFin);
+				} finally {
+					ContadorViajes.terminar();
+					pool.setContarViajes(false);
+				}
+
+				if (ocupado.getCodigo() == AlquilerCochesException.VEHICULO_OCUPADO
+						&& sinCliente.getCodigo() == AlquilerCochesException.CLIENTE_NO_EXIST
+						&& sinVehiculo.getCodigo() == AlquilerCochesException.VEHICULO_NO_EXIST
+						&& cuenta.getViajes() == 0 && filtros.getRechazadosClientes() == 1
+						&& filtros.getRechazadosVehiculos() == 1) {
+					LOGGER.info("OK Caso rechazos con filtros de existencia");
+				} else {
+					LOGGER.info("MAL Caso rechazos con filtros de existencia: " + ocupado + ", " + sinCliente + ", "
+							+ sinVehiculo + ", " + cuenta + ", " + filtros);
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso rechazos con filtros de existencia levanta excepcion " + e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 14 el indice de disponibilidad rechaza un coche reservado y deja de hacerlo al anular la reserva
+		{
+			Connection con = null;
+			CallableStatement cst = null;
+			PreparedStatement st = null;
+
+			try {
+				// Reinicio filas
+				con = pool.getConnection();
+				cst = con.prepareCall("{call inicializa_test}");
+				cst.execute();
+				GeneradorIdentificadores.getInstance().descartarBloques();
+				IndiceDisponibilidad.getInstance().resincronizar();
+				FiltrosExistencia.getInstance().resincronizar();
+
+				IndiceDisponibilidad indice = IndiceDisponibilidad.getInstance();
+
+				fechaIni = formatoFechas.parse("11-3-2013");
+				fechaFin = formatoFechas.parse("13-3-2013");
+				servicio.alquilar("12345678A", "1234-ABC", fechaIni, fechaFin);
+				boolean conocida = indice.estaOcupado("1234-ABC", fechaIni, fechaFin);
+				ResultadoAlquiler ocupado = servicio.intentarAlquilar("11111111B", "1234-ABC", fechaIni, fechaFin);
+
+				// Se borra la reserva por fuera del servicio y, tras el commit, se quita del indice
+				st = con.prepareStatement("DELETE FROM reservas WHERE matricula = ?");
+				st.setString(1, "1234-ABC");
+				st.executeUpdate();
+				con.commit();
+				indice.anular("1234-ABC", fechaIni, fechaFin);
+
+				ResultadoAlquiler libre = servicio.intentarAlquilar("11111111B", "1234-ABC", fechaIni, fechaFin);
+
+				if (conocida && ocupado.getCodigo() == AlquilerCochesException.VEHICULO_OCUPADO
+						&& libre.isCorrecto()) {
+					LOGGER.info("OK Caso indice de disponibilidad");
+				} else {
+					LOGGER.info("MAL Caso indice de disponibilidad: " + conocida + ", " + ocupado + ", " + libre);
+				}
+
+			} catch (SQLException e) {
+				LOGGER.info("MAL Caso indice de disponibilidad levanta excepcion " + e.getMessage());
+			} catch (ParseException e) {
+				LOGGER.error("Error en el test al parsear la fechas desde cadena.");
+			} finally {
+				if (st != null) {
+					st.close();
+				}
+				if (cst != null) {
+					cst.close();
+				}
+				if (con != null) {
+					con.close();
+				}
+			}
+		}
+
+		// caso 15 el analizador de scripts separa alquiler_coches.sql en 24 sentencias SQL, los 3 bloques PL/SQL
+		// y el exec final
+		{
+			try (BufferedReader lector = Files.newBufferedReader(Paths.get("sql/alquiler_coches.sql"),
+					StandardCharsets.UTF_8)) {
+				List<EjecutorScripts.Sentencia> sentencias = EjecutorScripts.analizar(lector);
+
+				boolean correcto = sentencias.size() == 28;
+				for (int i = 0; correcto && i < sentencias.size(); i++) {
+					EjecutorScripts.Tipo esperado = i < 24 ? EjecutorScripts.Tipo.SQL : EjecutorScripts.Tipo.PLSQL;
+					correcto = sentencias.get(i).getTipo() == esperado;
+				}
+				correcto = correcto && sentencias.get(27).getTexto().contains("inicializa_test");
+
+				if (correcto) {
+					LOGGER.info("OK Caso analisis del script sql");
+				} else {
+					LOGGER.info("MAL Caso analisis del script sql: " + sentencias);
+				}
+
+			} catch (IOException e) {
+				LOGGER.info("MAL Caso analisis del script sql levanta excepcion " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Lanza un alquiler contando sus viajes y comprueba el resultado y que los viajes son exactamente los esperados.
+	 */
+	private static void comprobarViajes(String camino, Servicio servicio, String nifCliente, String matricula,
+			Date fechaIni, Date fechaFin, boolean correcto, int esperados) throws SQLException {
+		ContadorViajes.Cuenta cuenta = ContadorViajes.iniciar();
+		ResultadoAlquiler resultado;
+		try {
+			resultado = servicio.intentarAlquilar(nifCliente, matricula, fechaIni, fechaFin);
+		} finally {
+			ContadorViajes.terminar();
+		}
+		if (resultado.isCorrecto() == correcto && cuenta.getViajes() == esperados) {
+			LOGGER.info("OK Caso viajes de un alquiler " + camino + ": " + cuenta);
+		} else {
+			LOGGER.info("MAL Caso viajes de un alquiler " + camino + ", esperados " + esperados + ": " + resultado
+					+ ", " + cuenta);
+		}
 	}
 }
\ No newline at end of file
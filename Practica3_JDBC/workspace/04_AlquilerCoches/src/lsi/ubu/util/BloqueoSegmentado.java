@@ -0,0 +1,94 @@
+package lsi.ubu.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conjunto fijo de cerrojos repartidos por clave (lock striping). Dos claves iguales usan siempre el mismo
+ * cerrojo; claves distintas casi siempre usan cerrojos distintos, por lo que pueden avanzar en paralelo sin
+ * necesidad de un cerrojo por clave.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class BloqueoSegmentado {
+
+	private final ReentrantLock[] cerrojos;
+	private final int mascara;
+
+	/**
+	 * @param segmentos numero minimo de cerrojos; se redondea a la siguiente potencia de 2
+	 */
+	public BloqueoSegmentado(int segmentos) {
+		int tamano = Integer.highestOneBit(Math.max(1, segmentos - 1)) << 1;
+		cerrojos = new ReentrantLock[tamano];
+		for (int i = 0; i < tamano; i++) {
+			cerrojos[i] = new ReentrantLock();
+		}
+		mascara = tamano - 1;
+	}
+
+	/**
+	 * Cerrojo que corresponde a una clave.
+	 */
+	public Lock cerrojo(Object clave) {
+		return cerrojos[segmento(clave)];
+	}
+
+	/**
+	 * Adquiere los cerrojos de varias claves siempre en el mismo orden (por segmento), para que dos hilos con
+	 * claves en comun no puedan bloquearse mutuamente.
+	 *
+	 * @param claves claves a bloquear
+	 * @return cerrojos adquiridos, para pasarlos a {@link #liberar(List)}
+	 */
+	public List<Lock> bloquearTodos(Collection<?> claves) {
+		TreeSet<Integer> segmentos = new TreeSet<Integer>();
+		for (Object clave : claves) {
+			segmentos.add(segmento(clave));
+		}
+		List<Lock> adquiridos = new ArrayList<Lock>(segmentos.size());
+		for (int segmento : segmentos) {
+			cerrojos[segmento].lock();
+			adquiridos.add(cerrojos[segmento]);
+		}
+		return adquiridos;
+	}
+
+	/**
+	 * Libera los cerrojos obtenidos con {@link #bloquearTodos(Collection)} en orden inverso.
+	 */
+	public static void liberar(List<Lock> adquiridos) {
+		for (int i = adquiridos.size() - 1; i >= 0; i--) {
+			adquiridos.get(i).unlock();
+		}
+	}
+
+	/**
+	 * @return numero de hilos esperando por algun cerrojo (aproximado)
+	 */
+	public int getHilosEsperando() {
+		int esperando = 0;
+		for (ReentrantLock cerrojo : cerrojos) {
+			esperando += cerrojo.getQueueLength();
+		}
+		return esperando;
+	}
+
+	/**
+	 * Segmento (indice del cerrojo) que corresponde a una clave, para que quien bloquea varias claves pueda saber
+	 * cuantos cerrojos va a tomar antes de llamar a {@link #bloquearTodos(Collection)}.
+	 */
+	public int segmento(Object clave) {
+		int h = clave.hashCode();
+		// Mezcla los bits altos con los bajos, como HashMap, antes de quedarnos con los bits de la mascara
+		return (h ^ (h >>> 16)) & mascara;
+	}
+}
@@ -0,0 +1,180 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * ContadorViajes: cuenta lo que hace con JDBC una llamada logica a los servicios (un alquilar, p.e.) para poder
+ * fijar presupuestos de viajes a la base de datos en las pruebas.
+ *
+ * Con {@link PoolDeConexiones#setContarViajes(boolean)} las conexiones que entrega el pool se envuelven, y con
+ * ellas las sentencias y los ResultSet que crean. Lo que se hace sobre ellas se anota en la {@link Cuenta} abierta
+ * en el hilo con {@link #iniciar()}; sin cuenta abierta no se anota nada.
+ *
+ * Se envuelve la conexion ya prestada y no el DataSource: el pool necesita la conexion real de UCP para comprobar
+ * sus etiquetas (LabelableConnection) y configurar la sesion, y esos viajes del propio pool no son del servicio.
+ * Asi ademas se puede activar y desactivar en cualquier momento sin volver a crear el pool.
+ *
+ * Los viajes son una estimacion: cada ejecucion, commit y rollback es uno, y al leer filas se suma otro cada vez
+ * que se agota un bloque de fetchSize filas. Preparar una sentencia no cuenta, el driver la envia con su primera
+ * ejecucion.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public final class ContadorViajes {
+
+	private static final ThreadLocal<Cuenta> CUENTA = new ThreadLocal<Cuenta>();
+
+	private ContadorViajes() {
+	}
+
+	/**
+	 * Abre una cuenta nueva en el hilo actual, sustituyendo a la que hubiera.
+	 *
+	 * @return cuenta en la que se anotara lo que haga el hilo hasta {@link #terminar()}
+	 */
+	public static Cuenta iniciar() {
+		Cuenta cuenta = new Cuenta();
+		CUENTA.set(cuenta);
+		return cuenta;
+	}
+
+	/**
+	 * Cierra la cuenta del hilo actual.
+	 *
+	 * @return cuenta cerrada, o null si no habia ninguna abierta
+	 */
+	public static Cuenta terminar() {
+		Cuenta cuenta = CUENTA.get();
+		CUENTA.remove();
+		return cuenta;
+	}
+
+	/**
+	 * Envuelve una conexion para que anote en la cuenta del hilo lo que se haga con ella.
+	 */
+	static Connection observar(Connection conn) {
+		return envolver(Connection.class, conn);
+	}
+
+	private static <T> T envolver(final Class<T> interfaz, final T objeto) {
+		return interfaz.cast(Proxy.newProxyInstance(interfaz.getClassLoader(), new Class<?>[] { interfaz },
+				new InvocationHandler() {
+					// Filas leidas de este ResultSet, para saber cuando se agota un bloque
+					private int filas;
+
+					@Override
+					public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+						Cuenta cuenta = CUENTA.get();
+						if (cuenta != null && objeto instanceof ResultSet && "next".equals(metodo.getName())
+								&& filas > 0 && filas % Math.max(1, ((ResultSet) objeto).getFetchSize()) == 0) {
+							cuenta.recogidas++;
+						}
+
+						Object retorno;
+						try {
+							retorno = metodo.invoke(objeto, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+
+						if (cuenta != null) {
+							anotar(cuenta, metodo.getName(), retorno);
+						}
+						if (objeto instanceof ResultSet && Boolean.TRUE.equals(retorno)
+								&& "next".equals(metodo.getName())) {
+							filas++;
+						}
+						return envolverResultado(metodo.getReturnType(), retorno);
+					}
+				}));
+	}
+
+	private static void anotar(Cuenta cuenta, String metodo, Object retorno) {
+		if (metodo.startsWith("prepare") || "createStatement".equals(metodo)) {
+			cuenta.preparadas++;
+		} else if (metodo.startsWith("execute")) {
+			cuenta.ejecuciones++;
+		} else if ("commit".equals(metodo)) {
+			cuenta.commits++;
+		} else if ("rollback".equals(metodo)) {
+			cuenta.rollbacks++;
+		} else if ("next".equals(metodo) && Boolean.TRUE.equals(retorno)) {
+			cuenta.filas++;
+		}
+	}
+
+	/*
+	 * Las sentencias y los ResultSet se envuelven con la interfaz que declara el metodo (PreparedStatement,
+	 * CallableStatement...), para que quien los usa pueda seguir llamando a todos sus metodos.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object envolverResultado(Class<?> tipo, Object retorno) {
+		if (retorno == null || !tipo.isInterface()
+				|| !(Statement.class.isAssignableFrom(tipo) || ResultSet.class.isAssignableFrom(tipo))) {
+			return retorno;
+		}
+		return envolver((Class<Object>) tipo, retorno);
+	}
+
+	/**
+	 * Lo anotado durante una llamada logica. Solo la modifica el hilo que la abrio.
+	 */
+	public static final class Cuenta {
+
+		private int preparadas;
+		private int ejecuciones;
+		private int filas;
+		private int recogidas;
+		private int commits;
+		private int rollbacks;
+
+		private Cuenta() {
+		}
+
+		public int getPreparadas() {
+			return preparadas;
+		}
+
+		public int getEjecuciones() {
+			return ejecuciones;
+		}
+
+		public int getFilas() {
+			return filas;
+		}
+
+		public int getCommits() {
+			return commits;
+		}
+
+		public int getRollbacks() {
+			return rollbacks;
+		}
+
+		/**
+		 * @return viajes estimados a la base de datos: ejecuciones, bloques de filas adicionales, commits y
+		 *         rollbacks
+		 */
+		public int getViajes() {
+			return ejecuciones + recogidas + commits + rollbacks;
+		}
+
+		@Override
+		public String toString() {
+			return "viajes=" + getViajes() + " (preparadas=" + preparadas + ", ejecuciones=" + ejecuciones
+					+ ", filas=" + filas + ", bloques adicionales=" + recogidas + ", commits=" + commits
+					+ ", rollbacks=" + rollbacks + ")";
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import oracle.ucp.jdbc.JDBCConnectionPoolStatistics;
+
+/**
+ * ControladorPool: ajusta en un hilo de fondo el tamaño maximo del pool segun la carga, dentro de unos limites.
+ *
+ * En cada periodo se calcula, a partir de los acumulados de UCP, la espera media por prestamo y la utilizacion
+ * (tiempo de uso de las conexiones dividido entre el tiempo disponible con el maximo actual). El pool crece en
+ * cuanto hay presion unos pocos periodos seguidos (espera alta, peticiones pendientes o utilizacion casi completa)
+ * y solo se reduce tras muchos periodos seguidos de poca carga. Entre las dos bandas no se hace nada, y despues de
+ * cada cambio se deja pasar un enfriamiento, para que el pool no oscile con cada rafaga.
+ *
+ * AlquilerCoches lo arranca si se dan los limites en la propiedad de sistema {@value #PROPIEDAD} (p.e.
+ * -Dalquiler.pool.adaptativo=5,40); sin ella el pool conserva el tamaño configurado. GeneradorCarga lo arranca con
+ * su argumento adaptativo=.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class ControladorPool {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ControladorPool.class);
+
+	/** Propiedad de sistema con los limites del maximo del pool, de la forma inferior,superior. */
+	public static final String PROPIEDAD = "alquiler.pool.adaptativo";
+
+	/** Espera media por prestamo (ms) a partir de la cual se considera que faltan conexiones. */
+	private static final double ESPERA_ALTA_MS = 5;
+
+	private static final double UTILIZACION_ALTA = 0.9;
+	private static final double UTILIZACION_BAJA = 0.4;
+
+	// Crecer rapido y reducir despacio
+	private static final int PERIODOS_PARA_CRECER = 2;
+	private static final int PERIODOS_PARA_REDUCIR = 30;
+	private static final int PERIODOS_ENFRIAMIENTO = 3;
+
+	private final PoolDeConexiones pool;
+	private final int maximoInferior;
+	private final int maximoSuperior;
+	private final int minimoConfigurado;
+	private final int inicialConfigurado;
+
+	private ScheduledExecutorService hilo;
+
+	// Acumulados de UCP en el periodo anterior
+	private long ultimaEspera;
+	private long ultimosPrestamos;
+	private long ultimoUso;
+	private long ultimoInstante;
+
+	private int periodosConPresion;
+	private int periodosOcioso;
+	private int enfriamiento;
+	private int ajustes;
+
+	/**
+	 * @param pool           pool a controlar
+	 * @param maximoInferior tamaño maximo mas pequeño al que se puede reducir
+	 * @param maximoSuperior tamaño maximo mas grande al que se puede crecer
+	 */
+	public ControladorPool(PoolDeConexiones pool, int maximoInferior, int maximoSuperior) {
+		if (maximoInferior < 1 || maximoInferior > maximoSuperior) {
+			throw new IllegalArgumentException("Limites del pool incorrectos: " + maximoInferior + ".." + maximoSuperior);
+		}
+		this.pool = pool;
+		this.maximoInferior = maximoInferior;
+		this.maximoSuperior = maximoSuperior;
+		this.minimoConfigurado = pool.getMinPoolSize();
+		this.inicialConfigurado = pool.getInitialPoolSize();
+	}
+
+	/**
+	 * Controlador con los limites de la propiedad de sistema {@value #PROPIEDAD}.
+	 *
+	 * @param pool pool a controlar
+	 * @return controlador sin arrancar, o null si la propiedad no esta definida
+	 */
+	public static ControladorPool configurado(PoolDeConexiones pool) {
+		String limites = System.getProperty(PROPIEDAD);
+		if (limites == null || limites.trim().isEmpty()) {
+			return null;
+		}
+		String[] partes = limites.split(",");
+		if (partes.length != 2) {
+			throw new IllegalArgumentException(PROPIEDAD + " debe ser inferior,superior: " + limites);
+		}
+		return new ControladorPool(pool, Integer.parseInt(partes[0].trim()), Integer.parseInt(partes[1].trim()));
+	}
+
+	/**
+	 * Arranca el control periodico. Si ya estaba arrancado, lo reinicia con el nuevo periodo.
+	 *
+	 * @param periodo tiempo entre evaluaciones
+	 * @param unidad  unidad del periodo
+	 */
+	public synchronized void iniciar(long periodo, TimeUnit unidad) {
+		detener();
+		ultimoInstante = 0;
+		hilo = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread hilo = new Thread(r, "controlador-pool");
+				hilo.setDaemon(true);
+				return hilo;
+			}
+		});
+		hilo.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					evaluar();
+				} catch (SQLException e) {
+					LOGGER.error("Error redimensionando el pool: " + e.getMessage());
+				} catch (RuntimeException e) {
+					// Una excepcion no capturada cancelaria la tarea programada
+					LOGGER.error("Error en el controlador del pool: " + e.getMessage());
+				}
+			}
+		}, periodo, periodo, unidad);
+		LOGGER.info("Controlador del pool activo: maximo entre {} y {}, cada {} {}", maximoInferior, maximoSuperior,
+				periodo, unidad);
+	}
+
+	/**
+	 * Para el control periodico. El pool se queda con el tamaño que tenga.
+	 */
+	public synchronized void detener() {
+		if (hilo != null) {
+			hilo.shutdownNow();
+			hilo = null;
+		}
+	}
+
+	/**
+	 * Toma una muestra de las estadisticas del pool y, si toca, lo redimensiona.
+	 *
+	 * @throws SQLException si UCP rechaza el nuevo tamaño
+	 */
+	synchronized void evaluar() throws SQLException {
+		JDBCConnectionPoolStatistics estadisticas = pool.getEstadisticas();
+		if (estadisticas == null) {
+			return;
+		}
+		long ahora = System.nanoTime();
+		long espera = estadisticas.getCumulativeConnectionWaitTime();
+		long prestamos = estadisticas.getCumulativeConnectionBorrowedCount();
+		long uso = estadisticas.getCumulativeConnectionUseTime();
+
+		if (ultimoInstante != 0) {
+			long prestamosPeriodo = prestamos - ultimosPrestamos;
+			double esperaMedia = prestamosPeriodo <= 0 ? 0 : (double) (espera - ultimaEspera) / prestamosPeriodo;
+			double periodoMs = (ahora - ultimoInstante) / 1e6;
+			int maximo = pool.getMaxPoolSize();
+			double utilizacion = Math.min(1, (uso - ultimoUso) / (periodoMs * maximo));
+
+			int nuevo = decidir(maximo, esperaMedia, utilizacion, estadisticas.getPendingRequestsCount());
+			if (nuevo != maximo) {
+				pool.resizePool(Math.min(inicialConfigurado, nuevo), Math.min(minimoConfigurado, nuevo), nuevo);
+				ajustes++;
+				LOGGER.info("Pool redimensionado de {} a {} conexiones (espera media {} ms, utilizacion {}%)", maximo,
+						nuevo, String.format("%.2f", esperaMedia), Math.round(100 * utilizacion));
+			}
+		}
+		ultimaEspera = espera;
+		ultimosPrestamos = prestamos;
+		ultimoUso = uso;
+		ultimoInstante = ahora;
+	}
+
+	/**
+	 * Decide el nuevo tamaño maximo a partir de lo observado en un periodo.
+	 *
+	 * @param maximo      tamaño maximo actual
+	 * @param esperaMedia espera media por prestamo en el periodo, en ms
+	 * @param utilizacion proporcion del tiempo de conexion disponible que se ha usado, entre 0 y 1
+	 * @param pendientes  peticiones esperando conexion al tomar la muestra
+	 * @return nuevo tamaño maximo, o el actual si no hay que cambiarlo
+	 */
+	int decidir(int maximo, double esperaMedia, double utilizacion, int pendientes) {
+		boolean presion = pendientes > 0 || esperaMedia > ESPERA_ALTA_MS || utilizacion >= UTILIZACION_ALTA;
+		boolean ocioso = pendientes == 0 && esperaMedia < ESPERA_ALTA_MS / 10 && utilizacion < UTILIZACION_BAJA;
+		periodosConPresion = presion ? periodosConPresion + 1 : 0;
+		periodosOcioso = ocioso ? periodosOcioso + 1 : 0;
+
+		if (enfriamiento > 0) {
+			enfriamiento--;
+			return maximo;
+		}
+		// Un maximo fuera de los limites (el configurado en JNDI, p.e.) se corrige sin esperar
+		int nuevo = Math.max(maximoInferior, Math.min(maximoSuperior, maximo));
+		if (nuevo == maximo && periodosConPresion >= PERIODOS_PARA_CRECER) {
+			nuevo = Math.min(maximoSuperior, maximo + Math.max(1, maximo / 2));
+		} else if (nuevo == maximo && periodosOcioso >= PERIODOS_PARA_REDUCIR) {
+			nuevo = Math.max(maximoInferior, maximo - Math.max(1, maximo / 4));
+		}
+		if (nuevo != maximo) {
+			periodosConPresion = 0;
+			periodosOcioso = 0;
+			enfriamiento = PERIODOS_ENFRIAMIENTO;
+		}
+		return nuevo;
+	}
+
+	/**
+	 * @return numero de veces que se ha cambiado el tamaño del pool
+	 */
+	public synchronized int getAjustes() {
+		return ajustes;
+	}
+}
@@ -0,0 +1,467 @@
+package lsi.ubu.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EjecutorScripts: Ejecuta por JDBC scripts escritos para SQL*Plus, como alquiler_coches.sql, sin necesidad de
+ * tener instalado el cliente de Oracle.
+ *
+ * Se reconoce lo que usan nuestros scripts:
+ * <ul>
+ * <li>sentencias SQL terminadas en ';' (o en una linea con '/')</li>
+ * <li>bloques PL/SQL (create procedure/function/package/trigger/type, declare, begin) terminados en una linea con
+ * '/'</li>
+ * <li>exec/execute, que se ejecuta como un bloque begin ... end</li>
+ * <li>exit/quit, que termina el script</li>
+ * <li>comentarios '--' y los comandos de SQL*Plus (set, spool, prompt...), que se ignoran</li>
+ * </ul>
+ * Los insert, update, delete y merge seguidos se envian juntos en lotes JDBC. Como SQL*Plus, un error no detiene
+ * el script: cada fallo se devuelve en el {@link Resultado} con su linea y su excepcion. Los errores de compilacion
+ * de un bloque PL/SQL, que Oracle solo comunica como aviso, tambien cuentan como fallo. Los drop de objetos que no
+ * existen (la primera vez que se lanza un script) se cuentan como omitidos, no como fallos.
+ *
+ * Recibe cualquier conexion JDBC, pero el SQL se envia tal cual: alquiler_coches.sql es propio de Oracle (ver
+ * {@link ExecuteScript}).
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class EjecutorScripts {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(EjecutorScripts.class);
+
+	/** Tipos de sentencia del script. */
+	public enum Tipo {
+		SQL, DML, PLSQL
+	}
+
+	private static final int SENTENCIAS_POR_LOTE = 100;
+
+	private static final Pattern BLOQUE = Pattern.compile(
+			"^(declare|begin)\\b|^create\\s+(or\\s+replace\\s+)?(editionable\\s+|noneditionable\\s+)?"
+					+ "(procedure|function|package(\\s+body)?|trigger|type(\\s+body)?)\\s+([\\w$#\"]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern DML = Pattern.compile("^(insert|update|delete|merge)\\b", Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern COMANDO_SQLPLUS = Pattern.compile(
+			"^(set|spool|prompt|rem|remark|show|whenever|column|col|ttitle|btitle|break|compute|define|undefine)\\b.*",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern SALIDA = Pattern.compile("^(exit|quit)\\b.*", Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern LLAMADA = Pattern.compile("^(exec|execute)\\s+(.*?);?\\s*$",
+			Pattern.CASE_INSENSITIVE);
+
+	// Tabla, secuencia, objeto o indice inexistente: lo normal al hacer drop en una base de datos vacia
+	private static final int[] INEXISTENTE = { 942, 2289, 4043, 1418 };
+
+	private static final String CONSULTA_ERRORES =
+		"SELECT line, position, text FROM user_errors WHERE name = ? ORDER BY sequence";
+
+	/**
+	 * Ejecuta un script con una conexion del pool y hace commit al terminar.
+	 *
+	 * @param script fichero del script
+	 * @return resultado de la ejecucion
+	 * @throws IOException  si no se puede leer el script
+	 * @throws SQLException si no se puede obtener la conexion o hacer el commit final
+	 */
+	public Resultado ejecutar(Path script) throws IOException, SQLException {
+		List<Sentencia> sentencias;
+		try (BufferedReader lector = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+			sentencias = analizar(lector);
+		}
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			return ejecutar(con, sentencias);
+		} finally {
+			// Si el commit final no llega a hacerse, la conexion no vuelve al pool con la transaccion abierta
+			PoolDeConexiones.devolver(con);
+		}
+	}
+
+	/**
+	 * Ejecuta las sentencias en orden sobre la conexion y hace commit al terminar. Si falla alguna no se hace
+	 * rollback: como en SQL*Plus, lo que ha ido bien se queda.
+	 *
+	 * @param con        conexion
+	 * @param sentencias sentencias de {@link #analizar(BufferedReader)}
+	 * @return resultado de la ejecucion
+	 * @throws SQLException si falla el commit final
+	 */
+	public Resultado ejecutar(Connection con, List<Sentencia> sentencias) throws SQLException {
+		Resultado resultado = new Resultado();
+		long inicio = System.nanoTime();
+		try (Statement st = con.createStatement()) {
+			List<Sentencia> lote = new ArrayList<Sentencia>();
+			for (Sentencia sentencia : sentencias) {
+				if (sentencia.tipo == Tipo.DML) {
+					lote.add(sentencia);
+					if (lote.size() == SENTENCIAS_POR_LOTE) {
+						ejecutarLote(st, lote, resultado);
+					}
+					continue;
+				}
+				ejecutarLote(st, lote, resultado);
+				ejecutarSentencia(con, st, sentencia, resultado);
+			}
+			ejecutarLote(st, lote, resultado);
+		}
+		con.commit();
+		resultado.nanos = System.nanoTime() - inicio;
+		return resultado;
+	}
+
+	private static void ejecutarSentencia(Connection con, Statement st, Sentencia sentencia, Resultado resultado) {
+		try {
+			st.clearWarnings();
+			if (!st.execute(sentencia.texto) && st.getUpdateCount() > 0) {
+				resultado.filas += st.getUpdateCount();
+			}
+			SQLWarning aviso = st.getWarnings();
+			if (sentencia.tipo == Tipo.PLSQL && aviso != null) {
+				resultado.fallar(sentencia, conErroresDeCompilacion(con, sentencia, aviso));
+			} else {
+				resultado.ejecutadas++;
+			}
+		} catch (SQLException e) {
+			if (sentencia.esDrop() && esInexistente(e)) {
+				resultado.omitidas++;
+				LOGGER.debug("Linea {}: {} ({})", sentencia.linea, sentencia.getResumen(), e.getMessage().trim());
+			} else {
+				resultado.fallar(sentencia, e);
+			}
+		}
+	}
+
+	/**
+	 * Envia un lote de DML. Si una sentencia falla se anota y se sigue con las que iban detras, como haria SQL*Plus.
+	 */
+	private static void ejecutarLote(Statement st, List<Sentencia> lote, Resultado resultado) {
+		int desde = 0;
+		while (desde < lote.size()) {
+			int[] cuentas;
+			int fallida = -1;
+			BatchUpdateException error = null;
+			try {
+				st.clearBatch();
+				for (int i = desde; i < lote.size(); i++) {
+					st.addBatch(lote.get(i).texto);
+				}
+				cuentas = st.executeBatch();
+			} catch (BatchUpdateException e) {
+				// El driver devuelve las cuentas de las sentencias anteriores a la que falla o marca esta como fallida
+				error = e;
+				cuentas = e.getUpdateCounts() == null ? new int[0] : e.getUpdateCounts();
+				fallida = cuentas.length;
+				for (int i = 0; i < cuentas.length; i++) {
+					if (cuentas[i] == Statement.EXECUTE_FAILED) {
+						fallida = i;
+						break;
+					}
+				}
+			} catch (SQLException e) {
+				resultado.fallar(lote.get(desde), e);
+				cuentas = new int[0];
+				fallida = 0;
+			}
+
+			int correctas = fallida < 0 ? cuentas.length : fallida;
+			for (int i = 0; i < correctas; i++) {
+				if (cuentas[i] > 0) {
+					resultado.filas += cuentas[i];
+				}
+			}
+			resultado.ejecutadas += correctas;
+			if (fallida < 0) {
+				break;
+			}
+			if (error != null && desde + fallida < lote.size()) {
+				resultado.fallar(lote.get(desde + fallida), error);
+			}
+			desde += fallida + 1;
+		}
+		lote.clear();
+	}
+
+	/**
+	 * Añade al aviso los errores de compilacion del objeto, que Oracle guarda en user_errors.
+	 */
+	private static SQLException conErroresDeCompilacion(Connection con, Sentencia sentencia, SQLWarning aviso) {
+		Matcher bloque = BLOQUE.matcher(sentencia.texto.trim());
+		if (!bloque.find() || bloque.group(7) == null) {
+			return aviso;
+		}
+		String nombre = bloque.group(7).replace("\"", "").toUpperCase(Locale.ROOT);
+		StringBuilder mensaje = new StringBuilder(nombre).append(" compilado con errores:");
+		try (PreparedStatement st = con.prepareStatement(CONSULTA_ERRORES)) {
+			st.setString(1, nombre);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					mensaje.append(String.format("%n  %d/%d %s", rs.getInt(1), rs.getInt(2), rs.getString(3).trim()));
+				}
+			}
+		} catch (SQLException e) {
+			return aviso;
+		}
+		return new SQLException(mensaje.toString(), aviso.getSQLState(), aviso.getErrorCode(), aviso);
+	}
+
+	private static boolean esInexistente(SQLException e) {
+		for (int codigo : INEXISTENTE) {
+			if (e.getErrorCode() == codigo) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Separa un script de SQL*Plus en sentencias ejecutables por JDBC.
+	 *
+	 * @param lector script
+	 * @return sentencias en el orden del script, hasta el primer exit
+	 * @throws IOException si no se puede leer
+	 */
+	public static List<Sentencia> analizar(BufferedReader lector) throws IOException {
+		List<Sentencia> sentencias = new ArrayList<Sentencia>();
+		StringBuilder buffer = new StringBuilder();
+		Tipo tipo = null;
+		int inicio = 0;
+		int numero = 0;
+
+		String linea;
+		while ((linea = lector.readLine()) != null) {
+			numero++;
+			String limpia = linea.trim();
+
+			// Dentro de un bloque PL/SQL todo es del bloque hasta la '/'
+			if (tipo == Tipo.PLSQL) {
+				if (limpia.equals("/")) {
+					sentencias.add(new Sentencia(tipo, inicio, buffer.toString()));
+					buffer.setLength(0);
+					tipo = null;
+				} else {
+					buffer.append(linea).append('\n');
+				}
+				continue;
+			}
+
+			if (tipo == null) {
+				if (limpia.isEmpty() || limpia.startsWith("--") || COMANDO_SQLPLUS.matcher(limpia).matches()) {
+					continue;
+				}
+				if (SALIDA.matcher(limpia).matches()) {
+					break;
+				}
+				Matcher llamada = LLAMADA.matcher(limpia);
+				if (llamada.matches()) {
+					sentencias.add(new Sentencia(Tipo.PLSQL, numero, "BEGIN " + llamada.group(2) + "; END;"));
+					continue;
+				}
+				inicio = numero;
+				tipo = BLOQUE.matcher(limpia).find() ? Tipo.PLSQL : DML.matcher(limpia).find() ? Tipo.DML : Tipo.SQL;
+				if (tipo == Tipo.PLSQL) {
+					buffer.append(linea).append('\n');
+					continue;
+				}
+			}
+
+			if (limpia.equals("/")) {
+				sentencias.add(new Sentencia(tipo, inicio, buffer.toString().trim()));
+				buffer.setLength(0);
+				tipo = null;
+				continue;
+			}
+			buffer.append(quitarComentario(linea)).append('\n');
+			String texto = buffer.toString().trim();
+			if (texto.endsWith(";") && comillasCerradas(texto)) {
+				sentencias.add(new Sentencia(tipo, inicio, texto.substring(0, texto.length() - 1).trim()));
+				buffer.setLength(0);
+				tipo = null;
+			}
+		}
+
+		if (tipo != null && buffer.toString().trim().length() > 0) {
+			LOGGER.warn("Sentencia sin terminar al final del script, en la linea {}: no se ejecuta", inicio);
+		}
+		return sentencias;
+	}
+
+	/**
+	 * Quita un comentario '--' del final de la linea, si no esta dentro de una cadena.
+	 */
+	private static String quitarComentario(String linea) {
+		boolean enCadena = false;
+		for (int i = 0; i < linea.length(); i++) {
+			char c = linea.charAt(i);
+			if (c == '\'') {
+				enCadena = !enCadena;
+			} else if (!enCadena && c == '-' && i + 1 < linea.length() && linea.charAt(i + 1) == '-') {
+				return linea.substring(0, i);
+			}
+		}
+		return linea;
+	}
+
+	private static boolean comillasCerradas(String texto) {
+		int comillas = 0;
+		for (int i = 0; i < texto.length(); i++) {
+			if (texto.charAt(i) == '\'') {
+				comillas++;
+			}
+		}
+		return comillas % 2 == 0;
+	}
+
+	/**
+	 * Sentencia del script, ya sin el terminador.
+	 */
+	public static final class Sentencia {
+
+		private final Tipo tipo;
+		private final int linea;
+		private final String texto;
+
+		Sentencia(Tipo tipo, int linea, String texto) {
+			this.tipo = tipo;
+			this.linea = linea;
+			this.texto = texto;
+		}
+
+		public Tipo getTipo() {
+			return tipo;
+		}
+
+		/**
+		 * @return linea del script en la que empieza
+		 */
+		public int getLinea() {
+			return linea;
+		}
+
+		public String getTexto() {
+			return texto;
+		}
+
+		/**
+		 * @return primera linea del texto, para los mensajes
+		 */
+		public String getResumen() {
+			int salto = texto.indexOf('\n');
+			return salto < 0 ? texto : texto.substring(0, salto).trim() + " ...";
+		}
+
+		boolean esDrop() {
+			return texto.regionMatches(true, 0, "drop ", 0, 5);
+		}
+
+		@Override
+		public String toString() {
+			return tipo + " linea " + linea + ": " + getResumen();
+		}
+	}
+
+	/**
+	 * Sentencia que ha fallado y por que.
+	 */
+	public static final class Fallo {
+
+		private final Sentencia sentencia;
+		private final SQLException error;
+
+		Fallo(Sentencia sentencia, SQLException error) {
+			this.sentencia = sentencia;
+			this.error = error;
+		}
+
+		public Sentencia getSentencia() {
+			return sentencia;
+		}
+
+		public SQLException getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return "Linea " + sentencia.linea + " (" + sentencia.getResumen() + "): " + error.getMessage().trim();
+		}
+	}
+
+	/**
+	 * Resultado de la ejecucion de un script.
+	 */
+	public static final class Resultado {
+
+		private int ejecutadas;
+		private int omitidas;
+		private long filas;
+		private long nanos;
+		private final List<Fallo> fallos = new ArrayList<Fallo>();
+
+		void fallar(Sentencia sentencia, SQLException error) {
+			fallos.add(new Fallo(sentencia, error));
+		}
+
+		/**
+		 * @return true si no ha fallado ninguna sentencia
+		 */
+		public boolean isCorrecto() {
+			return fallos.isEmpty();
+		}
+
+		public int getEjecutadas() {
+			return ejecutadas;
+		}
+
+		/**
+		 * @return drops de objetos que no existian
+		 */
+		public int getOmitidas() {
+			return omitidas;
+		}
+
+		/**
+		 * @return filas afectadas por las sentencias DML sueltas (no las de los procedimientos)
+		 */
+		public long getFilas() {
+			return filas;
+		}
+
+		public List<Fallo> getFallos() {
+			return Collections.unmodifiableList(fallos);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d sentencias ejecutadas, %d omitidas, %d fallidas, %d filas, %d ms", ejecutadas,
+					omitidas, fallos.size(), filas, nanos / 1000000);
+		}
+	}
+}
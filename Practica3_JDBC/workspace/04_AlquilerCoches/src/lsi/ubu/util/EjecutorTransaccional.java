@@ -0,0 +1,325 @@
+package lsi.ubu.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+/**
+ * Ejecuta una unidad de trabajo dentro de una transaccion y la repite si falla por un error transitorio
+ * (interbloqueo, fallo de serializacion, recurso ocupado o conexion perdida).
+ *
+ * Cada intento usa una conexion nueva del pool; un error transitorio al pedirla tambien se reintenta. Si la unidad
+ * termina bien se hace commit, salvo que {@link UnidadDeTrabajo#confirmar(Object)} rechace su resultado, en cuyo
+ * caso se hace rollback y se devuelve igualmente. Si lanza una excepcion se hace rollback y, solo si el error es
+ * transitorio, se espera un tiempo aleatorio entre 0 y una cota que se
+ * duplica en cada intento (backoff exponencial con jitter completo), para que los hilos que han chocado no
+ * vuelvan a chocar todos a la vez.
+ *
+ * Un error en el propio commit no se reintenta aunque sea transitorio: si se ha perdido la conexion no se sabe si
+ * el servidor llego a confirmar, y repetir la transaccion podria duplicarla o rechazarla contra sus propias filas.
+ * Se lanza como {@link CommitIncierto} para que el llamador lo distinga. Una unidad que confirma por su cuenta
+ * (por ejemplo un procedimiento con commit) debe lanzar ella misma CommitIncierto en ese caso.
+ *
+ * Los reintentos estan limitados por un presupuesto compartido: cada ejecucion aporta una fraccion de reintento
+ * y cada reintento consume uno entero. En un pico en el que casi todo falla el presupuesto se agota y los errores
+ * se devuelven al llamador en vez de multiplicar la carga sobre el pool.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class EjecutorTransaccional {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(EjecutorTransaccional.class);
+
+	/** Parte de una transaccion que se puede repetir entera. */
+	public interface UnidadDeTrabajo<T> {
+
+		/**
+		 * Hace el trabajo sobre la conexion dada, sin commit ni cierre de la conexion.
+		 *
+		 * @param con conexion sin autocommit
+		 * @return resultado de la unidad
+		 * @throws SQLException si falla; el ejecutor decide si se reintenta
+		 */
+		T ejecutar(Connection con) throws SQLException;
+
+		/**
+		 * Decide si se hace commit del resultado. Por defecto siempre; una unidad que devuelve sus rechazos en vez
+		 * de lanzarlos puede deshacerlos, para no confirmar lo que haya escrito antes de detectarlos.
+		 *
+		 * @param resultado lo que ha devuelto {@link #ejecutar(Connection)}
+		 * @return true para hacer commit, false para hacer rollback
+		 */
+		default boolean confirmar(T resultado) {
+			return true;
+		}
+	}
+
+	/**
+	 * El commit ha fallado de forma que no se sabe si el servidor llego a confirmar la transaccion. No se reintenta;
+	 * hay que comprobar en la base de datos si los cambios estan o no. El codigo de error es el de la causa.
+	 */
+	public static class CommitIncierto extends SQLException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CommitIncierto(SQLException causa) {
+			super("Resultado del commit desconocido: " + causa.getMessage(), causa.getSQLState(),
+					causa.getErrorCode(), causa);
+		}
+	}
+
+	// El saldo del presupuesto se guarda en milesimas de reintento para trabajar con enteros
+	private static final long UNIDAD = 1000;
+
+	private final SGBDErrorUtil errores = new OracleSGBDErrorUtil();
+
+	private final int maxIntentos;
+	private final long esperaBase;
+	private final long esperaMaxima;
+	private final long aportacion;
+	private final long saldoMaximo;
+	private final AtomicLong saldo;
+
+	private final AtomicLong reintentos = new AtomicLong();
+	private final AtomicLong sinPresupuesto = new AtomicLong();
+	private final AtomicLong commitsInciertos = new AtomicLong();
+
+	// Tiempo de cada paso de la transaccion que no depende de la unidad de trabajo
+	private final Histograma tiempoPrestamo = new Histograma();
+	private final Histograma tiempoCommit = new Histograma();
+	private final Histograma tiempoRollback = new Histograma();
+
+	/**
+	 * Ejecutor con 4 intentos, esperas de 20 a 1000 ms y un reintento por cada 10 ejecuciones (acumulando hasta
+	 * 10).
+	 */
+	public EjecutorTransaccional() {
+		this(4, 20, 1000, TimeUnit.MILLISECONDS, 0.1, 10);
+	}
+
+	/**
+	 * @param maxIntentos     intentos como maximo, contando el primero
+	 * @param esperaBase      cota de espera antes del primer reintento
+	 * @param esperaMaxima    cota maxima de espera
+	 * @param unidad          unidad de las esperas
+	 * @param proporcion      reintentos que aporta al presupuesto cada ejecucion (0.1 = uno de cada diez)
+	 * @param reintentosMaximos reintentos que se pueden acumular en el presupuesto
+	 */
+	public EjecutorTransaccional(int maxIntentos, long esperaBase, long esperaMaxima, TimeUnit unidad,
+			double proporcion, int reintentosMaximos) {
+		this.maxIntentos = maxIntentos;
+		this.esperaBase = unidad.toMillis(esperaBase);
+		this.esperaMaxima = unidad.toMillis(esperaMaxima);
+		this.aportacion = Math.round(proporcion * UNIDAD);
+		this.saldoMaximo = reintentosMaximos * UNIDAD;
+		this.saldo = new AtomicLong(saldoMaximo);
+	}
+
+	/**
+	 * Ejecuta la unidad en una transaccion, reintentando los errores transitorios.
+	 *
+	 * @param unidad trabajo a realizar
+	 * @return resultado de la unidad
+	 * @throws SQLException el error de la unidad si no es transitorio, o el ultimo si se agotan los intentos o el
+	 *                      presupuesto; {@link CommitIncierto} si no se sabe si se ha confirmado
+	 */
+	public <T> T ejecutar(UnidadDeTrabajo<T> unidad) throws SQLException {
+		aportar();
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+
+		for (int intento = 1;; intento++) {
+			long inicio = System.nanoTime();
+			Connection con;
+			try {
+				con = pool.getConnection();
+			} catch (SQLException e) {
+				if (!errores.isTransient(e)) {
+					throw e;
+				}
+				esperarReintento(intento, e);
+				continue;
+			}
+			tiempoPrestamo.registrarDesde(inicio);
+			try {
+				T resultado;
+				try {
+					resultado = unidad.ejecutar(con);
+				} catch (SQLException e) {
+					deshacer(con);
+					if (e instanceof CommitIncierto) {
+						commitsInciertos.incrementAndGet();
+					}
+					if (e instanceof CommitIncierto || !errores.isTransient(e)) {
+						throw e;
+					}
+					esperarReintento(intento, e);
+					continue;
+				}
+				if (unidad.confirmar(resultado)) {
+					confirmar(con);
+				} else {
+					deshacer(con);
+				}
+				return resultado;
+			} finally {
+				cerrar(con);
+			}
+		}
+	}
+
+	/**
+	 * Hace commit. Si falla por un error transitorio (conexion perdida) el resultado es incierto y se lanza
+	 * {@link CommitIncierto}; cualquier otro error deja la transaccion deshecha y se lanza tal cual.
+	 */
+	private void confirmar(Connection con) throws SQLException {
+		long inicio = System.nanoTime();
+		try {
+			con.commit();
+			tiempoCommit.registrarDesde(inicio);
+		} catch (SQLException e) {
+			deshacer(con);
+			if (!errores.isTransient(e)) {
+				throw e;
+			}
+			commitsInciertos.incrementAndGet();
+			LOGGER.error("Fallo en el commit, resultado desconocido: {}", e.getMessage());
+			throw new CommitIncierto(e);
+		}
+	}
+
+	/**
+	 * Decide si un error transitorio se puede reintentar y espera antes de hacerlo.
+	 *
+	 * @throws SQLException el propio error si se agotan los intentos o el presupuesto, o si se interrumpe la espera
+	 */
+	private void esperarReintento(int intento, SQLException e) throws SQLException {
+		if (intento >= maxIntentos) {
+			LOGGER.error("Error transitorio tras {} intentos: {}", intento, e.getMessage());
+			throw e;
+		}
+		if (!consumir()) {
+			sinPresupuesto.incrementAndGet();
+			LOGGER.error("Presupuesto de reintentos agotado: {}", e.getMessage());
+			throw e;
+		}
+		reintentos.incrementAndGet();
+		long espera = espera(intento);
+		LOGGER.debug("Error transitorio ({}), reintento {} en {} ms", e.getMessage(), intento, espera);
+		try {
+			Thread.sleep(espera);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return reintentos hechos desde el arranque
+	 */
+	public long getReintentos() {
+		return reintentos.get();
+	}
+
+	/**
+	 * @return errores transitorios devueltos sin reintentar por falta de presupuesto
+	 */
+	public long getSinPresupuesto() {
+		return sinPresupuesto.get();
+	}
+
+	/**
+	 * @return commits cuyo resultado no se conoce y no se han reintentado
+	 */
+	public long getCommitsInciertos() {
+		return commitsInciertos.get();
+	}
+
+	/**
+	 * @return reintentos disponibles ahora mismo en el presupuesto
+	 */
+	public double getPresupuesto() {
+		return (double) saldo.get() / UNIDAD;
+	}
+
+	/**
+	 * @return tiempo de obtener la conexion del pool en cada intento, en nanosegundos
+	 */
+	public Histograma getTiempoPrestamo() {
+		return tiempoPrestamo;
+	}
+
+	/**
+	 * @return tiempo de los commit, en nanosegundos
+	 */
+	public Histograma getTiempoCommit() {
+		return tiempoCommit;
+	}
+
+	/**
+	 * @return tiempo de los rollback tras un error, en nanosegundos
+	 */
+	public Histograma getTiempoRollback() {
+		return tiempoRollback;
+	}
+
+	/**
+	 * Espera aleatoria entre 0 y esperaBase * 2^(intento-1), sin pasar de esperaMaxima.
+	 */
+	private long espera(int intento) {
+		long cota = Math.min(esperaMaxima, esperaBase << Math.min(intento - 1, 30));
+		return ThreadLocalRandom.current().nextLong(cota + 1);
+	}
+
+	private void aportar() {
+		long actual;
+		do {
+			actual = saldo.get();
+			if (actual >= saldoMaximo) {
+				return;
+			}
+		} while (!saldo.compareAndSet(actual, Math.min(saldoMaximo, actual + aportacion)));
+	}
+
+	private boolean consumir() {
+		long actual;
+		do {
+			actual = saldo.get();
+			if (actual < UNIDAD) {
+				return false;
+			}
+		} while (!saldo.compareAndSet(actual, actual - UNIDAD));
+		return true;
+	}
+
+	// Si la conexion se ha perdido el rollback tambien falla; lo que importa es el error original
+	private void deshacer(Connection con) {
+		long inicio = System.nanoTime();
+		try {
+			con.rollback();
+			tiempoRollback.registrarDesde(inicio);
+		} catch (SQLException e) {
+			LOGGER.debug("No se pudo hacer rollback: {}", e.getMessage());
+		}
+	}
+
+	private static void cerrar(Connection con) {
+		try {
+			con.close();
+		} catch (SQLException e) {
+			LOGGER.debug("No se pudo cerrar la conexion: {}", e.getMessage());
+		}
+	}
+}
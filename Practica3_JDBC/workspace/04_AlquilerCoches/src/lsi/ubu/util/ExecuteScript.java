@@ -1,7 +1,11 @@
 package lsi.ubu.util;
 
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +14,11 @@ import org.slf4j.LoggerFactory;
  * Utilidad para ejecutar el script sql de borrado y creacion de datos. Permite
  * la ejecucion de los "tests" con independencia.
  * 
+ * El script se ejecuta dentro de la propia JVM con {@link EjecutorScripts}, sin
+ * lanzar sqlplus, pero sigue necesitando Oracle: sql/alquiler_coches.sql usa
+ * secuencias, bloques PL/SQL y tipos y funciones propios de Oracle, y no se
+ * puede ejecutar contra una base de datos embebida.
+ * 
  * @author <a href="mailto:jmaudes@ubu.es">Jesus Maudes</a>
  * @author <a href="mailto:rmartico@ubu.es">Raul Marticorena</a>
  */
@@ -20,43 +29,49 @@ public class ExecuteScript {
 	/**
 	 * Principal.
 	 * 
-	 * @param args el primer argumento incluye el nombre del script a ejecutar
+	 * @param args el primer argumento incluye el nombre del script a ejecutar;
+	 *             opcionalmente url, usuario y clave de otra base de datos JDBC
+	 *             en lugar de la del pool
+	 * @throws Exception si no se puede leer el script o conectar
 	 */
-	public static void main(String[] args) {
-		run(args[0]);
-		// run();
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			run(args[0]);
+			return;
+		}
+		String usuario = args.length > 2 ? args[2] : null;
+		String clave = args.length > 3 ? args[3] : null;
+		try (Connection con = DriverManager.getConnection(args[1], usuario, clave);
+				BufferedReader lector = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+			con.setAutoCommit(false);
+			informar(args[0], new EjecutorScripts().ejecutar(con, EjecutorScripts.analizar(lector)));
+		}
 	}
 
 	/**
-	 * Ejecuta el script sql.
+	 * Ejecuta el script sql con una conexion del pool.
 	 * 
 	 * @param file_name nombre del script .sql a ejecutar
+	 * @return resultado de la ejecucion, o null si no se ha podido ejecutar
 	 */
-	public static void run(String file_name) {
-		String os = System.getProperty("os.name").toLowerCase();
-
+	public static EjecutorScripts.Resultado run(String file_name) {
 		try {
-
-			String line;
-			Process p = null;
-
-			// if is linux
-			if (os.indexOf("nux") >= 0) {
-				String sqlLauncher = "sql/lanza_sqlplus.sh";
-				p = Runtime.getRuntime().exec(new String[] { sqlLauncher, "hr/hr", "@" + file_name });
-			} else if (os.indexOf("win") >= 0) { // if is windows
-				p = Runtime.getRuntime().exec("sqlplus hr/hr @" + file_name);
-			} else {
-				throw (new Exception("lsi.ubu.util.ExecuteScript.java" + " Sistema operativo incompatible"));
-			}
-
-			BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			while ((line = input.readLine()) != null) {
-				LOGGER.debug(line);
-			}
-			input.close();
+			return informar(file_name, new EjecutorScripts().ejecutar(Paths.get(file_name)));
 		} catch (Exception err) {
-			LOGGER.error(err.getMessage());
+			LOGGER.error("No se ha podido ejecutar {}: {}", file_name, err.getMessage());
+			return null;
+		}
+	}
+
+	private static EjecutorScripts.Resultado informar(String file_name, EjecutorScripts.Resultado resultado) {
+		for (EjecutorScripts.Fallo fallo : resultado.getFallos()) {
+			LOGGER.error("{}: {}", file_name, fallo);
+		}
+		if (resultado.isCorrecto()) {
+			LOGGER.info("{}: {}", file_name, resultado);
+		} else {
+			LOGGER.warn("{}: {}", file_name, resultado);
 		}
+		return resultado;
 	}
 }
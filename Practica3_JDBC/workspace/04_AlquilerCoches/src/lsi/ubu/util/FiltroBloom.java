@@ -0,0 +1,138 @@
+package lsi.ubu.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtro de Bloom para cadenas. Responde "seguro que no esta" o "puede que este": nunca da falsos negativos y los
+ * falsos positivos aparecen con la probabilidad con la que se ha dimensionado.
+ *
+ * El filtro es un array de m bits y cada elemento activa k de ellos. Las k posiciones salen de dos hashes de 64
+ * bits combinados (h1 + i * h2), que da la misma tasa de error que k funciones independientes. Las inserciones son
+ * seguras entre hilos sin cerrojos (compareAndSet sobre palabras de 64 bits); no se pueden borrar elementos.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class FiltroBloom {
+
+	private final AtomicLongArray palabras;
+	private final long bits;
+	private final int funciones;
+	private final AtomicLong elementos = new AtomicLong();
+
+	/**
+	 * Dimensiona el filtro para un numero de elementos y una tasa de falsos positivos objetivo.
+	 *
+	 * @param elementosEsperados elementos que se espera insertar
+	 * @param tasaObjetivo       probabilidad de falso positivo con ese numero de elementos, p.e. 0.01
+	 */
+	public FiltroBloom(long elementosEsperados, double tasaObjetivo) {
+		long n = Math.max(1, elementosEsperados);
+		// m = -n ln p / (ln 2)^2 y k = m/n ln 2, redondeando m a palabras completas
+		long m = (long) Math.ceil(-n * Math.log(tasaObjetivo) / (Math.log(2) * Math.log(2)));
+		int nPalabras = (int) Math.max(1, (m + 63) / 64);
+		palabras = new AtomicLongArray(nPalabras);
+		bits = 64L * nPalabras;
+		funciones = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+	}
+
+	/**
+	 * Anade un elemento.
+	 */
+	public void anadir(String elemento) {
+		long h1 = hash(elemento, 0);
+		long h2 = hash(elemento, h1) | 1;
+		for (int i = 0; i < funciones; i++) {
+			long bit = Math.floorMod(h1 + i * h2, bits);
+			int palabra = (int) (bit >>> 6);
+			long mascara = 1L << bit;
+			long actual;
+			do {
+				actual = palabras.get(palabra);
+				if ((actual & mascara) != 0) {
+					break;
+				}
+			} while (!palabras.compareAndSet(palabra, actual, actual | mascara));
+		}
+		elementos.incrementAndGet();
+	}
+
+	/**
+	 * @return false si el elemento seguro que no se ha anadido; true si puede que si
+	 */
+	public boolean puedeContener(String elemento) {
+		long h1 = hash(elemento, 0);
+		long h2 = hash(elemento, h1) | 1;
+		for (int i = 0; i < funciones; i++) {
+			long bit = Math.floorMod(h1 + i * h2, bits);
+			if ((palabras.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return elementos anadidos (los repetidos cuentan cada vez)
+	 */
+	public long getElementos() {
+		return elementos.get();
+	}
+
+	/**
+	 * @return tamano del filtro en bits
+	 */
+	public long getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return memoria ocupada por el array de bits, en bytes
+	 */
+	public long getBytes() {
+		return bits / 8;
+	}
+
+	public int getFunciones() {
+		return funciones;
+	}
+
+	/**
+	 * @return proporcion de bits activos
+	 */
+	public double getOcupacion() {
+		long activos = 0;
+		for (int i = 0; i < palabras.length(); i++) {
+			activos += Long.bitCount(palabras.get(i));
+		}
+		return (double) activos / bits;
+	}
+
+	/**
+	 * Tasa de falsos positivos esperada con la ocupacion actual: la probabilidad de que los k bits de un elemento
+	 * no anadido esten todos activos.
+	 */
+	public double getTasaFalsosPositivos() {
+		return Math.pow(getOcupacion(), funciones);
+	}
+
+	/**
+	 * FNV-1a de 64 bits sobre los bytes UTF-8, con semilla y mezcla final para repartir bien los bits altos.
+	 */
+	private static long hash(String elemento, long semilla) {
+		long h = 0xcbf29ce484222325L ^ semilla;
+		for (byte b : elemento.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
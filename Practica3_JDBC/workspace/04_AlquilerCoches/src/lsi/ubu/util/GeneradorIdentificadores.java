@@ -0,0 +1,224 @@
+package lsi.ubu.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generador de identificadores por bloques (hi/lo) sobre secuencias de Oracle.
+ *
+ * Las secuencias se crean con INCREMENT BY igual al tamano de bloque, de modo que cada nextval reserva el bloque
+ * [v - incremento + 1, v] entero. Los valores del bloque se reparten desde memoria sin cerrojos y solo se vuelve a
+ * la base de datos cuando se acaba. Quien siga usando nextval directamente en SQL (scripts, procedimientos) se
+ * queda con el valor v, que es el ultimo de un bloque que nadie mas recibe, asi que no hay colisiones.
+ *
+ * El tamano de bloque se lee de user_sequences la primera vez que se usa cada secuencia. Si la secuencia se
+ * reinicia (p.e. con inicializa_test) hay que llamar a {@link #descartarBloques()}.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class GeneradorIdentificadores {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeneradorIdentificadores.class);
+
+	/** Tamaño de bloque de una secuencia. */
+	public static final String CONSULTA_INCREMENTO =
+			"SELECT increment_by FROM user_sequences WHERE sequence_name = UPPER(?)";
+
+	private static final GeneradorIdentificadores INSTANCIA = new GeneradorIdentificadores();
+
+	private final ConcurrentMap<String, Secuencia> secuencias = new ConcurrentHashMap<String, Secuencia>();
+
+	private GeneradorIdentificadores() {
+	}
+
+	/**
+	 * Obtiene la instancia compartida del generador.
+	 */
+	public static GeneradorIdentificadores getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Siguiente identificador de la secuencia.
+	 *
+	 * @param con       conexion para pedir un bloque nuevo si hace falta (nextval no depende de la transaccion)
+	 * @param secuencia nombre de la secuencia
+	 * @return identificador no entregado antes
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public int siguiente(Connection con, String secuencia) throws SQLException {
+		return secuencia(secuencia).siguiente(con);
+	}
+
+	/**
+	 * Varios identificadores de la secuencia. Los bloques que falten se piden en una sola consulta.
+	 *
+	 * @param con       conexion para pedir bloques nuevos
+	 * @param secuencia nombre de la secuencia
+	 * @param n         numero de identificadores
+	 * @return identificadores no entregados antes, no necesariamente consecutivos
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public int[] siguientes(Connection con, String secuencia, int n) throws SQLException {
+		return secuencia(secuencia).siguientes(con, n);
+	}
+
+	/**
+	 * Consulta con la que se piden varios bloques de una secuencia en un solo viaje.
+	 *
+	 * @param secuencia nombre de la secuencia
+	 * @return texto SQL, con el numero de bloques como unico parametro
+	 */
+	public static String consultaBloques(String secuencia) {
+		return "SELECT " + secuencia + ".nextval FROM dual CONNECT BY LEVEL <= ?";
+	}
+
+	/**
+	 * Olvida los bloques en memoria. Hay que llamarlo despues de reiniciar las secuencias, porque los valores de los
+	 * bloques pendientes se volverian a repartir.
+	 */
+	public void descartarBloques() {
+		for (Secuencia secuencia : secuencias.values()) {
+			synchronized (secuencia) {
+				secuencia.bloque.set(null);
+				// Si el script ha vuelto a crear la secuencia el incremento puede haber cambiado
+				secuencia.incremento = 0;
+			}
+		}
+		LOGGER.debug("Bloques de identificadores descartados");
+	}
+
+	private Secuencia secuencia(String nombre) {
+		Secuencia secuencia = secuencias.get(nombre);
+		if (secuencia == null) {
+			Secuencia nueva = new Secuencia(nombre);
+			secuencia = secuencias.putIfAbsent(nombre, nueva);
+			if (secuencia == null) {
+				secuencia = nueva;
+			}
+		}
+		return secuencia;
+	}
+
+	/**
+	 * Rango [siguiente, ultimo] de una secuencia todavia sin repartir.
+	 */
+	private static class Bloque {
+		final AtomicInteger siguiente;
+		final int ultimo;
+
+		Bloque(int primero, int ultimo) {
+			this.siguiente = new AtomicInteger(primero);
+			this.ultimo = ultimo;
+		}
+	}
+
+	private static class Secuencia {
+		final String nombre;
+		final AtomicReference<Bloque> bloque = new AtomicReference<Bloque>();
+		volatile int incremento;
+
+		Secuencia(String nombre) {
+			this.nombre = nombre;
+		}
+
+		int siguiente(Connection con) throws SQLException {
+			while (true) {
+				Bloque actual = bloque.get();
+				if (actual != null) {
+					int valor = actual.siguiente.getAndIncrement();
+					if (valor <= actual.ultimo) {
+						return valor;
+					}
+				}
+				// Solo un hilo pide el bloque nuevo; el resto espera y reparte del que haya dejado
+				synchronized (this) {
+					if (bloque.get() == actual) {
+						int[] tope = pedirBloques(con, 1);
+						bloque.set(new Bloque(tope[0] - incremento + 1, tope[0]));
+					}
+				}
+			}
+		}
+
+		synchronized int[] siguientes(Connection con, int n) throws SQLException {
+			int[] valores = new int[n];
+			int i = 0;
+
+			Bloque actual = bloque.get();
+			while (actual != null && i < n) {
+				int valor = actual.siguiente.getAndIncrement();
+				if (valor > actual.ultimo) {
+					break;
+				}
+				valores[i++] = valor;
+			}
+
+			if (i < n) {
+				int tamano = incrementoConocido(con);
+				int[] topes = pedirBloques(con, (n - i + tamano - 1) / tamano);
+				for (int tope : topes) {
+					int primero = tope - tamano + 1;
+					int enBloque = Math.min(tamano, n - i);
+					for (int v = 0; v < enBloque; v++) {
+						valores[i++] = primero + v;
+					}
+					if (enBloque < tamano) {
+						// El sobrante del ultimo bloque queda para las siguientes peticiones
+						bloque.set(new Bloque(primero + enBloque, tope));
+					}
+				}
+			}
+			return valores;
+		}
+
+		int incrementoConocido(Connection con) throws SQLException {
+			if (incremento == 0) {
+				try (PreparedStatement st = con.prepareStatement(CONSULTA_INCREMENTO)) {
+					st.setString(1, nombre);
+					try (ResultSet rs = st.executeQuery()) {
+						if (!rs.next()) {
+							throw new SQLException("No existe la secuencia " + nombre);
+						}
+						incremento = rs.getInt(1);
+					}
+				}
+				LOGGER.debug("Secuencia {}: bloques de {} identificadores", nombre, incremento);
+			}
+			return incremento;
+		}
+
+		/**
+		 * Pide varios bloques en un solo viaje.
+		 *
+		 * @return ultimo valor de cada bloque
+		 */
+		int[] pedirBloques(Connection con, int bloques) throws SQLException {
+			incrementoConocido(con);
+			int[] topes = new int[bloques];
+			try (PreparedStatement st = con.prepareStatement(consultaBloques(nombre))) {
+				st.setInt(1, bloques);
+				try (ResultSet rs = st.executeQuery()) {
+					for (int i = 0; i < bloques && rs.next(); i++) {
+						topes[i] = rs.getInt(1);
+					}
+				}
+			}
+			return topes;
+		}
+	}
+}
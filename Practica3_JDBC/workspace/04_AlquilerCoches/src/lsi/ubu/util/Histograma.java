@@ -0,0 +1,155 @@
+package lsi.ubu.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias de bajo coste, pensado para registrar desde muchos hilos sin bloqueos.
+ *
+ * Los valores (nanosegundos) se agrupan en intervalos logaritmicos: cada potencia de 2 se divide en 16 partes,
+ * por lo que el error de un percentil es menor del 6,25%. Registrar un valor es un par de operaciones de bits y
+ * un incremento atomico.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class Histograma {
+
+	private static final int BITS_SUBINTERVALO = 4;
+	private static final int SUBINTERVALOS = 1 << BITS_SUBINTERVALO;
+	private static final int INTERVALOS = 64 * SUBINTERVALOS;
+
+	private final AtomicLongArray cuentas = new AtomicLongArray(INTERVALOS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong suma = new AtomicLong();
+	private final AtomicLong maximo = new AtomicLong();
+
+	/**
+	 * Registra un valor en nanosegundos. Los negativos se cuentan como 0.
+	 *
+	 * @param nanos valor a registrar
+	 */
+	public void registrar(long nanos) {
+		long valor = Math.max(0, nanos);
+		cuentas.incrementAndGet(indice(valor));
+		total.incrementAndGet();
+		suma.addAndGet(valor);
+
+		long max;
+		while (valor > (max = maximo.get()) && !maximo.compareAndSet(max, valor)) {
+			// reintento
+		}
+	}
+
+	/**
+	 * Registra el tiempo transcurrido desde un instante tomado con System.nanoTime().
+	 *
+	 * @param inicioNanos instante inicial
+	 */
+	public void registrarDesde(long inicioNanos) {
+		registrar(System.nanoTime() - inicioNanos);
+	}
+
+	public long getCuenta() {
+		return total.get();
+	}
+
+	public long getMaximo() {
+		return maximo.get();
+	}
+
+	/**
+	 * @return media en nanosegundos, 0 si no hay valores
+	 */
+	public double getMedia() {
+		long n = total.get();
+		return n == 0 ? 0 : (double) suma.get() / n;
+	}
+
+	/**
+	 * Percentil aproximado: limite superior del intervalo que lo contiene, para no dar latencias por debajo de
+	 * las reales.
+	 *
+	 * @param percentil valor entre 0 y 100
+	 * @return valor en nanosegundos
+	 */
+	public long percentil(double percentil) {
+		long n = total.get();
+		if (n == 0) {
+			return 0;
+		}
+		long objetivo = Math.max(1, (long) Math.ceil(n * percentil / 100.0));
+		long acumulado = 0;
+		for (int i = 0; i < INTERVALOS; i++) {
+			acumulado += cuentas.get(i);
+			if (acumulado >= objetivo) {
+				return Math.min(valorDe(i + 1) - 1, maximo.get());
+			}
+		}
+		return maximo.get();
+	}
+
+	/**
+	 * Pone todos los contadores a cero.
+	 */
+	public void reiniciar() {
+		for (int i = 0; i < INTERVALOS; i++) {
+			cuentas.set(i, 0);
+		}
+		total.set(0);
+		suma.set(0);
+		maximo.set(0);
+	}
+
+	/**
+	 * Vuelca los intervalos no vacios en formato CSV: limite inferior en microsegundos y numero de valores.
+	 *
+	 * @return texto CSV con cabecera
+	 */
+	public String toCsv() {
+		StringBuilder csv = new StringBuilder("desde_us;cuenta\n");
+		for (int i = 0; i < INTERVALOS; i++) {
+			long cuenta = cuentas.get(i);
+			if (cuenta > 0) {
+				csv.append(TimeUnit.NANOSECONDS.toMicros(valorDe(i))).append(';').append(cuenta).append('\n');
+			}
+		}
+		return csv.toString();
+	}
+
+	/**
+	 * Resumen en microsegundos: n, media, p50, p95, p99, p999 y maximo.
+	 */
+	@Override
+	public String toString() {
+		return String.format("n=%d media=%.1fus p50=%dus p95=%dus p99=%dus p999=%dus max=%dus", getCuenta(),
+				getMedia() / 1000.0, micros(percentil(50)), micros(percentil(95)), micros(percentil(99)),
+				micros(percentil(99.9)), micros(getMaximo()));
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	private static int indice(long valor) {
+		if (valor < SUBINTERVALOS) {
+			return (int) valor;
+		}
+		int exponente = 63 - Long.numberOfLeadingZeros(valor);
+		int sub = (int) (valor >>> (exponente - BITS_SUBINTERVALO)) & (SUBINTERVALOS - 1);
+		return (exponente - BITS_SUBINTERVALO + 1) * SUBINTERVALOS + sub;
+	}
+
+	private static long valorDe(int indice) {
+		if (indice < SUBINTERVALOS) {
+			return indice;
+		}
+		int exponente = indice / SUBINTERVALOS + BITS_SUBINTERVALO - 1;
+		long sub = indice % SUBINTERVALOS;
+		return (SUBINTERVALOS + sub) << (exponente - BITS_SUBINTERVALO);
+	}
+}
@@ -0,0 +1,223 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import oracle.jdbc.OracleStatement;
+import oracle.ucp.jdbc.JDBCConnectionPoolStatistics;
+
+/**
+ * MetricasPool: metricas en vivo del pool de conexiones, publicadas como MBean con
+ * {@link PoolDeConexiones#registrarMetricas()}.
+ *
+ * Las cifras de conexiones salen de las estadisticas de UCP; la espera de prestamo, del histograma que mantiene
+ * PoolDeConexiones. Para la cache implicita de sentencias, las conexiones que entrega el pool se envuelven y de
+ * cada sentencia preparada se mira si el driver la ha sacado de la cache (creationState distinto de NEW). Con
+ * setMaxStatements menor que el numero de sentencias distintas de un alquiler la tasa de aciertos cae.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public class MetricasPool implements MetricasPoolMBean {
+
+	/** Logger. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricasPool.class);
+
+	/** Nombre JMX con el que se publica. */
+	public static final String NOMBRE = "lsi.ubu:type=PoolDeConexiones";
+
+	private final PoolDeConexiones pool;
+
+	private final AtomicLong aciertosCache = new AtomicLong();
+	private final AtomicLong fallosCache = new AtomicLong();
+
+	// Lectura anterior de conexiones creadas, para calcular el ritmo de creacion
+	private long ultimasCreadas;
+	private long ultimaLectura = System.nanoTime();
+
+	MetricasPool(PoolDeConexiones pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Envuelve una conexion para anotar si cada sentencia preparada sale de la cache implicita.
+	 */
+	Connection observar(final Connection conn) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+						Object retorno;
+						try {
+							retorno = metodo.invoke(conn, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						if (retorno instanceof Statement && metodo.getName().startsWith("prepare")) {
+							registrarPreparacion((Statement) retorno);
+						}
+						return retorno;
+					}
+				});
+	}
+
+	/**
+	 * creationState() esta marcado como obsoleto en ojdbc6, pero el driver no ofrece otra forma de saber si una
+	 * sentencia sale de la cache implicita; se limita aqui el aviso para no ocultar otros.
+	 */
+	@SuppressWarnings("deprecation")
+	private void registrarPreparacion(Statement st) {
+		try {
+			if (st.unwrap(OracleStatement.class).creationState() == OracleStatement.NEW) {
+				fallosCache.incrementAndGet();
+			} else {
+				aciertosCache.incrementAndGet();
+			}
+		} catch (SQLException e) {
+			LOGGER.debug("No se puede saber si la sentencia sale de la cache: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public int getConexionesPrestadas() {
+		JDBCConnectionPoolStatistics estadisticas = pool.getEstadisticas();
+		return estadisticas == null ? 0 : estadisticas.getBorrowedConnectionsCount();
+	}
+
+	@Override
+	public int getConexionesDisponibles() {
+		JDBCConnectionPoolStatistics estadisticas = pool.getEstadisticas();
+		return estadisticas == null ? 0 : estadisticas.getAvailableConnectionsCount();
+	}
+
+	@Override
+	public int getConexionesTotales() {
+		JDBCConnectionPoolStatistics estadisticas = pool.getEstadisticas();
+		return estadisticas == null ? 0 : estadisticas.getTotalConnectionsCount();
+	}
+
+	@Override
+	public int getPeticionesPendientes() {
+		JDBCConnectionPoolStatistics estadisticas = pool.getEstadisticas();
+		return estadisticas == null ? 0 : estadisticas.getPendingRequestsCount();
+	}
+
+	@Override
+	public int getMaxPoolSize() {
+		return pool.getMaxPoolSize();
+	}
+
+	@Override
+	public long getPrestamosFallidos() {
+		return pool.getPrestamosFallidos();
+	}
+
+	@Override
+	public long getConexionesCreadas() {
+		JDBCConnectionPoolStatistics estadisticas = pool.getEstadisticas();
+		return estadisticas == null ? 0 : estadisticas.getConnectionsCreatedCount();
+	}
+
+	@Override
+	public synchronized double getConexionesCreadasPorMinuto() {
+		long creadas = getConexionesCreadas();
+		long ahora = System.nanoTime();
+		double minutos = (double) (ahora - ultimaLectura) / TimeUnit.MINUTES.toNanos(1);
+		double ritmo = minutos <= 0 ? 0 : Math.max(0, creadas - ultimasCreadas) / minutos;
+		ultimasCreadas = creadas;
+		ultimaLectura = ahora;
+		return ritmo;
+	}
+
+	@Override
+	public long getPrestamos() {
+		return pool.getEsperaPrestamo().getCuenta();
+	}
+
+	@Override
+	public double getEsperaMedia() {
+		return pool.getEsperaPrestamo().getMedia() / 1000.0;
+	}
+
+	@Override
+	public long getEsperaP50() {
+		return TimeUnit.NANOSECONDS.toMicros(pool.getEsperaPrestamo().percentil(50));
+	}
+
+	@Override
+	public long getEsperaP99() {
+		return TimeUnit.NANOSECONDS.toMicros(pool.getEsperaPrestamo().percentil(99));
+	}
+
+	@Override
+	public long getEsperaMaxima() {
+		return TimeUnit.NANOSECONDS.toMicros(pool.getEsperaPrestamo().getMaximo());
+	}
+
+	@Override
+	public String getHistogramaEspera() {
+		return pool.getEsperaPrestamo().toCsv();
+	}
+
+	@Override
+	public int getMaxStatements() {
+		return pool.getMaxStatements();
+	}
+
+	@Override
+	public long getAciertosCacheSentencias() {
+		return aciertosCache.get();
+	}
+
+	@Override
+	public long getFallosCacheSentencias() {
+		return fallosCache.get();
+	}
+
+	@Override
+	public double getTasaAciertosCacheSentencias() {
+		long aciertos = aciertosCache.get();
+		long total = aciertos + fallosCache.get();
+		return total == 0 ? 0 : (double) aciertos / total;
+	}
+
+	@Override
+	public String getConfiguracion() {
+		try {
+			return pool.traceOracleSettings();
+		} catch (SQLException e) {
+			return e.getMessage();
+		}
+	}
+
+	@Override
+	public void reiniciar() {
+		pool.getEsperaPrestamo().reiniciar();
+		pool.reiniciarPrestamosFallidos();
+		aciertosCache.set(0);
+		fallosCache.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"prestadas=%d disponibles=%d total=%d/%d pendientes=%d fallidos=%d creadas=%d espera={%s} cache sentencias=%d/%d aciertos (%.1f%%, maxStatements=%d)",
+				getConexionesPrestadas(), getConexionesDisponibles(), getConexionesTotales(), getMaxPoolSize(),
+				getPeticionesPendientes(), getPrestamosFallidos(), getConexionesCreadas(), pool.getEsperaPrestamo(),
+				getAciertosCacheSentencias(), getAciertosCacheSentencias() + getFallosCacheSentencias(),
+				100 * getTasaAciertosCacheSentencias(), getMaxStatements());
+	}
+}
@@ -0,0 +1,62 @@
+package lsi.ubu.util;
+
+/**
+ * Interfaz JMX de {@link MetricasPool}. Los tiempos se dan en microsegundos.
+ *
+ * @author <a href="mailto:adi1004@alu.ubu.es">Aaron del Santo Izquierdo</a>
+ * @author <a href="mailto:dmm1017@alu.ubu.es">Daniel Miguel Muiña</a>
+ * @author <a href="mailto:nvo1001@alu.ubu.es">Nicolás Villanueva Ortega</a>
+ * @version 1.0
+ * @since 2.1
+ */
+public interface MetricasPoolMBean {
+
+	int getConexionesPrestadas();
+
+	int getConexionesDisponibles();
+
+	int getConexionesTotales();
+
+	int getPeticionesPendientes();
+
+	int getMaxPoolSize();
+
+	long getPrestamosFallidos();
+
+	long getConexionesCreadas();
+
+	/**
+	 * Conexiones fisicas creadas por minuto desde la lectura anterior de este atributo.
+	 */
+	double getConexionesCreadasPorMinuto();
+
+	long getPrestamos();
+
+	double getEsperaMedia();
+
+	long getEsperaP50();
+
+	long getEsperaP99();
+
+	long getEsperaMaxima();
+
+	/**
+	 * Histograma de espera en formato CSV (ver {@link Histograma#toCsv()}).
+	 */
+	String getHistogramaEspera();
+
+	int getMaxStatements();
+
+	long getAciertosCacheSentencias();
+
+	long getFallosCacheSentencias();
+
+	double getTasaAciertosCacheSentencias();
+
+	String getConfiguracion();
+
+	/**
+	 * Pone a cero el histograma de espera y los contadores propios (no los de UCP).
+	 */
+	void reiniciar();
+}
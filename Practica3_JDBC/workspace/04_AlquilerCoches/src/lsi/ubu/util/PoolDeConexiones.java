@@ -1,8 +1,27 @@
 package lsi.ubu.util;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -12,6 +31,10 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import oracle.jdbc.OracleConnection;
+import oracle.ucp.ConnectionLabelingCallback;
+import oracle.ucp.jdbc.JDBCConnectionPoolStatistics;
+import oracle.ucp.jdbc.LabelableConnection;
 import oracle.ucp.jdbc.PoolDataSource;
 import oracle.ucp.jdbc.PoolDataSourceFactory;
 
@@ -49,12 +72,52 @@ public class PoolDeConexiones {
 	// hr/hr.
 	private static final String PASSWORD = "hr";
 
-	/** Pool de conexiones. */
-	private static PoolDeConexiones poolDeConexiones;
+	/**
+	 * Etiqueta UCP de las conexiones ya configuradas (autocommit desactivado y READ_COMMITTED). Si se cambia la
+	 * configuracion de sesion hay que cambiar el valor, para que las conexiones antiguas se vuelvan a configurar.
+	 * Al valor se le anade la version del catalogo de sentencias precalentadas.
+	 */
+	private static final String ETIQUETA_SESION = "sesion";
+	private static final String VALOR_SESION = "manual-read-committed";
+
+	// Sitio en la cache de sentencias para las que no estan en el catalogo
+	private static final int HOLGURA_CACHE_SENTENCIAS = 4;
+
+	/** Propiedad de sistema para volver a configurar la sesion en cada prestamo (p.e. pool.etiquetas=false). */
+	public static final String PROPIEDAD_ETIQUETAS = "pool.etiquetas";
+
+	/** Tiempo maximo para validar cada conexion en el calentamiento, en segundos. */
+	private static final int SEGUNDOS_VALIDACION = 5;
+
+	/** Pool de conexiones. Volatile para que la doble comprobacion de getInstance() sea segura. */
+	private static volatile PoolDeConexiones poolDeConexiones;
 
 	/** DataSource. */
 	private DataSource ds;
 
+	/** Tiempo que se tarda en obtener cada conexion del pool. */
+	private final Histograma esperaPrestamo = new Histograma();
+
+	/** Prestamos que han acabado en error (base de datos caida, pool agotado hasta el timeout...). */
+	private final AtomicLong prestamosFallidos = new AtomicLong();
+
+	/** Metricas publicadas por JMX; null mientras no se registren. */
+	private volatile MetricasPool metricas;
+
+	/** Si las conexiones entregadas anotan sus viajes en la cuenta del hilo ({@link ContadorViajes}). */
+	private volatile boolean contarViajes;
+
+	/** Etiquetas que se piden en cada prestamo. */
+	private volatile Properties etiquetas = etiquetasSesion(0);
+
+	/** Sentencias que se preparan en cada conexion fisica al configurarla. */
+	private volatile List<String> sentenciasPrecalentadas = Collections.emptyList();
+	private int versionSentencias;
+
+	/** Si es false se vuelve a configurar la sesion en cada prestamo, como antes de usar etiquetas. */
+	private volatile boolean etiquetado = Boolean
+			.parseBoolean(System.getProperty(PROPIEDAD_ETIQUETAS, "true"));
+
 	/**
 	 * Constructor del pool de conexiones, siguiendo el patron de dise�o Singleton.
 	 * 
@@ -62,6 +125,7 @@ public class PoolDeConexiones {
 	 *                          logra instanciar el pool
 	 */
 	private PoolDeConexiones() {
+		long inicio = System.nanoTime();
 		try {
 			Properties properties = new Properties();
 			properties.setProperty(Context.INITIAL_CONTEXT_FACTORY, FILE_SYSTEM_CONTEXT_FACTORY);
@@ -69,6 +133,10 @@ public class PoolDeConexiones {
 			Context context = new InitialContext(properties);
 
 			ds = (DataSource) context.lookup(JDBC_TESTDB_DS);
+			LOGGER.info("Arranque del pool: busqueda JNDI de {} en {} ms", JDBC_TESTDB_DS, milisDesde(inicio));
+
+			// El callback no se publica en JNDI, hay que registrarlo en cada proceso
+			((PoolDataSource) ds).registerConnectionLabelingCallback(new ConfiguracionSesion());
 
 		} catch (NamingException e) {
 			LOGGER.error("Problema: no se encuentra el nombre del recurso en el contexto JNDI");
@@ -76,41 +144,421 @@ public class PoolDeConexiones {
 
 			// La aplicacion ya no puede seguir si no se instancia un pool
 			throw new RuntimeException();
+		} catch (SQLException e) {
+			LOGGER.error("Problema: no se puede registrar la configuracion de sesion en el pool");
+			LOGGER.error(e.getMessage());
+			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Obtiene la instancia del pool de conexiones si no existia.
+	 * Obtiene la instancia del pool de conexiones si no existia. Si varios hilos llegan a la vez solo uno hace la
+	 * busqueda JNDI; si falla, la siguiente llamada lo vuelve a intentar.
 	 * 
 	 */
 	public static PoolDeConexiones getInstance() {
-		if (poolDeConexiones == null) {
-			poolDeConexiones = new PoolDeConexiones();
+		PoolDeConexiones instancia = poolDeConexiones;
+		if (instancia == null) {
+			synchronized (PoolDeConexiones.class) {
+				instancia = poolDeConexiones;
+				if (instancia == null) {
+					instancia = new PoolDeConexiones();
+					poolDeConexiones = instancia;
+				}
+			}
+		}
+		return instancia;
+	}
+
+	/**
+	 * Abre y valida en paralelo las conexiones iniciales del pool, para que la primera rafaga de peticiones no
+	 * pague su creacion. Hay que llamarlo antes de admitir trafico. Deja en el log lo que tarda cada fase.
+	 *
+	 * @return numero de conexiones validadas
+	 * @throws SQLException si no se puede obtener alguna de las conexiones
+	 */
+	public int warmUp() throws SQLException {
+		PoolDataSource pds = (PoolDataSource) ds;
+		int conexiones = Math.max(1, Math.max(pds.getInitialPoolSize(), pds.getMinPoolSize()));
+		List<Connection> abiertas = new ArrayList<Connection>(conexiones);
+		ExecutorService hilos = Executors.newFixedThreadPool(conexiones);
+		try {
+			// El primer prestamo arranca el pool: UCP crea en ese momento las conexiones iniciales
+			long inicio = System.nanoTime();
+			abiertas.add(getConnection());
+			long arranque = milisDesde(inicio);
+
+			// Las conexiones se retienen hasta el final para que cada prestamo sea una conexion fisica distinta
+			inicio = System.nanoTime();
+			List<Future<Connection>> prestamos = new ArrayList<Future<Connection>>();
+			for (int i = 1; i < conexiones; i++) {
+				prestamos.add(hilos.submit(new Callable<Connection>() {
+					@Override
+					public Connection call() throws SQLException {
+						return getConnection();
+					}
+				}));
+			}
+			SQLException error = null;
+			for (Future<Connection> prestamo : prestamos) {
+				try {
+					abiertas.add(esperar(prestamo));
+				} catch (SQLException e) {
+					error = error == null ? e : error;
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+			long apertura = milisDesde(inicio);
+
+			inicio = System.nanoTime();
+			List<Future<Boolean>> validaciones = new ArrayList<Future<Boolean>>();
+			for (final Connection con : abiertas) {
+				validaciones.add(hilos.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws SQLException {
+						return con.isValid(SEGUNDOS_VALIDACION);
+					}
+				}));
+			}
+			int validas = 0;
+			for (Future<Boolean> validacion : validaciones) {
+				if (esperar(validacion)) {
+					validas++;
+				}
+			}
+			long validacion = milisDesde(inicio);
+
+			LOGGER.info("Arranque del pool: {} conexiones ({} validas), arranque={} ms, apertura={} ms, validacion={} ms",
+					conexiones, validas, arranque, apertura, validacion);
+			if (validas < conexiones) {
+				LOGGER.warn("Calentamiento del pool: {} conexiones no han pasado la validacion", conexiones - validas);
+			}
+			return validas;
+		} finally {
+			hilos.shutdown();
+			for (Connection con : abiertas) {
+				try {
+					con.close();
+				} catch (SQLException e) {
+					LOGGER.warn("No se pudo devolver al pool una conexion del calentamiento: {}", e.getMessage());
+				}
+			}
 		}
-		return poolDeConexiones;
 	}
 
 	/**
 	 * Obtiene una conexion.
 	 * 
+	 * La configuracion de sesion se aplica una sola vez por conexion fisica: se pide al pool una conexion con la
+	 * etiqueta de sesion y, si no la tiene, UCP llama a {@link ConfiguracionSesion} antes de entregarla. Aqui solo
+	 * se comprueba la etiqueta, que no necesita ir a la base de datos.
+	 * 
 	 * @return conexion
 	 * @throws SQLException si hay un error con la base de datos
 	 */
 	public Connection getConnection() throws SQLException {
-		Connection conn = ds.getConnection();
+		long inicio = System.nanoTime();
+		boolean conEtiquetas = etiquetado;
+		Properties solicitadas = etiquetas;
+		Connection conn;
+		try {
+			conn = conEtiquetas ? ((PoolDataSource) ds).getConnection(solicitadas) : ds.getConnection();
+		} catch (SQLException e) {
+			prestamosFallidos.incrementAndGet();
+			throw e;
+		}
+		esperaPrestamo.registrarDesde(inicio);
+
+		if (conEtiquetas) {
+			if (!((LabelableConnection) conn).getUnmatchedConnectionLabels(solicitadas).isEmpty()) {
+				LOGGER.warn("Conexion sin la etiqueta de sesion, se configura en el prestamo");
+				configurarSesion(conn);
+			}
+		} else {
+			configurarSesion(conn);
+		}
 
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(traceConnectionSettings(conn));
+		}
+
+		if (contarViajes) {
+			conn = ContadorViajes.observar(conn);
+		}
+		MetricasPool observador = metricas;
+		return observador == null ? conn : observador.observar(conn);
+	}
+
+	/**
+	 * Deshace lo que quede pendiente en la conexion y la devuelve al pool. Pensado para el finally de quien la ha
+	 * pedido: si el rollback falla (p.e. conexion perdida) solo se registra, para no tapar la excepcion que se este
+	 * propagando, y la conexion se cierra igualmente.
+	 *
+	 * @param con conexion obtenida con {@link #getConnection()}; si es null no se hace nada
+	 */
+	public static void devolver(Connection con) {
+		if (con == null) {
+			return;
+		}
+		try {
+			con.rollback();
+		} catch (SQLException e) {
+			LOGGER.debug("No se pudo hacer rollback al devolver la conexion: {}", e.getMessage());
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException e) {
+				LOGGER.debug("No se pudo cerrar la conexion: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Publica las metricas del pool como MBean ({@link MetricasPool#NOMBRE}). A partir de ese momento las
+	 * conexiones entregadas anotan los aciertos de la cache de sentencias. Llamarlo mas de una vez no hace nada.
+	 *
+	 * @return metricas publicadas
+	 */
+	public synchronized MetricasPool registrarMetricas() {
+		if (metricas == null) {
+			MetricasPool nuevas = new MetricasPool(this);
+			try {
+				MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+				ObjectName nombre = new ObjectName(MetricasPool.NOMBRE);
+				if (servidor.isRegistered(nombre)) {
+					servidor.unregisterMBean(nombre);
+				}
+				servidor.registerMBean(nuevas, nombre);
+				LOGGER.info("Metricas del pool publicadas por JMX como {}", MetricasPool.NOMBRE);
+			} catch (JMException e) {
+				LOGGER.warn("No se pudieron publicar las metricas del pool por JMX: {}", e.getMessage());
+			}
+			metricas = nuevas;
+		}
+		return metricas;
+	}
+
+	/**
+	 * Estadisticas de UCP.
+	 *
+	 * @return estadisticas, o null si el pool todavia no ha arrancado
+	 */
+	public JDBCConnectionPoolStatistics getEstadisticas() {
+		return ((PoolDataSource) ds).getStatistics();
+	}
+
+	public long getPrestamosFallidos() {
+		return prestamosFallidos.get();
+	}
+
+	void reiniciarPrestamosFallidos() {
+		prestamosFallidos.set(0);
+	}
+
+	/**
+	 * Tamaño de la cache implicita de sentencias de cada conexion.
+	 *
+	 * @return numero de sentencias
+	 */
+	public int getMaxStatements() {
+		return ((PoolDataSource) ds).getMaxStatements();
+	}
+
+	/**
+	 * Activa o desactiva el etiquetado de sesion. Sin etiquetas la sesion se configura en cada prestamo; solo
+	 * tiene sentido para comparar (ver BenchmarkPrestamo).
+	 *
+	 * @param etiquetado true para configurar la sesion una sola vez por conexion fisica
+	 */
+	public void setEtiquetado(boolean etiquetado) {
+		this.etiquetado = etiquetado;
+	}
+
+	public boolean isEtiquetado() {
+		return etiquetado;
+	}
+
+	/**
+	 * Activa o desactiva la cuenta de viajes de las conexiones que se entreguen a partir de ahora. Pensado para
+	 * las pruebas: cada sentencia y ResultSet pasan por un proxy.
+	 *
+	 * @param contarViajes true para envolver las conexiones con {@link ContadorViajes}
+	 */
+	public void setContarViajes(boolean contarViajes) {
+		this.contarViajes = contarViajes;
+	}
+
+	/**
+	 * Sentencias que se preparan en cada conexion fisica, una sola vez, al configurar su sesion. La cache de
+	 * sentencias del pool se amplia si no caben. Las conexiones ya configuradas se vuelven a configurar en su
+	 * siguiente prestamo.
+	 *
+	 * @param sentencias texto SQL de las sentencias (las llamadas a procedimientos entre llaves)
+	 */
+	public synchronized void setSentenciasPrecalentadas(Collection<String> sentencias) {
+		List<String> nuevas = new ArrayList<String>(new LinkedHashSet<String>(sentencias));
+		if (nuevas.equals(sentenciasPrecalentadas)) {
+			return;
+		}
+		// Primero las sentencias: quien vea la etiqueta nueva tiene que ver tambien la lista nueva
+		sentenciasPrecalentadas = Collections.unmodifiableList(nuevas);
+		etiquetas = etiquetasSesion(++versionSentencias);
+
+		PoolDataSource pds = (PoolDataSource) ds;
+		int necesarias = nuevas.size() + HOLGURA_CACHE_SENTENCIAS;
+		if (pds.getMaxStatements() < necesarias) {
+			try {
+				pds.setMaxStatements(necesarias);
+			} catch (SQLException e) {
+				LOGGER.warn("No se pudo ampliar la cache de sentencias del pool: {}", e.getMessage());
+			}
+		}
+		LOGGER.info("{} sentencias a precalentar en cada conexion; cache de sentencias de {}", nuevas.size(),
+				pds.getMaxStatements());
+	}
+
+	public List<String> getSentenciasPrecalentadas() {
+		return sentenciasPrecalentadas;
+	}
+
+	private static Properties etiquetasSesion(int version) {
+		Properties etiquetas = new Properties();
+		etiquetas.setProperty(ETIQUETA_SESION, VALOR_SESION + "#" + version);
+		return etiquetas;
+	}
+
+	/**
+	 * Configuracion de sesion que necesitan los servicios.
+	 */
+	private static void configurarSesion(Connection conn) throws SQLException {
 		conn.setAutoCommit(false);
-		LOGGER.debug("Activacion de Autocommit={}", conn.getAutoCommit());
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 		// Connection.TRANSACTION_SERIALIZABLE);
-		// No v�lidos en Oracle:
+		// No validos en Oracle:
 		// conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
 		// conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+	}
+
+	/**
+	 * Prepara las sentencias en la conexion y las deja en su cache implicita, con el tamaño de cache suficiente.
+	 * Las consultas e inserciones se ejecutan una vez con todos los parametros a null, para que Oracle las analice
+	 * y la cache guarde el cursor ya abierto: las consultas no encuentran nada y las inserciones fallan por clave
+	 * primaria nula sin escribir. Las llamadas a procedimientos y las sentencias que piden valores a una secuencia
+	 * solo se preparan: el rollback no devuelve los numeros de una secuencia, y la consulta de bloques del generador
+	 * de identificadores se llevaria un bloque entero por conexion. Al final se deshace todo.
+	 */
+	private static void precalentar(Connection conn, List<String> sentencias) throws SQLException {
+		if (sentencias.isEmpty()) {
+			return;
+		}
+		long inicio = System.nanoTime();
+		OracleConnection oracle = conn.unwrap(OracleConnection.class);
+		int necesarias = sentencias.size() + HOLGURA_CACHE_SENTENCIAS;
+		if (oracle.getStatementCacheSize() < necesarias) {
+			oracle.setStatementCacheSize(necesarias);
+		}
+		oracle.setImplicitCachingEnabled(true);
+
+		int errores = 0;
+		for (String sql : sentencias) {
+			if (sql.startsWith("{")) {
+				conn.prepareCall(sql).close();
+				continue;
+			}
+			if (sql.toLowerCase(Locale.ROOT).contains("nextval")) {
+				conn.prepareStatement(sql).close();
+				continue;
+			}
+			try (PreparedStatement st = conn.prepareStatement(sql)) {
+				for (int i = 1; i <= contarParametros(sql); i++) {
+					st.setNull(i, Types.VARCHAR);
+				}
+				st.execute();
+			} catch (SQLException e) {
+				// Esperado en las inserciones; la sentencia ya esta analizada y en la cache
+				errores++;
+			}
+		}
+		conn.rollback();
+		LOGGER.debug("{} sentencias precalentadas ({} con error esperado) en {} ms", sentencias.size(), errores,
+				milisDesde(inicio));
+	}
 
-		LOGGER.debug(traceConnectionSettings(conn));
+	/**
+	 * Numero de parametros ? fuera de literales.
+	 */
+	private static int contarParametros(String sql) {
+		int parametros = 0;
+		boolean enLiteral = false;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (c == '\'') {
+				enLiteral = !enLiteral;
+			} else if (c == '?' && !enLiteral) {
+				parametros++;
+			}
+		}
+		return parametros;
+	}
+
+	/**
+	 * Callback de etiquetado de UCP: configura la sesion de las conexiones fisicas que todavia no tienen la
+	 * etiqueta, prepara en ellas las sentencias del catalogo y les pone la etiqueta.
+	 */
+	private class ConfiguracionSesion implements ConnectionLabelingCallback {
+
+		// Mejor reconfigurar una conexion libre sin etiqueta que abrir una nueva
+		private static final int COSTE_CONFIGURAR = 10;
 
-		return conn;
+		@Override
+		public int cost(Properties solicitadas, Properties actuales) {
+			String valor = solicitadas.getProperty(ETIQUETA_SESION);
+			return valor != null && valor.equals(actuales.getProperty(ETIQUETA_SESION)) ? 0 : COSTE_CONFIGURAR;
+		}
+
+		@Override
+		public boolean configure(Properties solicitadas, Object conexion) {
+			try {
+				configurarSesion((Connection) conexion);
+				precalentar((Connection) conexion, sentenciasPrecalentadas);
+				((LabelableConnection) conexion).applyConnectionLabel(ETIQUETA_SESION,
+						solicitadas.getProperty(ETIQUETA_SESION));
+				LOGGER.debug("Sesion configurada en una conexion fisica del pool");
+				return true;
+			} catch (SQLException e) {
+				LOGGER.warn("No se pudo configurar la sesion de la conexion: {}", e.getMessage());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Histograma del tiempo de espera para obtener una conexion del pool.
+	 *
+	 * @return histograma en nanosegundos
+	 */
+	public Histograma getEsperaPrestamo() {
+		return esperaPrestamo;
+	}
+
+	/**
+	 * Tamaño maximo configurado del pool.
+	 *
+	 * @return numero maximo de conexiones
+	 */
+	public int getMaxPoolSize() {
+		return ((PoolDataSource) ds).getMaxPoolSize();
+	}
+
+	public int getMinPoolSize() {
+		return ((PoolDataSource) ds).getMinPoolSize();
+	}
+
+	public int getInitialPoolSize() {
+		return ((PoolDataSource) ds).getInitialPoolSize();
 	}
 
 	/**
@@ -141,7 +589,8 @@ public class PoolDeConexiones {
 		pds.setInitialPoolSize(5);
 		pds.setTimeToLiveConnectionTimeout(18000);
 
-		//// Activacion de la cache de sentencias prepradas (6 sentencias)
+		//// Activacion de la cache de sentencias prepradas (6 sentencias). Se amplia al arrancar hasta el tamaño
+		//// del catalogo de sentencias con setSentenciasPrecalentadas
 		pds.setMaxStatements(6);
 
 		context.rebind(JDBC_TESTDB_DS, pds);
@@ -182,6 +631,24 @@ public class PoolDeConexiones {
 		return retorno;
 	}
 
+	private static <T> T esperar(Future<T> tarea) throws SQLException {
+		try {
+			return tarea.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Calentamiento del pool interrumpido", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	private static long milisDesde(long inicioNanos) {
+		return (System.nanoTime() - inicioNanos) / 1000000;
+	}
+
 	/**
 	 * Redimensiona el pool.
 	 * 
@@ -190,7 +657,7 @@ public class PoolDeConexiones {
 	 * @param maxLimit     tama�o maximo
 	 * @throws SQLException si hay un error con la cache de conexiones
 	 */
-	private void resizePool(int initialLimit, int minLimit, int maxLimit) throws SQLException {
+	synchronized void resizePool(int initialLimit, int minLimit, int maxLimit) throws SQLException {
 		((PoolDataSource) ds).setMinPoolSize(minLimit);
 		((PoolDataSource) ds).setMaxPoolSize(maxLimit);
 		((PoolDataSource) ds).setInitialPoolSize(initialLimit);
@@ -203,7 +670,7 @@ public class PoolDeConexiones {
 	 * @return texto con las caracteristicas actuales
 	 * @throws SQLException si hay un error con la base de datos
 	 */
-	private String traceOracleSettings() throws SQLException {
+	String traceOracleSettings() throws SQLException {
 		PoolDataSource pds = (PoolDataSource) ds;
 
 		String retorno = "trabajando con OracleDataSource\n";
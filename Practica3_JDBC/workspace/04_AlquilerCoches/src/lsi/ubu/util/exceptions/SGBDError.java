@@ -13,6 +13,10 @@ public enum SGBDError {
 	FK_VIOLATED_DELETE, // Violaci�n de clave for�nea por hijo existente => con delete/udate
 	PK_VIOLATED, // Violaci�n de clave primaria
 	NOT_EXISTS_SEQUENCE, // No existe la secuencia utilizada
+	DEADLOCK, // Interbloqueo detectado mientras se esperaba un recurso => transitorio
+	SERIALIZATION_FAILURE, // No se puede serializar el acceso en transacciones SERIALIZABLE => transitorio
+	RESOURCE_BUSY, // Recurso ocupado con NOWAIT o tiempo de espera agotado => transitorio
+	CONNECTION_LOST, // Conexion cerrada o perdida con el servidor => transitorio con otra conexion
 	// A�adir antes de esta l�nea si fuera necesario
 
 	UNKNOWN; // No determinado.
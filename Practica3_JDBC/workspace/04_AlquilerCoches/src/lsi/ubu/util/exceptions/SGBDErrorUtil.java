@@ -29,4 +29,12 @@ public interface SGBDErrorUtil {
 	 * @return true si coinciden, false en caso contrario
 	 */
 	boolean checkExceptionToCode(SQLException ex, SGBDError error);
+
+	/**
+	 * Comprueba si el error es transitorio, es decir, si repetir la transaccion completa puede terminar bien.
+	 * 
+	 * @param ex excepcion con codigo interno de la base de datos
+	 * @return true si merece la pena reintentar la transaccion
+	 */
+	boolean isTransient(SQLException ex);
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package lsi.ubu.util.exceptions.oracle;
 
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 
 import lsi.ubu.util.exceptions.SGBDError;
 import lsi.ubu.util.exceptions.SGBDErrorUtil;
@@ -21,6 +23,15 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 	private static final int FK_VIOLATED = 2291; //ORA-02291: integrity constraint (la que sea) violated - parent key not found
 	private static final int NOT_EXISTS_SEQUENCE = 2289;
 	private static final int FK_VIOLATED_DELETE = 2292; //ORA-02292: integrity constraint (la que sea) violated - child record found
+	private static final int DEADLOCK = 60; //ORA-00060: deadlock detected while waiting for resource
+	private static final int SERIALIZATION_FAILURE = 8177; //ORA-08177: can't serialize access for this transaction
+	private static final int RESOURCE_BUSY = 54; //ORA-00054: resource busy and acquire with NOWAIT specified or timeout expired
+	private static final int RESOURCE_BUSY_WAIT = 30006; //ORA-30006: resource busy; acquire with WAIT timeout expired
+	private static final int END_OF_FILE_ON_CHANNEL = 3113; //ORA-03113: end-of-file on communication channel
+	private static final int NOT_CONNECTED = 3114; //ORA-03114: not connected to ORACLE
+	private static final int IO_ERROR = 17002; //Error de E/S del driver JDBC (red caida, servidor parado...)
+	private static final int CLOSED_CONNECTION = 17008; //Conexion cerrada, driver JDBC
+	private static final int NO_MORE_DATA = 17410; //No hay mas datos que leer del socket, driver JDBC
 	// Aadir segn sea necesario, por parte del alumno...
 
 	/**
@@ -49,6 +60,19 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 			return SGBDError.FK_VIOLATED_DELETE;
 		case NOT_EXISTS_SEQUENCE:
 			return SGBDError.NOT_EXISTS_SEQUENCE;
+		case DEADLOCK:
+			return SGBDError.DEADLOCK;
+		case SERIALIZATION_FAILURE:
+			return SGBDError.SERIALIZATION_FAILURE;
+		case RESOURCE_BUSY:
+		case RESOURCE_BUSY_WAIT:
+			return SGBDError.RESOURCE_BUSY;
+		case END_OF_FILE_ON_CHANNEL:
+		case NOT_CONNECTED:
+		case IO_ERROR:
+		case CLOSED_CONNECTION:
+		case NO_MORE_DATA:
+			return SGBDError.CONNECTION_LOST;
 		}
 		return SGBDError.UNKNOWN;
 	}
@@ -66,4 +90,25 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 	public boolean checkExceptionToCode(SQLException ex, SGBDError error) {
 		return new OracleSGBDErrorUtil().translate(ex.getErrorCode()) == error;
 	}
+
+	/**
+	 * {@inheritDoc}. Ademas de los cdigos conocidos se aceptan las excepciones que el propio driver clasifica
+	 * como transitorias o recuperables.
+	 * 
+	 * @param ex
+	 *            {@inheritDoc}
+	 * @return {@inheritDoc}
+	 */
+	@Override
+	public boolean isTransient(SQLException ex) {
+		switch (translate(ex.getErrorCode())) {
+		case DEADLOCK:
+		case SERIALIZATION_FAILURE:
+		case RESOURCE_BUSY:
+		case CONNECTION_LOST:
+			return true;
+		default:
+			return ex instanceof SQLTransientException || ex instanceof SQLRecoverableException;
+		}
+	}
 }
\ No newline at end of file